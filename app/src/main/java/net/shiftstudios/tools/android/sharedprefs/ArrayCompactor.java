@@ -0,0 +1,147 @@
+package net.shiftstudios.tools.android.sharedprefs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds array entries which no longer belong to any array: elements beyond the length of the
+ * array, per-element entries of arrays which have been rewritten as a packed entry, and
+ * chunks beyond the end of a chunked array or without one.
+ * <p>
+ * Keys of the form {@code name[i]}, {@code name.arrayLength} and {@code name.arrayType} are
+ * only treated as array entries if their values have the types the per-element layout stores,
+ * and only once the array is known to be gone, so values merely named like them are kept.
+ */
+final class ArrayCompactor {
+
+    static final String LENGTH_SUFFIX = ".arrayLength";
+    static final String TYPE_SUFFIX = ".arrayType";
+
+    private ArrayCompactor() {
+    }
+
+    /**
+     * Finds every orphaned array entry.
+     *
+     * @param all Every value in the preferences
+     * @return Orphaned keys
+     */
+    static List<String> findOrphans(Map<String, ?> all) {
+        List<String> orphans = new ArrayList<String>();
+        for (String key : all.keySet()) {
+            if (isOrphan(all, key)) orphans.add(key);
+        }
+        return orphans;
+    }
+
+    /**
+     * @param all Values by key; only {@code get} and {@code containsKey} are used
+     */
+    static boolean isOrphan(Map<String, ?> all, String key) {
+        int hash = ChunkedArrays.chunkIndexStart(key);
+        if (hash >= 0) {
+            // Only array data is taken for a chunk, never a value put under such a key.
+            Object value = all.get(key);
+            if (!(value instanceof String) || !PackedArrays.isPacked((String) value)
+                    && !ValueCompression.isCompressed((String) value)) {
+                return false;
+            }
+            Object header = all.get(key.substring(0, hash));
+            ChunkedArrays.Header h = header instanceof String ? ChunkedArrays.parse((String) header) : null;
+            return h == null || Integer.parseInt(key.substring(hash + 1)) >= h.chunks();
+        }
+        if (key.endsWith(LENGTH_SUFFIX)) {
+            String base = key.substring(0, key.length() - LENGTH_SUFFIX.length());
+            return all.get(key) instanceof Integer && isRewritten(all, base);
+        }
+        if (key.endsWith(TYPE_SUFFIX)) {
+            String base = key.substring(0, key.length() - TYPE_SUFFIX.length());
+            return isTypeName(all.get(key)) && isRewritten(all, base);
+        }
+
+        int open = elementIndexStart(key);
+        if (open < 0) return false;
+
+        String base = key.substring(0, open);
+        Object value = all.get(key);
+        if (isRewritten(all, base)) return isElement(value, null);
+        if (!isLegacyArray(all, base)) return false;
+        int index = Integer.parseInt(key.substring(open + 1, key.length() - 1));
+        return index >= (Integer) all.get(base + LENGTH_SUFFIX)
+                && isElement(value, (String) all.get(base + TYPE_SUFFIX));
+    }
+
+    /**
+     * Checks if an array is stored one entry per element and has not been replaced by a
+     * packed entry.
+     */
+    private static boolean isLegacyArray(Map<String, ?> all, String base) {
+        return all.get(base + LENGTH_SUFFIX) instanceof Integer
+                && isTypeName(all.get(base + TYPE_SUFFIX))
+                && !all.containsKey(base + PackedArrays.SUFFIX);
+    }
+
+    /**
+     * Checks if an array is stored as a packed entry or a chunked header, which replaces any
+     * per-element entries it had.
+     */
+    private static boolean isRewritten(Map<String, ?> all, String base) {
+        Object packed = all.get(base + PackedArrays.SUFFIX);
+        if (!(packed instanceof String)) return false;
+        String value = (String) packed;
+        return PackedArrays.isPacked(value) || ValueCompression.isCompressed(value)
+                || ChunkedArrays.parse(value) != null;
+    }
+
+    private static boolean isTypeName(Object type) {
+        return "Boolean".equals(type) || "Integer".equals(type) || "Long".equals(type)
+                || "Float".equals(type) || "String".equals(type);
+    }
+
+    /**
+     * @param type Type name of the array, or null for any type an element can have
+     */
+    private static boolean isElement(Object value, String type) {
+        if (value == null) return false;
+        String name = value.getClass().getSimpleName();
+        return type != null ? name.equals(type) : isTypeName(name);
+    }
+
+    /**
+     * @return Position of '[' if the key looks like {@code name[i]}, or -1
+     */
+    static int elementIndexStart(String key) {
+        int length = key.length();
+        if (length < 4 || key.charAt(length - 1) != ']') return -1;
+
+        int i = length - 2;
+        while (i >= 0 && Character.isDigit(key.charAt(i))) i--;
+        if (i == length - 2 || i < 1 || key.charAt(i) != '[') return -1;
+        if (length - 2 - i > 9) return -1;
+        return i;
+    }
+
+    /**
+     * Estimates how many bytes an entry takes in the preferences XML file.
+     */
+    static long estimateSize(String key, Object value) {
+        long size = PackedArrays.utf8(key).length;
+        if (value instanceof String) {
+            return size + 30 + PackedArrays.utf8((String) value).length;
+        }
+        if (value instanceof Iterable) {
+            size += 19;
+            for (Object element : (Iterable<?>) value) {
+                size += 28 + PackedArrays.utf8(String.valueOf(element)).length;
+            }
+            return size;
+        }
+
+        String tag = value instanceof Integer ? "int"
+                : value instanceof Long ? "long"
+                : value instanceof Float ? "float"
+                : "boolean";
+        return size + 26 + tag.length() + String.valueOf(value).length();
+    }
+}
@@ -0,0 +1,93 @@
+package net.shiftstudios.tools.android.sharedprefs;
+
+/**
+ * Names of the entries an array is stored in: the packed entry, and the length, type and
+ * element entries of the per-element layout.
+ * <p>
+ * Keys built for a single call compute the per-element names only when they are needed.
+ * Keys held by a {@link PrefKey} compute and intern every name once, and remember element
+ * names, so reading through a handle builds no strings.
+ */
+final class ArrayKeys {
+
+    final String base;
+    final String packed;
+
+    private final boolean cached;
+    private String length;
+    private String type;
+    private volatile String[] elements = new String[0];
+
+    ArrayKeys(String base) {
+        this(base, false);
+    }
+
+    ArrayKeys(String base, boolean cached) {
+        this.base = base;
+        this.cached = cached;
+        if (cached) {
+            this.packed = (base + PackedArrays.SUFFIX).intern();
+            this.length = (base + ArrayCompactor.LENGTH_SUFFIX).intern();
+            this.type = (base + ArrayCompactor.TYPE_SUFFIX).intern();
+        } else {
+            this.packed = base + PackedArrays.SUFFIX;
+        }
+    }
+
+    /**
+     * Gets the key an entry belongs to: the array's key for its packed entry, chunks, length,
+     * type and elements, the value's key for its schema version and expiry time, or the
+     * entry's own key otherwise.
+     */
+    static String baseOf(String key) {
+        int hash = ChunkedArrays.chunkIndexStart(key);
+        if (hash >= 0) return key.substring(0, hash - PackedArrays.SUFFIX.length());
+        if (key.endsWith(PackedArrays.SUFFIX)) {
+            return key.substring(0, key.length() - PackedArrays.SUFFIX.length());
+        }
+        if (key.endsWith(ArrayCompactor.LENGTH_SUFFIX)) {
+            return key.substring(0, key.length() - ArrayCompactor.LENGTH_SUFFIX.length());
+        }
+        if (key.endsWith(ArrayCompactor.TYPE_SUFFIX)) {
+            return key.substring(0, key.length() - ArrayCompactor.TYPE_SUFFIX.length());
+        }
+        if (key.endsWith(Migrations.VERSION_SUFFIX)) {
+            return key.substring(0, key.length() - Migrations.VERSION_SUFFIX.length());
+        }
+        if (key.endsWith(EntryExpiry.SUFFIX)) {
+            return key.substring(0, key.length() - EntryExpiry.SUFFIX.length());
+        }
+        int open = ArrayCompactor.elementIndexStart(key);
+        return open >= 0 ? key.substring(0, open) : key;
+    }
+
+    String length() {
+        if (length == null) length = base + ArrayCompactor.LENGTH_SUFFIX;
+        return length;
+    }
+
+    String type() {
+        if (type == null) type = base + ArrayCompactor.TYPE_SUFFIX;
+        return type;
+    }
+
+    String element(int i) {
+        if (!cached) return base + '[' + i + ']';
+
+        String[] names = elements;
+        if (i >= names.length) {
+            synchronized (this) {
+                names = elements;
+                if (i >= names.length) {
+                    String[] grown = new String[Math.max(i + 1, names.length * 2)];
+                    System.arraycopy(names, 0, grown, 0, names.length);
+                    for (int j = names.length; j < grown.length; j++) {
+                        grown[j] = (base + '[' + j + ']').intern();
+                    }
+                    elements = names = grown;
+                }
+            }
+        }
+        return names[i];
+    }
+}
@@ -0,0 +1,128 @@
+package net.shiftstudios.tools.android.sharedprefs;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Subscription to changes of the keys matched by a filter.
+ * <p>
+ * Every entry an array is stored in is reported as a change of the array's own key, and
+ * changes arriving within the debounce window are collected into a single call. The listener
+ * is never called on the thread which made the change: it is called on the given executor,
+ * or on a shared background thread if there is none.
+ */
+public class ChangeSubscription {
+
+    /**
+     * Receives collected changes.
+     */
+    public interface Listener {
+
+        /**
+         * @param keys Keys which changed, or null if the preferences were cleared
+         */
+        void onChanged(Set<String> keys);
+    }
+
+    private static ScheduledExecutorService scheduler;
+
+    private final StorageEngine engine;
+    private final KeyFilter filter;
+    private final long windowMillis;
+    private final Executor executor;
+    private final Listener listener;
+    private final StorageEngine.Listener engineListener;
+
+    private Set<String> pending = new LinkedHashSet<String>();
+    private boolean cleared;
+    private boolean scheduled;
+    private volatile boolean cancelled;
+
+    ChangeSubscription(StorageEngine engine, KeyFilter filter, long windowMillis, Executor executor,
+                       Listener listener) {
+        this.engine = engine;
+        this.filter = filter;
+        this.windowMillis = windowMillis;
+        this.executor = executor;
+        this.listener = listener;
+        this.engineListener = new StorageEngine.Listener() {
+            @Override
+            public void onChanged(StorageEngine engine, String key) {
+                changed(key);
+            }
+        };
+        engine.addListener(engineListener);
+    }
+
+    /**
+     * Stops notifying the listener. Changes collected but not yet delivered are dropped.
+     */
+    public void cancel() {
+        cancelled = true;
+        engine.removeListener(engineListener);
+    }
+
+    private void changed(String key) {
+        if (key != null) {
+            key = ArrayKeys.baseOf(key);
+            if (!filter.matches(key)) return;
+        }
+
+        synchronized (this) {
+            if (key == null) cleared = true;
+            else pending.add(key);
+            if (scheduled) return;
+            scheduled = true;
+        }
+
+        scheduler().schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (executor == null) {
+                    deliver();
+                    return;
+                }
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        deliver();
+                    }
+                });
+            }
+        }, windowMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void deliver() {
+        Set<String> keys;
+        boolean wasCleared;
+        synchronized (this) {
+            keys = pending;
+            wasCleared = cleared;
+            pending = new LinkedHashSet<String>();
+            cleared = false;
+            scheduled = false;
+        }
+
+        if (cancelled) return;
+        listener.onChanged(wasCleared ? null : keys);
+    }
+
+    private static synchronized ScheduledExecutorService scheduler() {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "SharedPreferencesHelper-notifier");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return scheduler;
+    }
+}
@@ -0,0 +1,212 @@
+package net.shiftstudios.tools.android.sharedprefs;
+
+import java.lang.reflect.Array;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Stores an array as a header and fixed-size chunks, so reading a range, setting an element
+ * or appending touches only the chunks involved instead of the whole array.
+ * <p>
+ * The header takes the place of the packed entry: {@link #MARKER}, the type character, the
+ * length and the chunk size, as in {@code MARKER + "I1000,256"}. Chunk {@code n} is a packed
+ * array under {@code name.array#n} holding the elements from {@code n * chunkSize}. Every
+ * chunk but the last is full.
+ */
+final class ChunkedArrays {
+
+    static final String MARKER = "\uFDD0C";
+
+    private ChunkedArrays() {
+    }
+
+    static final class Header {
+
+        final char type;
+        final int length;
+        final int chunkSize;
+
+        Header(char type, int length, int chunkSize) {
+            this.type = type;
+            this.length = length;
+            this.chunkSize = chunkSize;
+        }
+
+        int chunks() {
+            return (length + chunkSize - 1) / chunkSize;
+        }
+
+        @Override
+        public String toString() {
+            return MARKER + type + length + ',' + chunkSize;
+        }
+    }
+
+    /**
+     * @return Header, or null if the value is not a valid header
+     */
+    static Header parse(String value) {
+        if (value == null || !value.startsWith(MARKER) || value.length() < MARKER.length() + 4) return null;
+
+        char type = value.charAt(MARKER.length());
+        int comma = value.indexOf(',', MARKER.length() + 1);
+        if (comma < 0 || PackedArrays.arrayClass(type) == null) return null;
+        try {
+            int length = Integer.parseInt(value.substring(MARKER.length() + 1, comma));
+            int chunkSize = Integer.parseInt(value.substring(comma + 1));
+            return length >= 0 && chunkSize > 0 ? new Header(type, length, chunkSize) : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    static String chunkKey(ArrayKeys keys, int chunk) {
+        return keys.packed + '#' + chunk;
+    }
+
+    /**
+     * @return Position of '#' if the key looks like {@code name.array#n}, or -1
+     */
+    static int chunkIndexStart(String key) {
+        int hash = key.lastIndexOf('#');
+        if (hash < PackedArrays.SUFFIX.length() || hash == key.length() - 1 || hash < key.length() - 10) return -1;
+        if (!key.startsWith(PackedArrays.SUFFIX, hash - PackedArrays.SUFFIX.length())) return -1;
+        for (int i = hash + 1; i < key.length(); i++) {
+            if (!Character.isDigit(key.charAt(i))) return -1;
+        }
+        return hash;
+    }
+
+    /**
+     * Reads a range of a chunked array, touching only the chunks it overlaps.
+     *
+     * @return Elements from {@code from} to {@code to - 1}, or null if a chunk is missing or
+     * corrupt
+     */
+    static Object read(StorageEngine s, ValueCompression compression, ArrayKeys keys, Header header,
+                       int from, int to) {
+        Class<?> type = PackedArrays.arrayClass(header.type);
+        Object range = Array.newInstance(type.getComponentType(), to - from);
+        int position = from;
+        while (position < to) {
+            int chunk = position / header.chunkSize;
+            Object elements = readChunk(s, compression, keys, header, chunk);
+            if (elements == null) return null;
+            int offset = position - chunk * header.chunkSize;
+            int count = Math.min(Array.getLength(elements) - offset, to - position);
+            if (count <= 0) return null;
+            System.arraycopy(elements, offset, range, position - from, count);
+            position += count;
+        }
+        return range;
+    }
+
+    /**
+     * @return Elements of a chunk, or null if it is missing or corrupt
+     */
+    static Object readChunk(StorageEngine s, ValueCompression compression, ArrayKeys keys, Header header,
+                            int chunk) {
+        String packed = s.getString(chunkKey(keys, chunk), null);
+        if (ValueCompression.isCompressed(packed)) packed = compression.decompress(packed, s);
+        if (packed == null) return null;
+        Object elements = PackedArrays.decodeArray(packed, header.type);
+        int expected = Math.min(header.chunkSize, header.length - chunk * header.chunkSize);
+        return elements != null && Array.getLength(elements) == expected ? elements : null;
+    }
+
+    /**
+     * Changes to a chunked array made by one editor, which later changes in the same editor
+     * build on. Chunks are loaded when first touched.
+     */
+    static final class Pending {
+
+        final char type;
+        final int chunkSize;
+        /**
+         * Number of chunks stored before this editor, whose surplus is removed on writing.
+         */
+        final int storedChunks;
+        int length;
+
+        final Map<Integer, Object> chunks = new HashMap<Integer, Object>();
+        final Set<Integer> dirty = new HashSet<Integer>();
+        /**
+         * Chunks put by this editor, which are put again even if the store already holds
+         * them, so the last put wins.
+         */
+        final Set<Integer> written = new HashSet<Integer>();
+        boolean headerWritten;
+
+        Pending(char type, int length, int chunkSize, int storedChunks) {
+            this.type = type;
+            this.length = length;
+            this.chunkSize = chunkSize;
+            this.storedChunks = storedChunks;
+        }
+
+        Header header() {
+            return new Header(type, length, chunkSize);
+        }
+
+        /**
+         * Splits a whole array into chunks, all marked as changed.
+         */
+        void fill(Object array) {
+            length = Array.getLength(array);
+            chunks.clear();
+            for (int chunk = 0; chunk * chunkSize < length; chunk++) {
+                int from = chunk * chunkSize;
+                int count = Math.min(chunkSize, length - from);
+                Object elements = Array.newInstance(array.getClass().getComponentType(), count);
+                System.arraycopy(array, from, elements, 0, count);
+                chunks.put(chunk, elements);
+                dirty.add(chunk);
+            }
+        }
+
+        Object chunk(StorageEngine s, ValueCompression compression, ArrayKeys keys, int chunk) {
+            Object elements = chunks.get(chunk);
+            if (elements == null) {
+                elements = readChunk(s, compression, keys, new Header(type, length, chunkSize), chunk);
+                if (elements == null) {
+                    // A lost chunk reads as default values rather than failing every write.
+                    int count = Math.min(chunkSize, length - chunk * chunkSize);
+                    elements = Array.newInstance(PackedArrays.arrayClass(type).getComponentType(), count);
+                }
+                chunks.put(chunk, elements);
+            }
+            return elements;
+        }
+
+        void set(StorageEngine s, ValueCompression compression, ArrayKeys keys, int index, Object value) {
+            if (index < 0 || index >= length) {
+                throw new IndexOutOfBoundsException("Index " + index + ", length " + length);
+            }
+            int chunk = index / chunkSize;
+            Array.set(chunk(s, compression, keys, chunk), index - chunk * chunkSize, value);
+            dirty.add(chunk);
+        }
+
+        void append(StorageEngine s, ValueCompression compression, ArrayKeys keys, Object values) {
+            Class<?> component = PackedArrays.arrayClass(type).getComponentType();
+            int count = Array.getLength(values);
+            int position = 0;
+            while (position < count) {
+                int chunk = length / chunkSize;
+                int offset = length - chunk * chunkSize;
+                int take = Math.min(chunkSize - offset, count - position);
+
+                Object grown = Array.newInstance(component, offset + take);
+                if (offset > 0) System.arraycopy(chunk(s, compression, keys, chunk), 0, grown, 0, offset);
+                System.arraycopy(values, position, grown, offset, take);
+                chunks.put(chunk, grown);
+                dirty.add(chunk);
+
+                length += take;
+                position += take;
+            }
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package net.shiftstudios.tools.android.sharedprefs;
+
+/**
+ * Result of removing orphaned array entries from the preferences.
+ */
+public class CompactionResult {
+
+    private final int removedKeys;
+    private final long reclaimedBytes;
+
+    CompactionResult(int removedKeys, long reclaimedBytes) {
+        this.removedKeys = removedKeys;
+        this.reclaimedBytes = reclaimedBytes;
+    }
+
+    /**
+     * Gets how many entries were removed.
+     *
+     * @return Number of removed entries
+     */
+    public int getRemovedKeys() {
+        return removedKeys;
+    }
+
+    /**
+     * Gets an estimate of how many bytes the removed entries took in the preferences file.
+     *
+     * @return Estimated bytes reclaimed
+     */
+    public long getReclaimedBytes() {
+        return reclaimedBytes;
+    }
+}
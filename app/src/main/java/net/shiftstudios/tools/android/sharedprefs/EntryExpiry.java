@@ -0,0 +1,228 @@
+package net.shiftstudios.tools.android.sharedprefs;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Expiry times of the values put with a time to live, and their order of use for eviction.
+ * <p>
+ * The time a value expires at is kept next to it in {@code key.expiresAt}, in milliseconds
+ * since the epoch, and {@link #MARKER} is stored once any value has one, so preferences
+ * without expiring values are never scanned. The times are loaded into memory on first use,
+ * and again when the helper's engine is replaced, and kept up to date by a listener, so
+ * checking a read costs a lookup in a concurrent map and takes no lock. Uses are only
+ * tracked in memory, to the millisecond; values used at the same time, and after a restart
+ * values not used since, count as used longest ago when they expire first.
+ */
+final class EntryExpiry implements StorageEngine.Listener {
+
+    static final String SUFFIX = ".expiresAt";
+    static final String MARKER = "\uFDD0T";
+
+    private static final Comparator<Map.Entry<String, Entry>> BY_USE = new Comparator<Map.Entry<String, Entry>>() {
+        @Override
+        public int compare(Map.Entry<String, Entry> a, Map.Entry<String, Entry> b) {
+            Entry x = a.getValue();
+            Entry y = b.getValue();
+            if (x.used != y.used) return x.used < y.used ? -1 : 1;
+            return x.expiresAt < y.expiresAt ? -1 : x.expiresAt > y.expiresAt ? 1 : 0;
+        }
+    };
+
+    private volatile StorageEngine s;
+    private volatile boolean active;
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    private final AtomicLong bytes = new AtomicLong();
+
+    private static final class Entry {
+
+        final long expiresAt;
+        final long size;
+        /**
+         * Time of the last use, or 0 if not used since loaded.
+         */
+        volatile long used;
+
+        Entry(long expiresAt, long size, long used) {
+            this.expiresAt = expiresAt;
+            this.size = size;
+            this.used = used;
+        }
+    }
+
+    /**
+     * Loads the expiry times stored in an engine, unless they are loaded from it already.
+     */
+    void load(StorageEngine s) {
+        if (this.s == s) return;
+        synchronized (this) {
+            if (this.s == s) return;
+            if (this.s != null) this.s.removeListener(this);
+            this.s = s;
+            s.addListener(this);
+            reload();
+        }
+    }
+
+    /**
+     * Reads every expiry time. The caller must hold the lock of this object.
+     */
+    private void reload() {
+        entries.clear();
+        bytes.set(0);
+        active = s.contains(MARKER);
+        if (!active) return;
+
+        Map<String, ?> all = s.getAll();
+        for (Map.Entry<String, ?> entry : all.entrySet()) {
+            String key = entry.getKey();
+            if (!key.endsWith(SUFFIX) || !(entry.getValue() instanceof Long)) continue;
+            String base = key.substring(0, key.length() - SUFFIX.length());
+            put(base, (Long) entry.getValue(), size(base, all.get(base), all.get(base + PackedArrays.SUFFIX)), 0);
+        }
+    }
+
+    @Override
+    public void onChanged(StorageEngine engine, String key) {
+        synchronized (this) {
+            if (key == null) {
+                reload();
+            } else if (key.equals(MARKER)) {
+                active = s.contains(MARKER);
+            } else if (key.endsWith(SUFFIX)) {
+                String base = key.substring(0, key.length() - SUFFIX.length());
+                long expiresAt;
+                try {
+                    expiresAt = s.getLong(key, -1);
+                } catch (ClassCastException e) {
+                    expiresAt = -1;
+                }
+                if (expiresAt < 0) {
+                    remove(base);
+                } else {
+                    Entry entry = entries.get(base);
+                    put(base, expiresAt, entry != null ? entry.size : 0);
+                }
+            }
+        }
+    }
+
+    boolean isActive() {
+        return active;
+    }
+
+    void activate() {
+        active = true;
+    }
+
+    /**
+     * Checks if a key holds expiry data rather than a value.
+     */
+    static boolean isMetadata(String key) {
+        return key.equals(MARKER) || key.endsWith(SUFFIX);
+    }
+
+    /**
+     * Forgets every expiry time, after the preferences were cleared.
+     */
+    synchronized void clear() {
+        entries.clear();
+        bytes.set(0);
+        active = false;
+    }
+
+    /**
+     * Checks if a value has expired, and counts the check as a use of it.
+     */
+    boolean isExpired(String key, long now) {
+        if (!active) return false;
+        Entry entry = entries.get(key);
+        if (entry == null) return false;
+        if (entry.used != now) entry.used = now;
+        return entry.expiresAt <= now;
+    }
+
+    boolean contains(String key) {
+        return entries.containsKey(key);
+    }
+
+    /**
+     * Records an expiry time set by a write, which counts as a use.
+     */
+    void put(String key, long expiresAt, long size) {
+        put(key, expiresAt, size, System.currentTimeMillis());
+    }
+
+    private synchronized void put(String key, long expiresAt, long size, long used) {
+        Entry old = entries.put(key, new Entry(expiresAt, size, used));
+        bytes.addAndGet(old != null ? size - old.size : size);
+    }
+
+    synchronized void remove(String key) {
+        Entry old = entries.remove(key);
+        if (old != null) bytes.addAndGet(-old.size);
+    }
+
+    /**
+     * Picks the values to remove: expired ones first, then the ones used longest ago while
+     * there are more than {@code maxEntries} values or they take more than {@code maxBytes}.
+     *
+     * @param maxEntries Maximum number of expiring values, or 0 for no limit
+     * @param maxBytes   Maximum size of expiring values, or 0 for no limit
+     * @param limit      Maximum number of keys to pick
+     * @return Keys in the order they should go
+     */
+    List<String> due(long now, int maxEntries, long maxBytes, int limit) {
+        List<Map.Entry<String, Entry>> byUse = new ArrayList<Map.Entry<String, Entry>>(entries.entrySet());
+        Collections.sort(byUse, BY_USE);
+
+        List<String> due = new ArrayList<String>();
+        int count = byUse.size();
+        long size = bytes.get();
+        for (Map.Entry<String, Entry> entry : byUse) {
+            if (due.size() == limit) return due;
+            if (entry.getValue().expiresAt <= now) {
+                due.add(entry.getKey());
+                count--;
+                size -= entry.getValue().size;
+            }
+        }
+
+        for (int i = 0; i < byUse.size() && due.size() < limit
+                && (maxEntries > 0 && count > maxEntries || maxBytes > 0 && size > maxBytes); i++) {
+            Map.Entry<String, Entry> entry = byUse.get(i);
+            if (entry.getValue().expiresAt <= now) continue;
+            due.add(entry.getKey());
+            count--;
+            size -= entry.getValue().size;
+        }
+        return due;
+    }
+
+    /**
+     * Estimates the size of a stored value as two bytes per character of its key and strings,
+     * and eight bytes for any other value.
+     *
+     * @param value  Value stored under the key, or null
+     * @param packed Value stored under the key's packed array entry, or null
+     */
+    static long size(String key, Object value, Object packed) {
+        return 2L * key.length() + size(value) + size(packed);
+    }
+
+    private static long size(Object value) {
+        if (value == null) return 0;
+        if (value instanceof String) return 2L * ((String) value).length();
+        if (value instanceof Iterable) {
+            long size = 0;
+            for (Object element : (Iterable<?>) value) size += size(element);
+            return size;
+        }
+        return 8;
+    }
+}
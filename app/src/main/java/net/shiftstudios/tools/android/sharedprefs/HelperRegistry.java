@@ -0,0 +1,161 @@
+package net.shiftstudios.tools.android.sharedprefs;
+
+import android.content.Context;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+
+import java.lang.reflect.Type;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Process-wide registry which hands out one helper per preferences file and access mode, all
+ * sharing a single Gson. Preferences files can be preloaded on a background thread while the
+ * app starts, so the first read on the main thread does not wait for the disk.
+ */
+public final class HelperRegistry {
+
+    private static final Map<String, SharedPreferencesHelper> helpers =
+            new HashMap<String, SharedPreferencesHelper>();
+
+    private static volatile Gson gson;
+    private static ExecutorService executor;
+
+    private HelperRegistry() {
+    }
+
+    /**
+     * Gets the Gson shared by every helper which was not given its own.
+     *
+     * @return Gson
+     */
+    public static Gson getGson() {
+        Gson g = gson;
+        if (g == null) {
+            synchronized (HelperRegistry.class) {
+                g = gson;
+                if (g == null) gson = g = new Gson();
+            }
+        }
+        return g;
+    }
+
+    /**
+     * Gets the helper of the default preferences.
+     *
+     * @param context Context
+     * @return SharedPreferencesHelper
+     */
+    public static SharedPreferencesHelper getDefault(Context context) {
+        synchronized (helpers) {
+            SharedPreferencesHelper helper = helpers.get("");
+            if (helper == null) {
+                helper = new SharedPreferencesHelper(context.getApplicationContext(), getGson());
+                helpers.put("", helper);
+            }
+            return helper;
+        }
+    }
+
+    /**
+     * Gets the helper of a preferences file with private access mode.
+     *
+     * @param context Context
+     * @param name    SharedPreferences name
+     * @return SharedPreferencesHelper
+     */
+    public static SharedPreferencesHelper get(Context context, String name) {
+        return get(context, name, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Gets the helper of a preferences file and access mode.
+     *
+     * @param context Context
+     * @param name    SharedPreferences name
+     * @param mode    Access mode
+     * @return SharedPreferencesHelper
+     */
+    public static SharedPreferencesHelper get(Context context, String name, int mode) {
+        String key = mode + ":" + name;
+        synchronized (helpers) {
+            SharedPreferencesHelper helper = helpers.get(key);
+            if (helper == null) {
+                helper = new SharedPreferencesHelper(context.getApplicationContext(), name, mode, getGson());
+                helpers.put(key, helper);
+            }
+            return helper;
+        }
+    }
+
+    /**
+     * Loads preferences files with private access mode on a background thread. Call this
+     * early, for example in {@code Application.onCreate()}.
+     *
+     * @param context Context
+     * @param names   SharedPreferences names
+     * @return Future which completes when every file is loaded
+     */
+    public static Future<?> preload(final Context context, final String... names) {
+        return executor().submit(new Runnable() {
+            @Override
+            public void run() {
+                for (String name : names) {
+                    // SharedPreferences blocks any read until its file is parsed.
+                    get(context, name).contains("");
+                }
+            }
+        });
+    }
+
+    /**
+     * Loads the default preferences on a background thread.
+     *
+     * @param context Context
+     * @return Future which completes when the file is loaded
+     */
+    public static Future<?> preloadDefault(final Context context) {
+        return executor().submit(new Runnable() {
+            @Override
+            public void run() {
+                getDefault(context).contains("");
+            }
+        });
+    }
+
+    /**
+     * Builds the shared Gson's type adapters on a background thread, so the first object read
+     * does not pay for reflection.
+     *
+     * @param types Types which will be read or written as objects
+     * @return Future which completes when every adapter is built
+     */
+    public static Future<?> warmUp(final Type... types) {
+        return executor().submit(new Runnable() {
+            @Override
+            public void run() {
+                Gson g = getGson();
+                for (Type type : types) g.getAdapter(TypeToken.get(type));
+            }
+        });
+    }
+
+    private static synchronized ExecutorService executor() {
+        if (executor == null) {
+            executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "SharedPreferencesHelper-preload");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return executor;
+    }
+}
@@ -0,0 +1,182 @@
+package net.shiftstudios.tools.android.sharedprefs;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Storage engine which keeps every value in memory and never touches the disk. Useful for
+ * tests, benchmarks and caches which do not need to survive the process.
+ */
+public class InMemoryEngine implements StorageEngine {
+
+    private static final Object REMOVED = new Object();
+
+    private final Map<String, Object> values = new HashMap<String, Object>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+    public InMemoryEngine() {
+    }
+
+    /**
+     * Generates a new InMemoryEngine object which starts with the specified values.
+     *
+     * @param values Initial values
+     */
+    public InMemoryEngine(Map<String, ?> values) {
+        this.values.putAll(values);
+    }
+
+    private synchronized Object get(String key) {
+        return values.get(key);
+    }
+
+    @Override
+    public synchronized boolean contains(String key) {
+        return values.containsKey(key);
+    }
+
+    @Override
+    public int getInt(String key, int defValue) {
+        Integer value = (Integer) get(key);
+        return value != null ? value : defValue;
+    }
+
+    @Override
+    public long getLong(String key, long defValue) {
+        Long value = (Long) get(key);
+        return value != null ? value : defValue;
+    }
+
+    @Override
+    public float getFloat(String key, float defValue) {
+        Float value = (Float) get(key);
+        return value != null ? value : defValue;
+    }
+
+    @Override
+    public boolean getBoolean(String key, boolean defValue) {
+        Boolean value = (Boolean) get(key);
+        return value != null ? value : defValue;
+    }
+
+    @Override
+    public String getString(String key, String defValue) {
+        String value = (String) get(key);
+        return value != null ? value : defValue;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Set<String> getStringSet(String key, Set<String> defValues) {
+        Set<String> value = (Set<String>) get(key);
+        return value != null ? value : defValues;
+    }
+
+    @Override
+    public synchronized Map<String, ?> getAll() {
+        return new HashMap<String, Object>(values);
+    }
+
+    @Override
+    public Batch edit() {
+        return new MemoryBatch();
+    }
+
+    @Override
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    private class MemoryBatch implements Batch {
+
+        private final Map<String, Object> changes = new LinkedHashMap<String, Object>();
+        private boolean clear;
+
+        private Batch put(String key, Object value) {
+            changes.put(key, value == null ? REMOVED : value);
+            return this;
+        }
+
+        @Override
+        public Batch putInt(String key, int value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Batch putLong(String key, long value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Batch putFloat(String key, float value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Batch putBoolean(String key, boolean value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Batch putString(String key, String value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Batch putStringSet(String key, Set<String> value) {
+            return put(key, value == null ? null : Collections.unmodifiableSet(new HashSet<String>(value)));
+        }
+
+        @Override
+        public Batch remove(String key) {
+            return put(key, null);
+        }
+
+        @Override
+        public Batch clear() {
+            clear = true;
+            return this;
+        }
+
+        @Override
+        public boolean commit() {
+            List<String> changed = new ArrayList<String>(changes.size());
+            synchronized (InMemoryEngine.this) {
+                if (clear) values.clear();
+                for (Map.Entry<String, Object> entry : changes.entrySet()) {
+                    Object old = entry.getValue() == REMOVED
+                            ? values.remove(entry.getKey())
+                            : values.put(entry.getKey(), entry.getValue());
+                    if (old == null ? entry.getValue() != REMOVED : !old.equals(entry.getValue())) {
+                        changed.add(entry.getKey());
+                    }
+                }
+            }
+
+            if (clear) {
+                for (Listener listener : listeners) listener.onChanged(InMemoryEngine.this, null);
+            }
+            for (String key : changed) {
+                for (Listener listener : listeners) listener.onChanged(InMemoryEngine.this, key);
+            }
+            return true;
+        }
+
+        @Override
+        public void apply() {
+            commit();
+        }
+    }
+}
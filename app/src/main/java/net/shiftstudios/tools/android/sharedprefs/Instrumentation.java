@@ -0,0 +1,130 @@
+package net.shiftstudios.tools.android.sharedprefs;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records what a helper does while instrumentation is on: reads and writes per key, commit
+ * and listener times, and the length of serialized objects and arrays.
+ */
+final class Instrumentation {
+
+    static final int READS = 0;
+    static final int WRITES = 1;
+    static final int PAYLOAD = 2;
+
+    /**
+     * Bucket {@code b} of a histogram counts values {@code v} with
+     * {@code 2^(b-1) <= v < 2^b}, and bucket 0 counts zeros. The last cell holds the sum.
+     */
+    static final int BUCKETS = 65;
+
+    private final ConcurrentHashMap<String, Key> keys = new ConcurrentHashMap<String, Key>();
+    private final StripedCounters commitLatency = new StripedCounters(BUCKETS + 1, true);
+    private final StripedCounters listenerLatency = new StripedCounters(BUCKETS + 1, true);
+    private final StripedCounters objectSizes = new StripedCounters(BUCKETS + 1, true);
+    private final StripedCounters arraySizes = new StripedCounters(BUCKETS + 1, true);
+    private final long startedAt = System.currentTimeMillis();
+    private ScheduledExecutorService reporter;
+
+    static final class Key {
+
+        final StripedCounters counters = new StripedCounters(3, false);
+        volatile int lastPayload = -1;
+    }
+
+    private Key key(String name) {
+        Key key = keys.get(name);
+        if (key == null) {
+            Key created = new Key();
+            key = keys.putIfAbsent(name, created);
+            if (key == null) key = created;
+        }
+        return key;
+    }
+
+    void read(String key) {
+        key(key).counters.add(READS, 1);
+    }
+
+    void write(String key) {
+        key(key).counters.add(WRITES, 1);
+    }
+
+    /**
+     * Records a write of a serialized object or packed array.
+     *
+     * @param length Serialized length in characters
+     */
+    void write(String key, int length, boolean array) {
+        Key k = key(key);
+        k.counters.add(WRITES, 1);
+        k.counters.add(PAYLOAD, length);
+        k.lastPayload = length;
+        record(array ? arraySizes : objectSizes, length);
+    }
+
+    void committed(long nanos) {
+        record(commitLatency, nanos);
+    }
+
+    void listenerCalled(long nanos) {
+        record(listenerLatency, nanos);
+    }
+
+    private static void record(StripedCounters histogram, long value) {
+        histogram.add(64 - Long.numberOfLeadingZeros(value), 1);
+        histogram.add(BUCKETS, value);
+    }
+
+    /**
+     * Calls the reporter with a snapshot periodically on a background thread, until
+     * {@link #shutdown()}.
+     */
+    synchronized void schedule(final PreferenceStats.Reporter r, long periodMillis) {
+        if (reporter != null) reporter.shutdown();
+        reporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread t = new Thread(runnable, "SharedPreferencesHelper-stats");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        reporter.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                r.report(snapshot());
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    synchronized void shutdown() {
+        if (reporter != null) reporter.shutdown();
+        reporter = null;
+    }
+
+    PreferenceStats snapshot() {
+        Map<String, PreferenceStats.KeyStats> stats =
+                new HashMap<String, PreferenceStats.KeyStats>(keys.size() * 2);
+        for (Map.Entry<String, Key> entry : keys.entrySet()) {
+            StripedCounters c = entry.getValue().counters;
+            stats.put(entry.getKey(), new PreferenceStats.KeyStats(entry.getKey(),
+                    c.sum(READS), c.sum(WRITES), c.sum(PAYLOAD), entry.getValue().lastPayload));
+        }
+        return new PreferenceStats(startedAt, System.currentTimeMillis(), stats,
+                histogram(commitLatency), histogram(listenerLatency),
+                histogram(objectSizes), histogram(arraySizes));
+    }
+
+    private static PreferenceStats.Histogram histogram(StripedCounters counters) {
+        long[] buckets = new long[BUCKETS];
+        for (int b = 0; b < BUCKETS; b++) buckets[b] = counters.sum(b);
+        return new PreferenceStats.Histogram(buckets, counters.sum(BUCKETS));
+    }
+}
@@ -0,0 +1,23 @@
+package net.shiftstudios.tools.android.sharedprefs;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+
+/**
+ * Migration which edits the parsed JSON tree of a value, for example to rename or move the
+ * fields of an object.
+ */
+public abstract class JsonMigration implements Migration {
+
+    /**
+     * @param key   Key the value was put with
+     * @param value Value at the previous version
+     * @return Value at the new version, which may be the same tree modified
+     */
+    public abstract JsonElement migrate(String key, JsonElement value);
+
+    @Override
+    public final String migrate(String key, String json) {
+        return migrate(key, new JsonParser().parse(json)).toString();
+    }
+}
@@ -0,0 +1,54 @@
+package net.shiftstudios.tools.android.sharedprefs;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Selects which keys a subscription is notified about. Filters match the key a value was put
+ * with, so an array matches by its own key rather than by the entries it is stored in.
+ */
+public abstract class KeyFilter {
+
+    KeyFilter() {
+    }
+
+    abstract boolean matches(String key);
+
+    /**
+     * Matches every key.
+     */
+    public static KeyFilter any() {
+        return new KeyFilter() {
+            @Override
+            boolean matches(String key) {
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Matches exactly the given keys.
+     */
+    public static KeyFilter keys(String... keys) {
+        final Set<String> set = new HashSet<String>(Arrays.asList(keys));
+        return new KeyFilter() {
+            @Override
+            boolean matches(String key) {
+                return set.contains(key);
+            }
+        };
+    }
+
+    /**
+     * Matches every key starting with a prefix.
+     */
+    public static KeyFilter prefix(final String prefix) {
+        return new KeyFilter() {
+            @Override
+            boolean matches(String key) {
+                return key.startsWith(prefix);
+            }
+        };
+    }
+}
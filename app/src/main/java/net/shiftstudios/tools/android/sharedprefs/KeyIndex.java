@@ -0,0 +1,333 @@
+package net.shiftstudios.tools.android.sharedprefs;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * Sorted set of every key stored in an engine, so the keys under a prefix are found without
+ * copying and boxing the whole store.
+ * <p>
+ * The index is a listener on the engine, which catches changes made anywhere. Batches of the
+ * helper which owns the index also update it as soon as they are written, since some engines
+ * report changes late. An update asks the engine whether the key is still there, so updates
+ * arriving late or twice do no harm. When the helper's engine is replaced, as by write-behind
+ * mode, the index is bound to the new one and filled again, so buffered writes are seen.
+ * <p>
+ * The index can also keep the set of orphaned array entries, judging each key as it changes,
+ * so the dead entry ratio is known without scanning the store. Entries orphaned by a change to
+ * another key made outside the helper are only found by the next full scan.
+ */
+final class KeyIndex implements StorageEngine.Listener {
+
+    private volatile StorageEngine s;
+    private final TreeSet<String> keys = new TreeSet<String>();
+    private Set<String> orphans;
+
+    /**
+     * Values of the engine as a map, for {@link ArrayCompactor#isOrphan(Map, String)}.
+     */
+    private final Map<String, Object> view = new AbstractMap<String, Object>() {
+        @Override
+        public Object get(Object key) {
+            return read(s, (String) key);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return s.contains((String) key);
+        }
+
+        @Override
+        public Set<Entry<String, Object>> entrySet() {
+            throw new UnsupportedOperationException();
+        }
+    };
+
+    /**
+     * Fills the index from the engine and keeps it up to date from now on.
+     */
+    KeyIndex(StorageEngine s) {
+        bind(s);
+    }
+
+    /**
+     * Fills the index from an engine and keeps it up to date from now on, unless it is bound
+     * to that engine already.
+     */
+    void bind(StorageEngine s) {
+        if (this.s == s) return;
+        synchronized (this) {
+            if (this.s == s) return;
+            if (this.s != null) this.s.removeListener(this);
+            this.s = s;
+            // Listening first, so a change made while the keys are read is not missed.
+            s.addListener(this);
+            update(null);
+        }
+    }
+
+    @Override
+    public void onChanged(StorageEngine engine, String key) {
+        update(key);
+    }
+
+    /**
+     * @param key Key which changed, or null to reload every key
+     */
+    private synchronized void update(String key) {
+        if (key == null) {
+            Map<String, ?> all = s.getAll();
+            keys.clear();
+            keys.addAll(all.keySet());
+            if (orphans != null) orphans = new HashSet<String>(ArrayCompactor.findOrphans(all));
+        } else {
+            if (s.contains(key)) keys.add(key);
+            else keys.remove(key);
+            if (orphans != null) judge(key);
+        }
+    }
+
+    /**
+     * Judges whether a changed key is orphaned, and when it holds an array's layout, the
+     * entries of the array as well. The caller must hold the lock of this object.
+     */
+    private void judge(String key) {
+        judgeKey(key);
+        if (!key.endsWith(PackedArrays.SUFFIX) && !key.endsWith(ArrayCompactor.LENGTH_SUFFIX)
+                && !key.endsWith(ArrayCompactor.TYPE_SUFFIX)) {
+            return;
+        }
+        ArrayKeys array = new ArrayKeys(ArrayKeys.baseOf(key));
+        judgeKey(array.length());
+        judgeKey(array.type());
+        for (String element : keys.tailSet(array.base + '[')) {
+            if (!element.startsWith(array.base + '[')) break;
+            judgeKey(element);
+        }
+        for (String chunk : keys.tailSet(array.packed + '#')) {
+            if (!chunk.startsWith(array.packed + '#')) break;
+            judgeKey(chunk);
+        }
+    }
+
+    private void judgeKey(String key) {
+        if (keys.contains(key) && ArrayCompactor.isOrphan(view, key)) orphans.add(key);
+        else orphans.remove(key);
+    }
+
+    /**
+     * Starts keeping the set of orphaned array entries, with one full scan.
+     */
+    synchronized void trackOrphans() {
+        if (orphans == null) orphans = new HashSet<String>(ArrayCompactor.findOrphans(s.getAll()));
+    }
+
+    /**
+     * @return Ratio of orphaned array entries to all entries, as tracked
+     */
+    synchronized float deadEntryRatio() {
+        return keys.isEmpty() || orphans == null ? 0 : (float) orphans.size() / keys.size();
+    }
+
+    /**
+     * Checks if a key holds a compression dictionary or expiry data, which are left out of
+     * listings. The caller must hold the lock of this object.
+     */
+    private boolean isHidden(String key) {
+        return ValueCompression.isMetadata(key)
+                || EntryExpiry.isMetadata(key) && keys.contains(EntryExpiry.MARKER);
+    }
+
+    /**
+     * @return Keys starting with the prefix, in order
+     */
+    synchronized SortedSet<String> keys(String prefix) {
+        TreeSet<String> found = new TreeSet<String>();
+        for (String key : keys.tailSet(prefix)) {
+            if (!key.startsWith(prefix)) break;
+            if (!isHidden(key)) found.add(key);
+        }
+        return Collections.unmodifiableSortedSet(found);
+    }
+
+    /**
+     * @param after Key to continue after, or null to start at the prefix
+     * @return Next key starting with the prefix, or null if there is none
+     */
+    private synchronized String next(String prefix, String after) {
+        String key = after == null ? keys.ceiling(prefix) : keys.higher(after);
+        while (key != null && key.startsWith(prefix) && isHidden(key)) key = keys.higher(key);
+        return key != null && key.startsWith(prefix) ? key : null;
+    }
+
+    /**
+     * Iterates over the entries under a prefix in key order, reading each value when the
+     * iterator reaches it. Keys written meanwhile are seen if the iterator has not passed them.
+     */
+    Iterator<Map.Entry<String, Object>> entries(final String prefix) {
+        return new Iterator<Map.Entry<String, Object>>() {
+
+            private String last;
+            private Map.Entry<String, Object> next;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null) {
+                    String key = KeyIndex.this.next(prefix, last);
+                    if (key == null) return false;
+                    last = key;
+                    Object value = read(s, key);
+                    if (value != null) next = new AbstractMap.SimpleImmutableEntry<String, Object>(key, value);
+                }
+                return true;
+            }
+
+            @Override
+            public Map.Entry<String, Object> next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                Map.Entry<String, Object> entry = next;
+                next = null;
+                return entry;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Reads a value of any type, as {@link StorageEngine#getAll()} holds it.
+     *
+     * @return Value, or null if the key holds nothing
+     */
+    static Object read(StorageEngine s, String key) {
+        if (!s.contains(key)) return null;
+        for (int type = 0; type < 6; type++) {
+            try {
+                switch (type) {
+                    case 0:
+                        return s.getString(key, null);
+                    case 1:
+                        return s.getInt(key, 0);
+                    case 2:
+                        return s.getLong(key, 0);
+                    case 3:
+                        return s.getFloat(key, 0);
+                    case 4:
+                        return s.getBoolean(key, false);
+                    default:
+                        return s.getStringSet(key, null);
+                }
+            } catch (ClassCastException e) {
+                // The key holds a value of another type.
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Wraps a batch so the index is updated with its keys once it is written.
+     */
+    StorageEngine.Batch track(StorageEngine.Batch batch) {
+        return new TrackedBatch(batch);
+    }
+
+    private final class TrackedBatch implements StorageEngine.Batch {
+
+        private final StorageEngine.Batch e;
+        private final List<String> changed = new ArrayList<String>();
+        private boolean clear;
+
+        TrackedBatch(StorageEngine.Batch e) {
+            this.e = e;
+        }
+
+        @Override
+        public StorageEngine.Batch putInt(String key, int value) {
+            e.putInt(key, value);
+            changed.add(key);
+            return this;
+        }
+
+        @Override
+        public StorageEngine.Batch putLong(String key, long value) {
+            e.putLong(key, value);
+            changed.add(key);
+            return this;
+        }
+
+        @Override
+        public StorageEngine.Batch putFloat(String key, float value) {
+            e.putFloat(key, value);
+            changed.add(key);
+            return this;
+        }
+
+        @Override
+        public StorageEngine.Batch putBoolean(String key, boolean value) {
+            e.putBoolean(key, value);
+            changed.add(key);
+            return this;
+        }
+
+        @Override
+        public StorageEngine.Batch putString(String key, String value) {
+            e.putString(key, value);
+            changed.add(key);
+            return this;
+        }
+
+        @Override
+        public StorageEngine.Batch putStringSet(String key, Set<String> value) {
+            e.putStringSet(key, value);
+            changed.add(key);
+            return this;
+        }
+
+        @Override
+        public StorageEngine.Batch remove(String key) {
+            e.remove(key);
+            changed.add(key);
+            return this;
+        }
+
+        @Override
+        public StorageEngine.Batch clear() {
+            e.clear();
+            clear = true;
+            return this;
+        }
+
+        @Override
+        public boolean commit() {
+            boolean result = e.commit();
+            written();
+            return result;
+        }
+
+        @Override
+        public void apply() {
+            e.apply();
+            written();
+        }
+
+        private void written() {
+            if (clear) {
+                update(null);
+                return;
+            }
+            for (String key : changed) update(key);
+        }
+    }
+}
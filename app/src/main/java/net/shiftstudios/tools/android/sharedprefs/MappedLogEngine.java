@@ -0,0 +1,569 @@
+package net.shiftstudios.tools.android.sharedprefs;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+
+/**
+ * Storage engine which appends every commit to a memory-mapped log file, so the cost of a
+ * write depends on the size of the change instead of the size of the store.
+ * <p>
+ * The file starts with a magic number and a version, followed by one record per commit:
+ * <pre>
+ * int   body length
+ * int   CRC32 of the body
+ * body: byte  flags (1 = clear before applying)
+ *       int   entry count
+ *       entries: byte type, int key length, key (UTF-8), value
+ * </pre>
+ * Values are 4 byte ints and floats, 8 byte longs, 1 byte booleans, length-prefixed UTF-8
+ * strings, and counted lists of strings for string sets. A record is applied on open only if
+ * it is complete and its CRC matches, so a commit torn by a crash is dropped as a whole, and
+ * the next commit overwrites it.
+ * <p>
+ * Every value is kept in memory, so reads never touch the file. When the share of the log
+ * taken by overwritten values passes the compaction threshold, the live values are rewritten
+ * into a new file on a background thread, which replaces the log atomically.
+ */
+public class MappedLogEngine implements StorageEngine {
+
+    private static final int MAGIC = 0x5350484c;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int MIN_CAPACITY = 64 * 1024;
+    private static final long MIN_COMPACTION_SIZE = 64 * 1024;
+
+    private static final byte FLAG_CLEAR = 1;
+
+    private static final byte REMOVE = 0;
+    private static final byte INT = 1;
+    private static final byte LONG = 2;
+    private static final byte FLOAT = 3;
+    private static final byte BOOLEAN = 4;
+    private static final byte STRING = 5;
+    private static final byte STRING_SET = 6;
+
+    private static final Object REMOVED = new Object();
+
+    private final File file;
+    private final Map<String, Object> values = new HashMap<String, Object>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+    private final Object writeLock = new Object();
+
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int end;
+    private long liveBytes;
+
+    private float compactionThreshold = 0.5f;
+    private ExecutorService compactor;
+    private boolean compactionScheduled;
+
+    /**
+     * Opens a log file, creating it if it does not exist, and loads every value in it.
+     *
+     * @param file Log file
+     * @throws IOException if the file cannot be read or mapped
+     */
+    public MappedLogEngine(File file) throws IOException {
+        this.file = file;
+        open();
+    }
+
+    private void open() throws IOException {
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+
+        long size = channel.size();
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(MIN_CAPACITY, size));
+        if (size < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            buffer.putInt(HEADER_SIZE, 0);
+            end = HEADER_SIZE;
+            return;
+        }
+        if (buffer.getInt(4) != VERSION) throw new IOException("Unsupported log version in " + file);
+
+        replay();
+    }
+
+    /**
+     * Applies every intact record, and drops everything after the first broken one.
+     */
+    private void replay() {
+        int position = HEADER_SIZE;
+        CRC32 crc = new CRC32();
+        while (position + RECORD_HEADER_SIZE <= buffer.capacity()) {
+            int length = buffer.getInt(position);
+            if (length <= 0 || length > buffer.capacity() - position - RECORD_HEADER_SIZE) break;
+
+            byte[] body = new byte[length];
+            ByteBuffer view = buffer.duplicate();
+            view.position(position + RECORD_HEADER_SIZE);
+            view.get(body);
+            crc.reset();
+            crc.update(body, 0, length);
+            if ((int) crc.getValue() != buffer.getInt(position + 4)) break;
+
+            apply(ByteBuffer.wrap(body));
+            position += RECORD_HEADER_SIZE + length;
+        }
+        end = position;
+        if (end + 4 <= buffer.capacity()) buffer.putInt(end, 0);
+    }
+
+    private void apply(ByteBuffer body) {
+        if ((body.get() & FLAG_CLEAR) != 0) {
+            values.clear();
+            liveBytes = 0;
+        }
+
+        int count = body.getInt();
+        for (int i = 0; i < count; i++) {
+            byte type = body.get();
+            String key = readString(body);
+            Object value = readValue(type, body);
+            put(key, value != null ? value : REMOVED);
+        }
+    }
+
+    /**
+     * Reads the value of an entry.
+     *
+     * @return Value, or null if the entry removes its key
+     */
+    static Object readValue(byte type, ByteBuffer body) {
+        switch (type) {
+            case INT:
+                return body.getInt();
+            case LONG:
+                return body.getLong();
+            case FLOAT:
+                return body.getFloat();
+            case BOOLEAN:
+                return body.get() != 0;
+            case STRING:
+                return readString(body);
+            case STRING_SET:
+                int size = body.getInt();
+                Set<String> set = new HashSet<String>();
+                for (int j = 0; j < size; j++) set.add(readString(body));
+                return Collections.unmodifiableSet(set);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Updates the in-memory value of a key.
+     *
+     * @return true if the value changed
+     */
+    private boolean put(String key, Object value) {
+        Object old = value == REMOVED ? values.remove(key) : values.put(key, value);
+        if (old != null) liveBytes -= entrySize(key, old);
+        if (value != REMOVED) liveBytes += entrySize(key, value);
+        return old == null ? value != REMOVED : !old.equals(value);
+    }
+
+    /**
+     * Sets the share of the log taken by overwritten values above which the log is compacted
+     * in the background. The default is 0.5.
+     *
+     * @param ratio Garbage ratio between 0 and 1
+     */
+    public void setCompactionThreshold(float ratio) {
+        this.compactionThreshold = ratio;
+    }
+
+    /**
+     * Gets the share of the log taken by overwritten or removed values.
+     *
+     * @return Ratio between 0 and 1
+     */
+    public float getGarbageRatio() {
+        synchronized (writeLock) {
+            int logBytes = end - HEADER_SIZE;
+            return logBytes == 0 ? 0 : 1 - (float) liveBytes / logBytes;
+        }
+    }
+
+    /**
+     * Rewrites the log with only the live values, on the calling thread.
+     *
+     * @throws IOException if the new log cannot be written
+     */
+    public void compact() throws IOException {
+        synchronized (writeLock) {
+            Map<String, Object> live;
+            synchronized (this) {
+                live = new LinkedHashMap<String, Object>(values);
+            }
+
+            File tmp = new File(file.getPath() + ".tmp");
+            RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+            try {
+                out.setLength(0);
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(MAGIC).putInt(VERSION);
+                out.write(header.array());
+                if (!live.isEmpty()) out.write(encode(false, live));
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+
+            buffer.force();
+            channel.close();
+            raf.close();
+            boolean replaced = tmp.renameTo(file);
+
+            synchronized (this) {
+                values.clear();
+                liveBytes = 0;
+                open();
+            }
+            if (!replaced) throw new IOException("Could not replace " + file);
+        }
+    }
+
+    /**
+     * Closes the log file. The engine must not be used afterwards.
+     */
+    public void close() throws IOException {
+        synchronized (writeLock) {
+            if (compactor != null) compactor.shutdown();
+            buffer.force();
+            channel.close();
+            raf.close();
+        }
+    }
+
+    private void compactIfNeeded() {
+        if (end < MIN_COMPACTION_SIZE || getGarbageRatio() <= compactionThreshold) return;
+
+        synchronized (writeLock) {
+            if (compactionScheduled) return;
+            compactionScheduled = true;
+            if (compactor == null) {
+                compactor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "MappedLogEngine-compactor");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+            }
+        }
+
+        compactor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    compact();
+                } catch (IOException e) {
+                    // The old log is still intact, so compaction is retried on a later commit.
+                } finally {
+                    synchronized (writeLock) {
+                        compactionScheduled = false;
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Appends a record and applies it in memory.
+     */
+    private boolean append(boolean clear, Map<String, Object> changes, boolean force) {
+        List<String> changed = new ArrayList<String>(changes.size());
+        synchronized (writeLock) {
+            byte[] record = encode(clear, changes);
+            try {
+                ensureCapacity(end + record.length + 4);
+            } catch (IOException e) {
+                return false;
+            }
+
+            ByteBuffer view = buffer.duplicate();
+            view.position(end);
+            view.put(record);
+            view.putInt(0);
+            end += record.length;
+            if (force) buffer.force();
+
+            synchronized (this) {
+                if (clear) {
+                    values.clear();
+                    liveBytes = 0;
+                }
+                for (Map.Entry<String, Object> entry : changes.entrySet()) {
+                    if (put(entry.getKey(), entry.getValue())) changed.add(entry.getKey());
+                }
+            }
+        }
+
+        if (clear) {
+            for (Listener listener : listeners) listener.onChanged(this, null);
+        }
+        for (String key : changed) {
+            for (Listener listener : listeners) listener.onChanged(this, key);
+        }
+        compactIfNeeded();
+        return true;
+    }
+
+    private void ensureCapacity(int capacity) throws IOException {
+        if (capacity <= buffer.capacity()) return;
+
+        long newCapacity = buffer.capacity();
+        while (newCapacity < capacity) newCapacity *= 2;
+        buffer.force();
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, newCapacity);
+    }
+
+    /**
+     * Encodes a record: its length, its CRC32 and its body.
+     */
+    static byte[] encode(boolean clear, Map<String, Object> changes) {
+        int size = 5;
+        for (Map.Entry<String, Object> entry : changes.entrySet()) {
+            size += entrySize(entry.getKey(), entry.getValue());
+        }
+
+        ByteBuffer b = ByteBuffer.allocate(RECORD_HEADER_SIZE + size);
+        b.putInt(size);
+        b.putInt(0);
+        b.put(clear ? FLAG_CLEAR : 0);
+        b.putInt(changes.size());
+        for (Map.Entry<String, Object> entry : changes.entrySet()) {
+            Object value = entry.getValue();
+            if (value == REMOVED) {
+                b.put(REMOVE);
+                writeString(b, entry.getKey());
+            } else if (value instanceof Integer) {
+                b.put(INT);
+                writeString(b, entry.getKey());
+                b.putInt((Integer) value);
+            } else if (value instanceof Long) {
+                b.put(LONG);
+                writeString(b, entry.getKey());
+                b.putLong((Long) value);
+            } else if (value instanceof Float) {
+                b.put(FLOAT);
+                writeString(b, entry.getKey());
+                b.putFloat((Float) value);
+            } else if (value instanceof Boolean) {
+                b.put(BOOLEAN);
+                writeString(b, entry.getKey());
+                b.put((byte) ((Boolean) value ? 1 : 0));
+            } else if (value instanceof String) {
+                b.put(STRING);
+                writeString(b, entry.getKey());
+                writeString(b, (String) value);
+            } else {
+                Set<?> set = (Set<?>) value;
+                b.put(STRING_SET);
+                writeString(b, entry.getKey());
+                b.putInt(set.size());
+                for (Object element : set) writeString(b, (String) element);
+            }
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(b.array(), RECORD_HEADER_SIZE, size);
+        b.putInt(4, (int) crc.getValue());
+        return b.array();
+    }
+
+    /**
+     * Gets how many bytes an entry takes in a record.
+     */
+    private static int entrySize(String key, Object value) {
+        int size = 1 + stringSize(key);
+        if (value instanceof Integer || value instanceof Float) return size + 4;
+        if (value instanceof Long) return size + 8;
+        if (value instanceof Boolean) return size + 1;
+        if (value instanceof String) return size + stringSize((String) value);
+        if (value instanceof Set) {
+            size += 4;
+            for (Object element : (Set<?>) value) size += stringSize((String) element);
+        }
+        return size;
+    }
+
+    private static int stringSize(String s) {
+        int size = 4;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) size += 1;
+            else if (c < 0x800) size += 2;
+            else if (Character.isHighSurrogate(c)) {
+                size += 4;
+                i++;
+            } else size += 3;
+        }
+        return size;
+    }
+
+    private static void writeString(ByteBuffer b, String s) {
+        byte[] bytes = PackedArrays.utf8(s);
+        b.putInt(bytes.length);
+        b.put(bytes);
+    }
+
+    static String readString(ByteBuffer b) {
+        int length = b.getInt();
+        String s = PackedArrays.utf8(b.array(), b.arrayOffset() + b.position(), length);
+        b.position(b.position() + length);
+        return s;
+    }
+
+    private synchronized Object get(String key) {
+        return values.get(key);
+    }
+
+    @Override
+    public synchronized boolean contains(String key) {
+        return values.containsKey(key);
+    }
+
+    @Override
+    public int getInt(String key, int defValue) {
+        Integer value = (Integer) get(key);
+        return value != null ? value : defValue;
+    }
+
+    @Override
+    public long getLong(String key, long defValue) {
+        Long value = (Long) get(key);
+        return value != null ? value : defValue;
+    }
+
+    @Override
+    public float getFloat(String key, float defValue) {
+        Float value = (Float) get(key);
+        return value != null ? value : defValue;
+    }
+
+    @Override
+    public boolean getBoolean(String key, boolean defValue) {
+        Boolean value = (Boolean) get(key);
+        return value != null ? value : defValue;
+    }
+
+    @Override
+    public String getString(String key, String defValue) {
+        String value = (String) get(key);
+        return value != null ? value : defValue;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Set<String> getStringSet(String key, Set<String> defValues) {
+        Set<String> value = (Set<String>) get(key);
+        return value != null ? value : defValues;
+    }
+
+    @Override
+    public synchronized Map<String, ?> getAll() {
+        return new HashMap<String, Object>(values);
+    }
+
+    @Override
+    public Batch edit() {
+        return new LogBatch();
+    }
+
+    @Override
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    private class LogBatch implements Batch {
+
+        private final Map<String, Object> changes = new LinkedHashMap<String, Object>();
+        private boolean clear;
+
+        private Batch put(String key, Object value) {
+            changes.put(key, value == null ? REMOVED : value);
+            return this;
+        }
+
+        @Override
+        public Batch putInt(String key, int value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Batch putLong(String key, long value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Batch putFloat(String key, float value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Batch putBoolean(String key, boolean value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Batch putString(String key, String value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Batch putStringSet(String key, Set<String> value) {
+            return put(key, value == null ? null : Collections.unmodifiableSet(new HashSet<String>(value)));
+        }
+
+        @Override
+        public Batch remove(String key) {
+            return put(key, null);
+        }
+
+        @Override
+        public Batch clear() {
+            clear = true;
+            return this;
+        }
+
+        @Override
+        public boolean commit() {
+            return append(clear, changes, true);
+        }
+
+        @Override
+        public void apply() {
+            append(clear, changes, false);
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package net.shiftstudios.tools.android.sharedprefs;
+
+/**
+ * Upgrades a stored object or array from one version of its schema to the next. A migration
+ * is registered with the version it upgrades to, by
+ * {@link SharedPreferencesHelper#registerMigration(String, int, Migration)} or
+ * {@link SharedPreferencesHelper#registerPrefixMigration(String, int, Migration)}.
+ */
+public interface Migration {
+
+    /**
+     * @param key  Key the value was put with
+     * @param json Value at the previous version, as JSON. Arrays are JSON arrays.
+     * @return Value at the new version, as JSON
+     */
+    String migrate(String key, String json);
+}
@@ -0,0 +1,100 @@
+package net.shiftstudios.tools.android.sharedprefs;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Migrations registered by key and by key prefix. A key is migrated by the migrations of its
+ * own key if it has any, or else by those of the longest prefix it starts with.
+ * <p>
+ * The version of a stored value is kept next to it in {@code key.schemaVersion}, and a value
+ * without one is at version 0. Only values holding a JSON object or array are migrated.
+ */
+final class Migrations {
+
+    static final String VERSION_SUFFIX = ".schemaVersion";
+    /**
+     * Version recorded for a plain string put under a key with migrations, so it is never
+     * taken for an object.
+     */
+    static final int PLAIN = Integer.MAX_VALUE;
+
+    private final Map<String, TreeMap<Integer, Migration>> keys =
+            new ConcurrentHashMap<String, TreeMap<Integer, Migration>>();
+    private final Map<String, TreeMap<Integer, Migration>> prefixes =
+            new ConcurrentHashMap<String, TreeMap<Integer, Migration>>();
+    private volatile boolean empty = true;
+
+    boolean isEmpty() {
+        return empty;
+    }
+
+    synchronized void register(String key, boolean prefix, int version, Migration migration) {
+        if (version < 1) throw new IllegalArgumentException("Migration versions start at 1");
+
+        Map<String, TreeMap<Integer, Migration>> map = prefix ? prefixes : keys;
+        TreeMap<Integer, Migration> chain = map.get(key);
+        chain = chain == null ? new TreeMap<Integer, Migration>() : new TreeMap<Integer, Migration>(chain);
+        if (chain.containsKey(version)) {
+            throw new IllegalArgumentException("Version " + version + " of " + key + " is already registered");
+        }
+        chain.put(version, migration);
+        map.put(key, chain);
+        empty = false;
+    }
+
+    /**
+     * @return Migrations of a key by version, or null if it has none
+     */
+    private TreeMap<Integer, Migration> chain(String key) {
+        TreeMap<Integer, Migration> chain = keys.get(key);
+        if (chain != null || prefixes.isEmpty()) return chain;
+
+        int longest = -1;
+        for (Map.Entry<String, TreeMap<Integer, Migration>> entry : prefixes.entrySet()) {
+            String prefix = entry.getKey();
+            if (prefix.length() > longest && key.startsWith(prefix)) {
+                chain = entry.getValue();
+                longest = prefix.length();
+            }
+        }
+        return chain;
+    }
+
+    /**
+     * Gets the version values of a key are written at.
+     *
+     * @return Latest registered version, or 0 if the key has no migrations
+     */
+    int target(String key) {
+        if (empty) return 0;
+        TreeMap<Integer, Migration> chain = chain(key);
+        return chain != null ? chain.lastKey() : 0;
+    }
+
+    /**
+     * Checks if a stored string can be migrated, as only objects and arrays are.
+     */
+    static boolean isMigratable(String json) {
+        if (json == null) return false;
+        for (int i = 0; i < json.length(); i++) {
+            char c = json.charAt(i);
+            if (!Character.isWhitespace(c)) return c == '{' || c == '[';
+        }
+        return false;
+    }
+
+    /**
+     * Gets the migrations a value at a version has yet to go through.
+     *
+     * @return Migrations in order, or null if the value is up to date
+     */
+    SortedMap<Integer, Migration> pending(String key, int version) {
+        if (empty) return null;
+        TreeMap<Integer, Migration> chain = chain(key);
+        if (chain == null || chain.lastKey() <= version) return null;
+        return chain.tailMap(version + 1);
+    }
+}
@@ -0,0 +1,450 @@
+package net.shiftstudios.tools.android.sharedprefs;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Storage engine which several processes can share, unlike SharedPreferences whose
+ * {@code MODE_MULTI_PROCESS} is deprecated and never guaranteed coherent reads.
+ * <p>
+ * Three files make up a store:
+ * <ul>
+ * <li>{@code name.data}, every value in a single record of the {@link MappedLogEngine}
+ * format, replaced atomically by each commit;</li>
+ * <li>{@code name.version}, a memory-mapped counter incremented after each commit;</li>
+ * <li>{@code name.lock}, locked by the process which is writing.</li>
+ * </ul>
+ * Every read compares the mapped counter with the one the values in memory were loaded at,
+ * which costs a memory read, and only reloads the data file if another process has committed
+ * since. Writers take the file lock, so commits of several processes are serialized, and a
+ * writer only reloads when another process committed after its last read. Listeners hear
+ * about changes made by other processes while at least one is registered, through a poller
+ * which checks the counter periodically.
+ * <p>
+ * Both {@link Batch#commit()} and {@link Batch#apply()} write the data file, sync it to disk
+ * and rename it over the old one before they return, so they block the calling thread, the
+ * main thread included.
+ */
+public class MultiProcessEngine implements StorageEngine {
+
+    private static final int MAGIC = 0x5350484d;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    private static final Object REMOVED = new Object();
+
+    /**
+     * A process holds a file lock for all its threads, so engines of one process on the same
+     * store also share a monitor.
+     */
+    private static final ConcurrentHashMap<String, Object> PROCESS_LOCKS = new ConcurrentHashMap<String, Object>();
+
+    private final File dataFile;
+    private final File tmpFile;
+    private final Object processLock;
+    private final RandomAccessFile versionFile;
+    private final MappedByteBuffer version;
+    private final RandomAccessFile lockFile;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+    private volatile Map<String, Object> values = Collections.emptyMap();
+    private volatile long loadedVersion = -1;
+
+    private long pollingPeriod = 250;
+    private ScheduledExecutorService poller;
+    private ScheduledFuture<?> polling;
+
+    /**
+     * Opens a store, creating its files if they do not exist, and loads every value in it.
+     *
+     * @param dir  Directory of the store files, shared by every process
+     * @param name Store name
+     * @throws IOException if the files cannot be read or mapped
+     */
+    public MultiProcessEngine(File dir, String name) throws IOException {
+        this.dataFile = new File(dir, name + ".data");
+        this.tmpFile = new File(dir, name + ".data.tmp");
+
+        File lock = new File(dir, name + ".lock");
+        Object created = new Object();
+        Object existing = PROCESS_LOCKS.putIfAbsent(lock.getCanonicalPath(), created);
+        this.processLock = existing != null ? existing : created;
+        this.lockFile = new RandomAccessFile(lock, "rw");
+
+        this.versionFile = new RandomAccessFile(new File(dir, name + ".version"), "rw");
+        // Mapping past the end grows the file with zeros, so every process starts at version 0.
+        this.version = versionFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, 8);
+
+        refresh();
+    }
+
+    /**
+     * Gets the number of commits made to the store by every process.
+     *
+     * @return Version of the store
+     */
+    public long getVersion() {
+        return version.getLong(0);
+    }
+
+    /**
+     * Changes how often the poller checks for commits of other processes while listeners are
+     * registered. The default is 250 milliseconds.
+     *
+     * @param millis Time in milliseconds between checks
+     */
+    public synchronized void setPollingPeriod(long millis) {
+        this.pollingPeriod = millis;
+        if (polling != null) {
+            stopPolling();
+            startPolling();
+        }
+    }
+
+    /**
+     * Stops polling and closes the store files. The engine must not be used afterwards.
+     */
+    public synchronized void close() throws IOException {
+        stopPolling();
+        if (poller != null) poller.shutdown();
+        versionFile.close();
+        lockFile.close();
+    }
+
+    /**
+     * Reloads the values if another process has committed since they were loaded.
+     */
+    private Map<String, Object> refresh() {
+        if (version.getLong(0) == loadedVersion) return values;
+
+        List<String> changed;
+        Map<String, Object> current;
+        synchronized (this) {
+            Map<String, Object> before = values;
+            try {
+                load();
+            } catch (IOException e) {
+                // Keeps serving the values last loaded, and tries again on the next read.
+                return before;
+            }
+            current = values;
+            changed = diff(before, current);
+        }
+        notifyChanged(changed);
+        return current;
+    }
+
+    /**
+     * Loads the data file if its version is not the one loaded. The caller must hold the
+     * monitor of this engine.
+     */
+    private void load() throws IOException {
+        // Read before the data file: a commit renames the file before it increments the
+        // counter, so the values are at least as new as the version they are recorded at.
+        long current = version.getLong(0);
+        if (current == loadedVersion) return;
+        values = read();
+        loadedVersion = current;
+    }
+
+    private Map<String, Object> read() throws IOException {
+        if (!dataFile.exists()) return Collections.emptyMap();
+
+        byte[] bytes;
+        FileInputStream in = new FileInputStream(dataFile);
+        try {
+            bytes = new byte[(int) in.getChannel().size()];
+            int n = 0;
+            while (n < bytes.length) {
+                int read = in.read(bytes, n, bytes.length - n);
+                if (read < 0) throw new IOException("Unexpected end of " + dataFile);
+                n += read;
+            }
+        } finally {
+            in.close();
+        }
+
+        ByteBuffer b = ByteBuffer.wrap(bytes);
+        if (bytes.length < HEADER_SIZE + RECORD_HEADER_SIZE || b.getInt() != MAGIC) {
+            throw new IOException("Not a store file: " + dataFile);
+        }
+        if (b.getInt() != VERSION) throw new IOException("Unsupported store version in " + dataFile);
+
+        int length = b.getInt();
+        int checksum = b.getInt();
+        if (length != bytes.length - HEADER_SIZE - RECORD_HEADER_SIZE) throw new IOException("Truncated " + dataFile);
+        CRC32 crc = new CRC32();
+        crc.update(bytes, HEADER_SIZE + RECORD_HEADER_SIZE, length);
+        if ((int) crc.getValue() != checksum) throw new IOException("Corrupt " + dataFile);
+
+        b.get();
+        int count = b.getInt();
+        Map<String, Object> loaded = new HashMap<String, Object>(count * 2);
+        for (int i = 0; i < count; i++) {
+            byte type = b.get();
+            String key = MappedLogEngine.readString(b);
+            Object value = MappedLogEngine.readValue(type, b);
+            if (value != null) loaded.put(key, value);
+        }
+        return Collections.unmodifiableMap(loaded);
+    }
+
+    private void write(Map<String, Object> all) throws IOException {
+        byte[] record = MappedLogEngine.encode(false, all);
+        FileOutputStream out = new FileOutputStream(tmpFile);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION);
+            out.write(header.array());
+            out.write(record);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tmpFile.renameTo(dataFile)) throw new IOException("Could not replace " + dataFile);
+    }
+
+    /**
+     * Applies a batch under the store lock of every process.
+     */
+    private boolean commit(boolean clear, Map<String, Object> changes) {
+        List<String> changed;
+        synchronized (processLock) {
+            FileLock lock = null;
+            try {
+                lock = lockFile.getChannel().lock();
+                synchronized (this) {
+                    Map<String, Object> before = values;
+                    load();
+
+                    Map<String, Object> updated = clear
+                            ? new HashMap<String, Object>()
+                            : new HashMap<String, Object>(values);
+                    for (Map.Entry<String, Object> entry : changes.entrySet()) {
+                        if (entry.getValue() == REMOVED) updated.remove(entry.getKey());
+                        else updated.put(entry.getKey(), entry.getValue());
+                    }
+                    updated = Collections.unmodifiableMap(updated);
+                    // Listeners also hear about commits of other processes loaded above.
+                    changed = diff(before, updated);
+                    if (!diff(values, updated).isEmpty()) {
+                        write(updated);
+                        long next = loadedVersion + 1;
+                        version.putLong(0, next);
+                        values = updated;
+                        loadedVersion = next;
+                    }
+                }
+            } catch (IOException e) {
+                return false;
+            } finally {
+                if (lock != null) {
+                    try {
+                        lock.release();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        }
+        notifyChanged(changed);
+        return true;
+    }
+
+    private static List<String> diff(Map<String, Object> before, Map<String, Object> after) {
+        List<String> changed = new ArrayList<String>();
+        for (Map.Entry<String, Object> entry : after.entrySet()) {
+            if (!entry.getValue().equals(before.get(entry.getKey()))) changed.add(entry.getKey());
+        }
+        for (String key : before.keySet()) {
+            if (!after.containsKey(key)) changed.add(key);
+        }
+        return changed;
+    }
+
+    private void notifyChanged(List<String> keys) {
+        for (String key : keys) {
+            for (Listener listener : listeners) listener.onChanged(this, key);
+        }
+    }
+
+    private void startPolling() {
+        if (poller == null) {
+            poller = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "MultiProcessEngine-poller");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        polling = poller.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                refresh();
+            }
+        }, pollingPeriod, pollingPeriod, TimeUnit.MILLISECONDS);
+    }
+
+    private void stopPolling() {
+        if (polling != null) polling.cancel(false);
+        polling = null;
+    }
+
+    @Override
+    public boolean contains(String key) {
+        return refresh().containsKey(key);
+    }
+
+    @Override
+    public int getInt(String key, int defValue) {
+        Object value = refresh().get(key);
+        return value != null ? (Integer) value : defValue;
+    }
+
+    @Override
+    public long getLong(String key, long defValue) {
+        Object value = refresh().get(key);
+        return value != null ? (Long) value : defValue;
+    }
+
+    @Override
+    public float getFloat(String key, float defValue) {
+        Object value = refresh().get(key);
+        return value != null ? (Float) value : defValue;
+    }
+
+    @Override
+    public boolean getBoolean(String key, boolean defValue) {
+        Object value = refresh().get(key);
+        return value != null ? (Boolean) value : defValue;
+    }
+
+    @Override
+    public String getString(String key, String defValue) {
+        Object value = refresh().get(key);
+        return value != null ? (String) value : defValue;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Set<String> getStringSet(String key, Set<String> defValues) {
+        Set<String> value = (Set<String>) refresh().get(key);
+        return value != null ? value : defValues;
+    }
+
+    @Override
+    public Map<String, ?> getAll() {
+        return refresh();
+    }
+
+    @Override
+    public Batch edit() {
+        return new ProcessBatch();
+    }
+
+    @Override
+    public synchronized void addListener(Listener listener) {
+        listeners.add(listener);
+        if (polling == null) startPolling();
+    }
+
+    @Override
+    public synchronized void removeListener(Listener listener) {
+        listeners.remove(listener);
+        if (listeners.isEmpty()) stopPolling();
+    }
+
+    private class ProcessBatch implements Batch {
+
+        private final Map<String, Object> changes = new LinkedHashMap<String, Object>();
+        private boolean clear;
+
+        private Batch put(String key, Object value) {
+            changes.put(key, value == null ? REMOVED : value);
+            return this;
+        }
+
+        @Override
+        public Batch putInt(String key, int value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Batch putLong(String key, long value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Batch putFloat(String key, float value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Batch putBoolean(String key, boolean value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Batch putString(String key, String value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Batch putStringSet(String key, Set<String> value) {
+            return put(key, value == null ? null : Collections.unmodifiableSet(new HashSet<String>(value)));
+        }
+
+        @Override
+        public Batch remove(String key) {
+            return put(key, null);
+        }
+
+        @Override
+        public Batch clear() {
+            clear = true;
+            return this;
+        }
+
+        @Override
+        public boolean commit() {
+            return MultiProcessEngine.this.commit(clear, changes);
+        }
+
+        /**
+         * Writes the changes synchronously like {@link #commit()}, as the store lock must be
+         * held by the caller's process until they are in the data file. The data file is synced
+         * to disk and renamed before this returns, so call it off the main thread, or enable
+         * {@link SharedPreferencesHelper#enableWriteBehind(long, int)} to batch writes on a
+         * background thread.
+         */
+        @Override
+        public void apply() {
+            commit();
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package net.shiftstudios.tools.android.sharedprefs;
+
+import java.lang.reflect.Type;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Least recently used cache of deserialized objects, keyed by preference key and type.
+ * <p>
+ * Every invalidation bumps a generation counter. A value read before an invalidation is not
+ * put in the cache afterwards, so a concurrent write can never leave a stale object behind.
+ * <p>
+ * With {@link ObjectCachePolicy#COPY_ON_READ}, objects are cached as JSON written by the
+ * helper's serializer, so copies go through the same codecs as stored values.
+ */
+class ObjectCache {
+
+    /**
+     * Serializer used to copy cached objects.
+     */
+    interface Json {
+
+        String toJson(Object value);
+
+        Object fromJson(String json, Type type);
+    }
+
+    private final int maxSize;
+    private final ObjectCachePolicy policy;
+    private final LinkedHashMap<CacheKey, Object> entries;
+    private long generation;
+
+    ObjectCache(final int maxSize, ObjectCachePolicy policy) {
+        this.maxSize = maxSize;
+        this.policy = policy;
+        this.entries = new LinkedHashMap<CacheKey, Object>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<CacheKey, Object> eldest) {
+                return size() > ObjectCache.this.maxSize;
+            }
+        };
+    }
+
+    /**
+     * Gets the generation to pass to {@link #put} for a value about to be read.
+     */
+    synchronized long generation() {
+        return generation;
+    }
+
+    /**
+     * Gets a cached object.
+     *
+     * @return Cached object, or null if not cached
+     */
+    Object get(Json json, String key, Type type) {
+        Object cached;
+        synchronized (this) {
+            cached = entries.get(new CacheKey(key, type));
+        }
+        if (cached == null) return null;
+        if (policy == ObjectCachePolicy.COPY_ON_READ) return json.fromJson((String) cached, type);
+        return cached;
+    }
+
+    /**
+     * Caches an object, unless the cache was invalidated since the generation was taken.
+     *
+     * @return Object the caller should return
+     */
+    Object put(Json json, String key, Type type, Object object, long generation) {
+        if (object == null) return null;
+
+        Object cached = object;
+        if (policy == ObjectCachePolicy.COPY_ON_READ) cached = json.toJson(object);
+
+        synchronized (this) {
+            if (this.generation == generation) entries.put(new CacheKey(key, type), cached);
+        }
+        return object;
+    }
+
+    /**
+     * Removes every cached object of a key.
+     */
+    synchronized void invalidate(String key) {
+        generation++;
+        Iterator<CacheKey> it = entries.keySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().key.equals(key)) it.remove();
+        }
+    }
+
+    /**
+     * Removes every cached object.
+     */
+    synchronized void invalidateAll() {
+        generation++;
+        entries.clear();
+    }
+
+    private static class CacheKey {
+
+        final String key;
+        final Type type;
+
+        CacheKey(String key, Type type) {
+            this.key = key;
+            this.type = type;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof CacheKey)) return false;
+            CacheKey other = (CacheKey) o;
+            return key.equals(other.key) && type.equals(other.type);
+        }
+
+        @Override
+        public int hashCode() {
+            return key.hashCode() * 31 + type.hashCode();
+        }
+    }
+}
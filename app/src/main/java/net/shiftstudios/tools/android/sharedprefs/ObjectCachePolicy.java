@@ -0,0 +1,18 @@
+package net.shiftstudios.tools.android.sharedprefs;
+
+/**
+ * How cached objects are handed out by {@link SharedPreferencesHelper#getObject(String, java.lang.reflect.Type)}.
+ */
+public enum ObjectCachePolicy {
+
+    /**
+     * Every caller gets the same cached instance. Callers must not modify it.
+     */
+    SHARED,
+
+    /**
+     * Every caller gets its own copy, parsed from cached JSON written with the helper's codecs,
+     * so modifying it does not affect the cache.
+     */
+    COPY_ON_READ
+}
@@ -0,0 +1,26 @@
+package net.shiftstudios.tools.android.sharedprefs;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+
+/**
+ * Reads and writes objects of a type as JSON without reflection. Codecs for classes marked
+ * with {@link PreferenceObject} are generated at compile time, and codecs can also be
+ * registered by hand with {@link SharedPreferencesHelper#registerCodec(Class, ObjectCodec)}.
+ *
+ * @param <T> Type of the objects
+ */
+public interface ObjectCodec<T> {
+
+    /**
+     * Writes an object, or a JSON null if the object is null.
+     */
+    void write(JsonWriter out, T value) throws IOException;
+
+    /**
+     * Reads an object, or returns null if the next value is a JSON null.
+     */
+    T read(JsonReader in) throws IOException;
+}
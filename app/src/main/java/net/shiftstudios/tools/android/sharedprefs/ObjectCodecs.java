@@ -0,0 +1,64 @@
+package net.shiftstudios.tools.android.sharedprefs;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Finds the codec of a class: a registered one, or the one generated for a class marked with
+ * {@link PreferenceObject}. Each class is looked up once, and the result is remembered.
+ */
+class ObjectCodecs {
+
+    static final String GENERATED_SUFFIX = "_PreferenceCodec";
+
+    private static final ObjectCodec<Object> NONE = new ObjectCodec<Object>() {
+        @Override
+        public void write(JsonWriter out, Object value) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Object read(JsonReader in) {
+            throw new UnsupportedOperationException();
+        }
+    };
+
+    private final Map<Class<?>, ObjectCodec<?>> codecs =
+            new ConcurrentHashMap<Class<?>, ObjectCodec<?>>();
+
+    <T> void register(Class<T> type, ObjectCodec<T> codec) {
+        codecs.put(type, codec);
+    }
+
+    /**
+     * @return Codec of the class, or null if the class should be handled by Gson
+     */
+    @SuppressWarnings("unchecked")
+    <T> ObjectCodec<T> find(Class<T> type) {
+        ObjectCodec<?> codec = codecs.get(type);
+        if (codec == null) {
+            codec = generated(type);
+            codecs.put(type, codec);
+        }
+        return codec == NONE ? null : (ObjectCodec<T>) codec;
+    }
+
+    private static ObjectCodec<?> generated(Class<?> type) {
+        if (type.isPrimitive() || type.isArray() || type.getClassLoader() == null) return NONE;
+
+        String name = type.getName().replace('$', '_') + GENERATED_SUFFIX;
+        try {
+            Class<?> codec = Class.forName(name, true, type.getClassLoader());
+            return (ObjectCodec<?>) codec.getField("INSTANCE").get(null);
+        } catch (ClassNotFoundException e) {
+            return NONE;
+        } catch (NoSuchFieldException e) {
+            return NONE;
+        } catch (IllegalAccessException e) {
+            return NONE;
+        }
+    }
+}
@@ -0,0 +1,308 @@
+package net.shiftstudios.tools.android.sharedprefs;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes arrays into a single string entry, instead of one entry per element.
+ * <p>
+ * A packed array is a marker, a type character and the Base64 encoded elements. The elements
+ * start with the length of the array as a 4 byte integer. Booleans are stored as bits, numbers
+ * in big endian order, and strings as a 4 byte UTF-8 length (-1 for null) followed by the bytes.
+ */
+final class PackedArrays {
+
+    static final String SUFFIX = ".array";
+
+    static final String MARKER = "\uFDD0A";
+
+    static final char BOOLEAN = 'Z';
+    static final char INTEGER = 'I';
+    static final char LONG = 'J';
+    static final char FLOAT = 'F';
+    static final char STRING = 'S';
+
+    private static final char[] BASE64 =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+    private static final int[] BASE64_INDEX = new int[128];
+
+    static {
+        for (int i = 0; i < BASE64_INDEX.length; i++) BASE64_INDEX[i] = -1;
+        for (int i = 0; i < BASE64.length; i++) BASE64_INDEX[BASE64[i]] = i;
+    }
+
+    private PackedArrays() {
+    }
+
+    /**
+     * Checks if a stored string is a packed array.
+     */
+    static boolean isPacked(String value) {
+        return value != null && value.length() > MARKER.length() && value.startsWith(MARKER);
+    }
+
+    /**
+     * Gets the type character of a packed array.
+     *
+     * @return Type character, or 0 if the value is not a packed array
+     */
+    static char typeOf(String value) {
+        return isPacked(value) ? value.charAt(MARKER.length()) : 0;
+    }
+
+    static String encode(boolean[] value) {
+        ByteBuffer b = ByteBuffer.allocate(4 + (value.length + 7) / 8);
+        b.putInt(value.length);
+        for (int i = 0; i < value.length; i++) {
+            if (value[i]) b.put(4 + i / 8, (byte) (b.get(4 + i / 8) | (1 << (i % 8))));
+        }
+        return pack(BOOLEAN, b.array());
+    }
+
+    static String encode(int[] value) {
+        ByteBuffer b = ByteBuffer.allocate(4 + value.length * 4);
+        b.putInt(value.length);
+        for (int v : value) b.putInt(v);
+        return pack(INTEGER, b.array());
+    }
+
+    static String encode(long[] value) {
+        ByteBuffer b = ByteBuffer.allocate(4 + value.length * 8);
+        b.putInt(value.length);
+        for (long v : value) b.putLong(v);
+        return pack(LONG, b.array());
+    }
+
+    static String encode(float[] value) {
+        ByteBuffer b = ByteBuffer.allocate(4 + value.length * 4);
+        b.putInt(value.length);
+        for (float v : value) b.putFloat(v);
+        return pack(FLOAT, b.array());
+    }
+
+    static String encode(String[] value) {
+        byte[][] bytes = new byte[value.length][];
+        int size = 4;
+        for (int i = 0; i < value.length; i++) {
+            if (value[i] != null) {
+                bytes[i] = utf8(value[i]);
+                size += bytes[i].length;
+            }
+            size += 4;
+        }
+
+        ByteBuffer b = ByteBuffer.allocate(size);
+        b.putInt(value.length);
+        for (byte[] element : bytes) {
+            if (element == null) {
+                b.putInt(-1);
+            } else {
+                b.putInt(element.length);
+                b.put(element);
+            }
+        }
+        return pack(STRING, b.array());
+    }
+
+    /**
+     * @return Decoded array, or null if the value is not a packed boolean array
+     */
+    static boolean[] decodeBooleanArray(String value) {
+        ByteBuffer b = unpack(value, BOOLEAN);
+        if (b == null) return null;
+
+        boolean[] array = new boolean[b.getInt()];
+        for (int i = 0; i < array.length; i++) array[i] = (b.get(4 + i / 8) & (1 << (i % 8))) != 0;
+        return array;
+    }
+
+    /**
+     * @return Decoded array, or null if the value is not a packed integer array
+     */
+    static int[] decodeIntArray(String value) {
+        ByteBuffer b = unpack(value, INTEGER);
+        if (b == null) return null;
+
+        int[] array = new int[b.getInt()];
+        b.asIntBuffer().get(array);
+        return array;
+    }
+
+    /**
+     * @return Decoded array, or null if the value is not a packed long array
+     */
+    static long[] decodeLongArray(String value) {
+        ByteBuffer b = unpack(value, LONG);
+        if (b == null) return null;
+
+        long[] array = new long[b.getInt()];
+        b.asLongBuffer().get(array);
+        return array;
+    }
+
+    /**
+     * @return Decoded array, or null if the value is not a packed floating point array
+     */
+    static float[] decodeFloatArray(String value) {
+        ByteBuffer b = unpack(value, FLOAT);
+        if (b == null) return null;
+
+        float[] array = new float[b.getInt()];
+        b.asFloatBuffer().get(array);
+        return array;
+    }
+
+    /**
+     * @return Decoded array, or null if the value is not a packed string array
+     */
+    static String[] decodeStringArray(String value) {
+        ByteBuffer b = unpack(value, STRING);
+        if (b == null) return null;
+
+        String[] array = new String[b.getInt()];
+        for (int i = 0; i < array.length; i++) {
+            int length = b.getInt();
+            if (length < 0) continue;
+            array[i] = utf8(b.array(), b.position(), length);
+            b.position(b.position() + length);
+        }
+        return array;
+    }
+
+    /**
+     * Encodes an array of any supported type.
+     */
+    static String encodeArray(Object array) {
+        if (array instanceof boolean[]) return encode((boolean[]) array);
+        if (array instanceof int[]) return encode((int[]) array);
+        if (array instanceof long[]) return encode((long[]) array);
+        if (array instanceof float[]) return encode((float[]) array);
+        return encode((String[]) array);
+    }
+
+    /**
+     * @return Decoded array, or null if the value is not a packed array of the type
+     */
+    static Object decodeArray(String value, char type) {
+        switch (type) {
+            case BOOLEAN:
+                return decodeBooleanArray(value);
+            case INTEGER:
+                return decodeIntArray(value);
+            case LONG:
+                return decodeLongArray(value);
+            case FLOAT:
+                return decodeFloatArray(value);
+            case STRING:
+                return decodeStringArray(value);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @return Type character of an array class, or 0 if arrays of the class cannot be packed
+     */
+    static char typeOf(Class<?> arrayType) {
+        if (arrayType == boolean[].class) return BOOLEAN;
+        if (arrayType == int[].class) return INTEGER;
+        if (arrayType == long[].class) return LONG;
+        if (arrayType == float[].class) return FLOAT;
+        if (arrayType == String[].class) return STRING;
+        return 0;
+    }
+
+    /**
+     * @return Array class of a type character, or null if there is none
+     */
+    static Class<?> arrayClass(char type) {
+        switch (type) {
+            case BOOLEAN:
+                return boolean[].class;
+            case INTEGER:
+                return int[].class;
+            case LONG:
+                return long[].class;
+            case FLOAT:
+                return float[].class;
+            case STRING:
+                return String[].class;
+            default:
+                return null;
+        }
+    }
+
+    static String pack(char type, byte[] bytes) {
+        StringBuilder sb = new StringBuilder(MARKER.length() + 1 + (bytes.length + 2) / 3 * 4);
+        sb.append(MARKER).append(type);
+        encodeBase64(bytes, sb);
+        return sb.toString();
+    }
+
+    /**
+     * @return Length-prefixed data of a packed array, without its marker and type
+     */
+    static byte[] bytesOf(String value) {
+        return decodeBase64(value, MARKER.length() + 1);
+    }
+
+    private static ByteBuffer unpack(String value, char type) {
+        if (typeOf(value) != type) return null;
+        return ByteBuffer.wrap(decodeBase64(value, MARKER.length() + 1));
+    }
+
+    static void encodeBase64(byte[] bytes, StringBuilder sb) {
+        int i = 0;
+        for (; i + 2 < bytes.length; i += 3) {
+            int n = (bytes[i] & 0xff) << 16 | (bytes[i + 1] & 0xff) << 8 | (bytes[i + 2] & 0xff);
+            sb.append(BASE64[n >>> 18]).append(BASE64[(n >>> 12) & 63])
+                    .append(BASE64[(n >>> 6) & 63]).append(BASE64[n & 63]);
+        }
+        int remaining = bytes.length - i;
+        if (remaining == 1) {
+            int n = (bytes[i] & 0xff) << 16;
+            sb.append(BASE64[n >>> 18]).append(BASE64[(n >>> 12) & 63]).append("==");
+        } else if (remaining == 2) {
+            int n = (bytes[i] & 0xff) << 16 | (bytes[i + 1] & 0xff) << 8;
+            sb.append(BASE64[n >>> 18]).append(BASE64[(n >>> 12) & 63])
+                    .append(BASE64[(n >>> 6) & 63]).append('=');
+        }
+    }
+
+    static byte[] decodeBase64(String s, int offset) {
+        int end = s.length();
+        while (end > offset && s.charAt(end - 1) == '=') end--;
+
+        int length = end - offset;
+        byte[] bytes = new byte[length * 3 / 4];
+        int n = 0, bits = 0, j = 0;
+        for (int i = offset; i < end; i++) {
+            char c = s.charAt(i);
+            int v = c < 128 ? BASE64_INDEX[c] : -1;
+            if (v < 0) throw new IllegalArgumentException("Invalid Base64 character: " + c);
+            n = n << 6 | v;
+            bits += 6;
+            if (bits >= 8) {
+                bits -= 8;
+                bytes[j++] = (byte) (n >>> bits);
+            }
+        }
+        return bytes;
+    }
+
+    static byte[] utf8(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    static String utf8(byte[] bytes, int offset, int length) {
+        try {
+            return new String(bytes, offset, length, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,411 @@
+package net.shiftstudios.tools.android.sharedprefs;
+
+import java.lang.reflect.Type;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Date;
+import java.util.Set;
+
+/**
+ * Typed handle of a preference, carrying its name, default value and how it is stored.
+ * <p>
+ * Create handles once, for example as static fields, and read and write them with
+ * {@link SharedPreferencesHelper#get(PrefKey)} and {@link SharedPreferencesHelper#put(PrefKey, Object)}.
+ * Every key name derived from the handle's name is built and interned when the handle is
+ * created, so reads and writes through the handle do not build strings.
+ *
+ * @param <T> Type of the value
+ */
+public abstract class PrefKey<T> {
+
+    final String name;
+    final T defaultValue;
+
+    PrefKey(String name, T defaultValue) {
+        this.name = name.intern();
+        this.defaultValue = defaultValue;
+    }
+
+    /**
+     * Gets the name of the preference.
+     *
+     * @return Name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Gets the value returned when nothing is assigned.
+     *
+     * @return Default value
+     */
+    public T getDefaultValue() {
+        return defaultValue;
+    }
+
+    abstract T read(SharedPreferencesHelper helper);
+
+    abstract void write(SharedPreferencesHelper.Editor editor, T value);
+
+    /**
+     * Creates a handle of a boolean preference.
+     *
+     * @param name         Name of the preference
+     * @param defaultValue Value returned when nothing is assigned
+     * @return Handle
+     * @see SharedPreferencesHelper#getBoolean(String, boolean)
+     */
+    public static PrefKey<Boolean> booleanKey(String name, boolean defaultValue) {
+        return new PrefKey<Boolean>(name, defaultValue) {
+            @Override
+            Boolean read(SharedPreferencesHelper helper) {
+                return helper.getBoolean(name, defaultValue);
+            }
+
+            @Override
+            void write(SharedPreferencesHelper.Editor editor, Boolean value) {
+                editor.putBoolean(name, value);
+            }
+        };
+    }
+
+    /**
+     * Creates a handle of an int preference.
+     *
+     * @param name         Name of the preference
+     * @param defaultValue Value returned when nothing is assigned
+     * @return Handle
+     * @see SharedPreferencesHelper#getInt(String, int)
+     */
+    public static PrefKey<Integer> intKey(String name, int defaultValue) {
+        return new PrefKey<Integer>(name, defaultValue) {
+            @Override
+            Integer read(SharedPreferencesHelper helper) {
+                return helper.getInt(name, defaultValue);
+            }
+
+            @Override
+            void write(SharedPreferencesHelper.Editor editor, Integer value) {
+                editor.putInt(name, value);
+            }
+        };
+    }
+
+    /**
+     * Creates a handle of a long preference.
+     *
+     * @param name         Name of the preference
+     * @param defaultValue Value returned when nothing is assigned
+     * @return Handle
+     * @see SharedPreferencesHelper#getLong(String, long)
+     */
+    public static PrefKey<Long> longKey(String name, long defaultValue) {
+        return new PrefKey<Long>(name, defaultValue) {
+            @Override
+            Long read(SharedPreferencesHelper helper) {
+                return helper.getLong(name, defaultValue);
+            }
+
+            @Override
+            void write(SharedPreferencesHelper.Editor editor, Long value) {
+                editor.putLong(name, value);
+            }
+        };
+    }
+
+    /**
+     * Creates a handle of a float preference.
+     *
+     * @param name         Name of the preference
+     * @param defaultValue Value returned when nothing is assigned
+     * @return Handle
+     * @see SharedPreferencesHelper#getFloat(String, float)
+     */
+    public static PrefKey<Float> floatKey(String name, float defaultValue) {
+        return new PrefKey<Float>(name, defaultValue) {
+            @Override
+            Float read(SharedPreferencesHelper helper) {
+                return helper.getFloat(name, defaultValue);
+            }
+
+            @Override
+            void write(SharedPreferencesHelper.Editor editor, Float value) {
+                editor.putFloat(name, value);
+            }
+        };
+    }
+
+    /**
+     * Creates a handle of a string preference.
+     *
+     * @param name         Name of the preference
+     * @param defaultValue Value returned when nothing is assigned
+     * @return Handle
+     * @see SharedPreferencesHelper#getString(String, String)
+     */
+    public static PrefKey<String> stringKey(String name, String defaultValue) {
+        return new PrefKey<String>(name, defaultValue) {
+            @Override
+            String read(SharedPreferencesHelper helper) {
+                return helper.getString(name, defaultValue);
+            }
+
+            @Override
+            void write(SharedPreferencesHelper.Editor editor, String value) {
+                editor.putString(name, value);
+            }
+        };
+    }
+
+    /**
+     * Creates a handle of a string set preference.
+     *
+     * @param name         Name of the preference
+     * @param defaultValue Value returned when nothing is assigned
+     * @return Handle
+     * @see SharedPreferencesHelper#getStringSet(String, Set)
+     */
+    public static PrefKey<Set<String>> stringSetKey(String name, Set<String> defaultValue) {
+        return new PrefKey<Set<String>>(name, defaultValue) {
+            @Override
+            Set<String> read(SharedPreferencesHelper helper) {
+                return helper.getStringSet(name, defaultValue);
+            }
+
+            @Override
+            void write(SharedPreferencesHelper.Editor editor, Set<String> value) {
+                editor.putStringSet(name, value);
+            }
+        };
+    }
+
+    /**
+     * Creates a handle of a BigInteger preference.
+     *
+     * @param name         Name of the preference
+     * @param defaultValue Value returned when nothing is assigned
+     * @return Handle
+     * @see SharedPreferencesHelper#getBigInteger(String, BigInteger)
+     */
+    public static PrefKey<BigInteger> bigIntegerKey(String name, BigInteger defaultValue) {
+        return new PrefKey<BigInteger>(name, defaultValue) {
+            @Override
+            BigInteger read(SharedPreferencesHelper helper) {
+                return helper.getBigInteger(name, defaultValue);
+            }
+
+            @Override
+            void write(SharedPreferencesHelper.Editor editor, BigInteger value) {
+                editor.putBigInteger(name, value);
+            }
+        };
+    }
+
+    /**
+     * Creates a handle of a BigDecimal preference.
+     *
+     * @param name         Name of the preference
+     * @param defaultValue Value returned when nothing is assigned
+     * @return Handle
+     * @see SharedPreferencesHelper#getBigDecimal(String, BigDecimal)
+     */
+    public static PrefKey<BigDecimal> bigDecimalKey(String name, BigDecimal defaultValue) {
+        return new PrefKey<BigDecimal>(name, defaultValue) {
+            @Override
+            BigDecimal read(SharedPreferencesHelper helper) {
+                return helper.getBigDecimal(name, defaultValue);
+            }
+
+            @Override
+            void write(SharedPreferencesHelper.Editor editor, BigDecimal value) {
+                editor.putBigDecimal(name, value);
+            }
+        };
+    }
+
+    /**
+     * Creates a handle of a value stored with the scalar codec of its class.
+     *
+     * @param name         Name of the preference
+     * @param type         Class of the value
+     * @param defaultValue Value returned when nothing is assigned
+     * @return Handle
+     * @see SharedPreferencesHelper#registerScalarCodec(Class, String, ScalarCodec)
+     */
+    public static <T> PrefKey<T> scalarKey(String name, final Class<T> type, T defaultValue) {
+        return new PrefKey<T>(name, defaultValue) {
+            @Override
+            T read(SharedPreferencesHelper helper) {
+                return helper.getScalar(name, type, defaultValue);
+            }
+
+            @Override
+            void write(SharedPreferencesHelper.Editor editor, T value) {
+                editor.putScalar(name, value);
+            }
+        };
+    }
+
+    /**
+     * Creates a handle of a date preference.
+     *
+     * @param name         Name of the preference
+     * @param defaultValue Default value, or null to default to the current date like
+     *                     {@link SharedPreferencesHelper#getDate(String)}
+     * @return Handle
+     */
+    public static PrefKey<Date> dateKey(String name, Date defaultValue) {
+        return new PrefKey<Date>(name, defaultValue) {
+            @Override
+            Date read(SharedPreferencesHelper helper) {
+                return defaultValue != null ? helper.getDate(name, defaultValue) : helper.getDate(name);
+            }
+
+            @Override
+            void write(SharedPreferencesHelper.Editor editor, Date value) {
+                editor.putDate(name, value);
+            }
+        };
+    }
+
+    /**
+     * Creates a handle of a boolean array preference.
+     *
+     * @param name         Name of the preference
+     * @param defaultValue Value returned when nothing is assigned
+     * @return Handle
+     */
+    public static PrefKey<boolean[]> booleanArrayKey(String name, boolean[] defaultValue) {
+        return new ArrayKey<boolean[]>(name, defaultValue) {
+            @Override
+            boolean[] read(SharedPreferencesHelper helper) {
+                return helper.getBooleanArray(keys, defaultValue);
+            }
+
+            @Override
+            void write(SharedPreferencesHelper.Editor editor, boolean[] value) {
+                editor.putBooleanArray(keys, value);
+            }
+        };
+    }
+
+    /**
+     * Creates a handle of an int array preference.
+     *
+     * @param name         Name of the preference
+     * @param defaultValue Value returned when nothing is assigned
+     * @return Handle
+     */
+    public static PrefKey<int[]> intArrayKey(String name, int[] defaultValue) {
+        return new ArrayKey<int[]>(name, defaultValue) {
+            @Override
+            int[] read(SharedPreferencesHelper helper) {
+                return helper.getIntArray(keys, defaultValue);
+            }
+
+            @Override
+            void write(SharedPreferencesHelper.Editor editor, int[] value) {
+                editor.putIntArray(keys, value);
+            }
+        };
+    }
+
+    /**
+     * Creates a handle of a long array preference.
+     *
+     * @param name         Name of the preference
+     * @param defaultValue Value returned when nothing is assigned
+     * @return Handle
+     */
+    public static PrefKey<long[]> longArrayKey(String name, long[] defaultValue) {
+        return new ArrayKey<long[]>(name, defaultValue) {
+            @Override
+            long[] read(SharedPreferencesHelper helper) {
+                return helper.getLongArray(keys, defaultValue);
+            }
+
+            @Override
+            void write(SharedPreferencesHelper.Editor editor, long[] value) {
+                editor.putLongArray(keys, value);
+            }
+        };
+    }
+
+    /**
+     * Creates a handle of a float array preference.
+     *
+     * @param name         Name of the preference
+     * @param defaultValue Value returned when nothing is assigned
+     * @return Handle
+     */
+    public static PrefKey<float[]> floatArrayKey(String name, float[] defaultValue) {
+        return new ArrayKey<float[]>(name, defaultValue) {
+            @Override
+            float[] read(SharedPreferencesHelper helper) {
+                return helper.getFloatArray(keys, defaultValue);
+            }
+
+            @Override
+            void write(SharedPreferencesHelper.Editor editor, float[] value) {
+                editor.putFloatArray(keys, value);
+            }
+        };
+    }
+
+    /**
+     * Creates a handle of a string array preference.
+     *
+     * @param name         Name of the preference
+     * @param defaultValue Value returned when nothing is assigned
+     * @return Handle
+     */
+    public static PrefKey<String[]> stringArrayKey(String name, String[] defaultValue) {
+        return new ArrayKey<String[]>(name, defaultValue) {
+            @Override
+            String[] read(SharedPreferencesHelper helper) {
+                return helper.getStringArray(keys, defaultValue);
+            }
+
+            @Override
+            void write(SharedPreferencesHelper.Editor editor, String[] value) {
+                editor.putStringArray(keys, value);
+            }
+        };
+    }
+
+    /**
+     * Creates a handle of an object stored as JSON, read with a generated codec or Gson.
+     *
+     * @param name         Name of the preference
+     * @param type         Type of the object
+     * @param defaultValue Value returned when nothing is assigned
+     * @return Handle
+     */
+    public static <T> PrefKey<T> objectKey(String name, final Type type, T defaultValue) {
+        return new PrefKey<T>(name, defaultValue) {
+            @Override
+            @SuppressWarnings("unchecked")
+            T read(SharedPreferencesHelper helper) {
+                if (!helper.contains(name)) return defaultValue;
+                T value = (T) helper.getObject(name, type);
+                return value != null ? value : defaultValue;
+            }
+
+            @Override
+            void write(SharedPreferencesHelper.Editor editor, T value) {
+                editor.putObject(name, value);
+            }
+        };
+    }
+
+    private abstract static class ArrayKey<T> extends PrefKey<T> {
+
+        final ArrayKeys keys;
+
+        ArrayKey(String name, T defaultValue) {
+            super(name, defaultValue);
+            this.keys = new ArrayKeys(this.name, true);
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package net.shiftstudios.tools.android.sharedprefs;
+
+/**
+ * Reactive streams interfaces for observing preference values, shaped like
+ * {@code java.util.concurrent.Flow}, which is not available before API 30. A publisher from
+ * {@link SharedPreferencesHelper#observe(String, java.lang.reflect.Type)} can be adapted to
+ * {@code Flow} or any other reactive library one method at a time.
+ */
+public final class PreferenceFlow {
+
+    private PreferenceFlow() {
+    }
+
+    public interface Publisher<T> {
+
+        void subscribe(Subscriber<? super T> subscriber);
+    }
+
+    public interface Subscriber<T> {
+
+        void onSubscribe(Subscription subscription);
+
+        void onNext(T item);
+
+        void onError(Throwable throwable);
+
+        void onComplete();
+    }
+
+    public interface Subscription {
+
+        /**
+         * Asks for up to {@code n} more values.
+         */
+        void request(long n);
+
+        void cancel();
+    }
+}
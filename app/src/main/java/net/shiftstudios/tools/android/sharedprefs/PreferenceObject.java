@@ -0,0 +1,22 @@
+package net.shiftstudios.tools.android.sharedprefs;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a class whose codec is generated at compile time by the processor module, so
+ * {@link SharedPreferencesHelper#putObject(String, Object)} and
+ * {@link SharedPreferencesHelper#getObject(String, java.lang.reflect.Type)} can read and
+ * write it without reflection.
+ * <p>
+ * The class needs a non-private no-argument constructor, and its non-transient fields must
+ * not be private. Fields can be primitives, boxed primitives, strings, enums, lists, and other
+ * classes marked with this annotation. The generated codec writes the same JSON as Gson, and
+ * honors {@code @SerializedName}.
+ */
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.TYPE)
+public @interface PreferenceObject {
+}
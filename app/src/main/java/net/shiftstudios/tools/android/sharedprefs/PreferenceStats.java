@@ -0,0 +1,239 @@
+package net.shiftstudios.tools.android.sharedprefs;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What a helper did since instrumentation was turned on, taken at one moment.
+ */
+public class PreferenceStats {
+
+    private final long startedAt;
+    private final long takenAt;
+    private final Map<String, KeyStats> keys;
+    private final Histogram commitLatency;
+    private final Histogram listenerLatency;
+    private final Histogram objectSizes;
+    private final Histogram arraySizes;
+
+    PreferenceStats(long startedAt, long takenAt, Map<String, KeyStats> keys,
+                    Histogram commitLatency, Histogram listenerLatency,
+                    Histogram objectSizes, Histogram arraySizes) {
+        this.startedAt = startedAt;
+        this.takenAt = takenAt;
+        this.keys = Collections.unmodifiableMap(keys);
+        this.commitLatency = commitLatency;
+        this.listenerLatency = listenerLatency;
+        this.objectSizes = objectSizes;
+        this.arraySizes = arraySizes;
+    }
+
+    /**
+     * Receives stats periodically, on a background thread.
+     */
+    public interface Reporter {
+
+        void report(PreferenceStats stats);
+    }
+
+    /**
+     * Gets when instrumentation was turned on.
+     *
+     * @return Time in milliseconds since the epoch
+     */
+    public long getStartedAt() {
+        return startedAt;
+    }
+
+    /**
+     * Gets when these stats were taken.
+     *
+     * @return Time in milliseconds since the epoch
+     */
+    public long getTakenAt() {
+        return takenAt;
+    }
+
+    /**
+     * Gets the stats of every key read or written through the helper. Arrays are counted
+     * under the key they were put with.
+     *
+     * @return Stats by key
+     */
+    public Map<String, KeyStats> getKeys() {
+        return keys;
+    }
+
+    /**
+     * Gets the keys with the most reads and writes.
+     *
+     * @param limit Maximum number of keys
+     * @return Stats of the busiest keys, busiest first
+     */
+    public List<KeyStats> getHottestKeys(int limit) {
+        List<KeyStats> sorted = new ArrayList<KeyStats>(keys.values());
+        Collections.sort(sorted, new Comparator<KeyStats>() {
+            @Override
+            public int compare(KeyStats a, KeyStats b) {
+                long x = a.reads + a.writes;
+                long y = b.reads + b.writes;
+                return x < y ? 1 : x > y ? -1 : 0;
+            }
+        });
+        return sorted.size() > limit ? sorted.subList(0, limit) : sorted;
+    }
+
+    /**
+     * Gets how long commits took, in nanoseconds. For {@code apply()}, only the time the
+     * caller waited is counted.
+     *
+     * @return Histogram of commit times
+     */
+    public Histogram getCommitLatency() {
+        return commitLatency;
+    }
+
+    /**
+     * Gets how long each listener registered through the helper took to handle a change, in
+     * nanoseconds. The time a change takes to reach every listener is the sum over them.
+     *
+     * @return Histogram of listener call times
+     */
+    public Histogram getListenerLatency() {
+        return listenerLatency;
+    }
+
+    /**
+     * Gets the lengths of objects written, in characters of JSON.
+     *
+     * @return Histogram of object lengths
+     */
+    public Histogram getObjectSizes() {
+        return objectSizes;
+    }
+
+    /**
+     * Gets the lengths of arrays written, in characters of their packed entry.
+     *
+     * @return Histogram of array lengths
+     */
+    public Histogram getArraySizes() {
+        return arraySizes;
+    }
+
+    /**
+     * Reads, writes and serialized lengths of a single key.
+     */
+    public static class KeyStats {
+
+        private final String key;
+        private final long reads;
+        private final long writes;
+        private final long payloadTotal;
+        private final int lastPayload;
+
+        KeyStats(String key, long reads, long writes, long payloadTotal, int lastPayload) {
+            this.key = key;
+            this.reads = reads;
+            this.writes = writes;
+            this.payloadTotal = payloadTotal;
+            this.lastPayload = lastPayload;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public long getReads() {
+            return reads;
+        }
+
+        public long getWrites() {
+            return writes;
+        }
+
+        /**
+         * Gets the total length of every object or array written to the key.
+         *
+         * @return Length in characters, or 0 if the key only holds plain values
+         */
+        public long getPayloadTotal() {
+            return payloadTotal;
+        }
+
+        /**
+         * Gets the length of the object or array last written to the key.
+         *
+         * @return Length in characters, or -1 if the key only holds plain values
+         */
+        public int getLastPayload() {
+            return lastPayload;
+        }
+    }
+
+    /**
+     * Counts of values in power-of-two buckets. Bucket 0 counts zeros, and bucket {@code b}
+     * counts values from {@code 2^(b-1)} up to {@code 2^b - 1}.
+     */
+    public static class Histogram {
+
+        private final long[] buckets;
+        private final long sum;
+        private final long count;
+
+        Histogram(long[] buckets, long sum) {
+            this.buckets = buckets;
+            this.sum = sum;
+            long count = 0;
+            for (long bucket : buckets) count += bucket;
+            this.count = count;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getSum() {
+            return sum;
+        }
+
+        public double getMean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        /**
+         * Gets the number of values in a bucket.
+         *
+         * @param bucket Bucket from 0 to 64
+         * @return Count
+         */
+        public long getBucket(int bucket) {
+            return buckets[bucket];
+        }
+
+        /**
+         * Gets an upper bound of a percentile: the largest value of the bucket holding it.
+         *
+         * @param percentile Percentile from 0 to 100
+         * @return Upper bound, or 0 if nothing was recorded
+         */
+        public long getPercentile(double percentile) {
+            long rank = (long) Math.ceil(count * percentile / 100);
+            long seen = 0;
+            for (int b = 0; b < buckets.length; b++) {
+                seen += buckets[b];
+                if (seen >= rank && seen > 0) return upperBound(b);
+            }
+            return 0;
+        }
+
+        private static long upperBound(int bucket) {
+            if (bucket == 0) return 0;
+            if (bucket == 64) return Long.MAX_VALUE;
+            return (1L << bucket) - 1;
+        }
+    }
+}
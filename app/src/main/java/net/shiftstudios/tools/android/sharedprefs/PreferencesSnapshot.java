@@ -0,0 +1,278 @@
+package net.shiftstudios.tools.android.sharedprefs;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable view of every value in the preferences at one version.
+ * <p>
+ * Keys are kept in an open-addressing table, and values in columns by type, so primitives are
+ * read without boxing. A snapshot never changes after it is built, so any number of threads
+ * can read it without locks. A snapshot is also a read-only {@link StorageEngine}, so a
+ * {@link SharedPreferencesHelper} built on it reads arrays, big numbers, dates and objects
+ * from the snapshot.
+ * <p>
+ * Compression dictionaries and expiry times are left out of the values, and a value put with
+ * a time to live reads as absent once it expires, as it does through the helper.
+ */
+public final class PreferencesSnapshot implements StorageEngine {
+
+    private static final byte INT = 1;
+    private static final byte LONG = 2;
+    private static final byte FLOAT = 3;
+    private static final byte BOOLEAN = 4;
+    private static final byte STRING = 5;
+    private static final byte STRING_SET = 6;
+
+    private final long version;
+    private final int size;
+    private final int mask;
+    private final String[] keys;
+    private final byte[] types;
+    private final int[] ints;
+    private final long[] longs;
+    private final float[] floats;
+    private final Object[] refs;
+    /**
+     * Expiry time by slot, or null if no value expires.
+     */
+    private final long[] expiresAt;
+    private final Map<String, String> dictionaries;
+
+    PreferencesSnapshot(long version, Map<String, ?> values) {
+        this.version = version;
+        long now = System.currentTimeMillis();
+
+        boolean expiring = values.containsKey(EntryExpiry.MARKER);
+        Map<String, Long> expiries = new HashMap<String, Long>();
+        Map<String, String> dictionaries = new HashMap<String, String>();
+        for (Map.Entry<String, ?> entry : values.entrySet()) {
+            String key = entry.getKey();
+            Object value = entry.getValue();
+            if (ValueCompression.isMetadata(key) && value instanceof String) {
+                dictionaries.put(key, (String) value);
+            } else if (expiring && key.endsWith(EntryExpiry.SUFFIX) && value instanceof Long) {
+                expiries.put(key.substring(0, key.length() - EntryExpiry.SUFFIX.length()), (Long) value);
+            }
+        }
+        this.dictionaries = dictionaries;
+
+        int size = 0;
+        for (Map.Entry<String, ?> entry : values.entrySet()) {
+            if (isValue(entry, expiring, expiries, now)) size++;
+        }
+        this.size = size;
+
+        int capacity = 4;
+        while (capacity < size * 2) capacity <<= 1;
+        this.mask = capacity - 1;
+        this.keys = new String[capacity];
+        this.types = new byte[capacity];
+        this.ints = new int[capacity];
+        this.longs = new long[capacity];
+        this.floats = new float[capacity];
+        this.refs = new Object[capacity];
+        this.expiresAt = expiries.isEmpty() ? null : new long[capacity];
+
+        for (Map.Entry<String, ?> entry : values.entrySet()) {
+            if (!isValue(entry, expiring, expiries, now)) continue;
+            Object value = entry.getValue();
+
+            int slot = hash(entry.getKey()) & mask;
+            while (keys[slot] != null) slot = (slot + 1) & mask;
+            keys[slot] = entry.getKey();
+            if (expiresAt != null) expiresAt[slot] = expiresAt(expiries, entry.getKey());
+
+            if (value instanceof Integer) {
+                types[slot] = INT;
+                ints[slot] = (Integer) value;
+            } else if (value instanceof Long) {
+                types[slot] = LONG;
+                longs[slot] = (Long) value;
+            } else if (value instanceof Float) {
+                types[slot] = FLOAT;
+                floats[slot] = (Float) value;
+            } else if (value instanceof Boolean) {
+                types[slot] = BOOLEAN;
+                ints[slot] = (Boolean) value ? 1 : 0;
+            } else if (value instanceof String) {
+                types[slot] = STRING;
+                refs[slot] = value;
+            } else if (value instanceof Set) {
+                types[slot] = STRING_SET;
+                @SuppressWarnings("unchecked")
+                Set<String> set = (Set<String>) value;
+                refs[slot] = Collections.unmodifiableSet(new HashSet<String>(set));
+            }
+        }
+    }
+
+    /**
+     * Checks if an entry holds a value that has not expired, rather than metadata.
+     */
+    private static boolean isValue(Map.Entry<String, ?> entry, boolean expiring, Map<String, Long> expiries,
+                                   long now) {
+        String key = entry.getKey();
+        if (entry.getValue() == null || ValueCompression.isMetadata(key)) return false;
+        if (expiring && EntryExpiry.isMetadata(key)) return false;
+        return expiresAt(expiries, key) > now;
+    }
+
+    /**
+     * @return Expiry time of the value stored under a key, which packed arrays share with
+     * their key, or {@link Long#MAX_VALUE} if the value does not expire
+     */
+    private static long expiresAt(Map<String, Long> expiries, String key) {
+        Long time = expiries.get(key);
+        if (time == null && key.endsWith(PackedArrays.SUFFIX)) {
+            time = expiries.get(key.substring(0, key.length() - PackedArrays.SUFFIX.length()));
+        }
+        return time != null ? time : Long.MAX_VALUE;
+    }
+
+    private static int hash(String key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * @return Slot of the key, or -1 if the key is not in the snapshot or its value expired
+     */
+    private int slot(String key) {
+        int slot = hash(key) & mask;
+        String k;
+        while ((k = keys[slot]) != null) {
+            if (k.equals(key)) return isLive(slot, System.currentTimeMillis()) ? slot : -1;
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private boolean isLive(int slot, long now) {
+        return expiresAt == null || expiresAt[slot] > now;
+    }
+
+    /**
+     * Gets the version of the preferences this snapshot was built from. Versions grow with
+     * every commit.
+     *
+     * @return Version
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Gets the number of values in this snapshot that have not expired.
+     *
+     * @return Number of values
+     */
+    public int size() {
+        if (expiresAt == null) return size;
+        long now = System.currentTimeMillis();
+        int live = 0;
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (keys[slot] != null && isLive(slot, now)) live++;
+        }
+        return live;
+    }
+
+    @Override
+    public boolean contains(String key) {
+        return slot(key) >= 0;
+    }
+
+    @Override
+    public int getInt(String key, int defValue) {
+        int slot = slot(key);
+        return slot >= 0 && types[slot] == INT ? ints[slot] : defValue;
+    }
+
+    @Override
+    public long getLong(String key, long defValue) {
+        int slot = slot(key);
+        return slot >= 0 && types[slot] == LONG ? longs[slot] : defValue;
+    }
+
+    @Override
+    public float getFloat(String key, float defValue) {
+        int slot = slot(key);
+        return slot >= 0 && types[slot] == FLOAT ? floats[slot] : defValue;
+    }
+
+    @Override
+    public boolean getBoolean(String key, boolean defValue) {
+        int slot = slot(key);
+        return slot >= 0 && types[slot] == BOOLEAN ? ints[slot] != 0 : defValue;
+    }
+
+    @Override
+    public String getString(String key, String defValue) {
+        int slot = slot(key);
+        if (slot < 0) {
+            // Left out of the values, but compressed values are read with them.
+            String dictionary = dictionaries.get(key);
+            return dictionary != null ? dictionary : defValue;
+        }
+        return types[slot] == STRING ? (String) refs[slot] : defValue;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Set<String> getStringSet(String key, Set<String> defValues) {
+        int slot = slot(key);
+        return slot >= 0 && types[slot] == STRING_SET ? (Set<String>) refs[slot] : defValues;
+    }
+
+    /**
+     * Gets every value in this snapshot that has not expired. Primitives are boxed, so prefer the typed getters.
+     *
+     * @return All values in a new map
+     */
+    @Override
+    public Map<String, ?> getAll() {
+        Map<String, Object> all = new HashMap<String, Object>(size * 2);
+        long now = System.currentTimeMillis();
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (keys[slot] == null || !isLive(slot, now)) continue;
+            switch (types[slot]) {
+                case INT:
+                    all.put(keys[slot], ints[slot]);
+                    break;
+                case LONG:
+                    all.put(keys[slot], longs[slot]);
+                    break;
+                case FLOAT:
+                    all.put(keys[slot], floats[slot]);
+                    break;
+                case BOOLEAN:
+                    all.put(keys[slot], ints[slot] != 0);
+                    break;
+                default:
+                    all.put(keys[slot], refs[slot]);
+            }
+        }
+        return all;
+    }
+
+    /**
+     * Snapshots are immutable.
+     *
+     * @throws UnsupportedOperationException always
+     */
+    @Override
+    public Batch edit() {
+        throw new UnsupportedOperationException("Snapshots are read-only");
+    }
+
+    @Override
+    public void addListener(Listener listener) {
+    }
+
+    @Override
+    public void removeListener(Listener listener) {
+    }
+}
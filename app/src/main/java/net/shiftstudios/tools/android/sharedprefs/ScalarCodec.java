@@ -0,0 +1,25 @@
+package net.shiftstudios.tools.android.sharedprefs;
+
+/**
+ * Encodes values of a type into compact bytes, for types stored as a single value such as
+ * numbers, identifiers and times. Codecs are registered with
+ * {@link SharedPreferencesHelper#registerScalarCodec(Class, String, ScalarCodec)}.
+ *
+ * @param <T> Type of the values
+ */
+public interface ScalarCodec<T> {
+
+    byte[] encode(T value);
+
+    /**
+     * @return Value, or null if the bytes are not a valid value
+     */
+    T decode(byte[] bytes);
+
+    /**
+     * Reads a value stored as text before the codec was used, such as a decimal string.
+     *
+     * @return Value, or null if the text is not a valid value
+     */
+    T parse(String text);
+}
@@ -0,0 +1,303 @@
+package net.shiftstudios.tools.android.sharedprefs;
+
+import java.lang.reflect.Method;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Finds the scalar codec of a class and stores values with it.
+ * <p>
+ * An encoded value is {@link #MARKER}, the codec id, a colon and the Base64 encoded bytes.
+ * Built in codecs store a BigInteger as its two's-complement bytes, a BigDecimal as its scale
+ * and unscaled value, a UUID as 16 bytes, an enum constant as its name, and an Instant or a
+ * Duration, where the platform has them, as seconds and nanoseconds. Decoded values of built
+ * in codecs are immutable, so the last one read from each key is kept and returned again
+ * while the stored string is unchanged.
+ */
+final class ScalarCodecs {
+
+    static final String MARKER = "\uFDD0S";
+
+    private static final String ENUM_ID = "E";
+    private static final int MAX_CACHED = 256;
+
+    private final Map<Class<?>, Entry<?>> codecs = new ConcurrentHashMap<Class<?>, Entry<?>>();
+    private final Map<String, Class<?>> ids = new ConcurrentHashMap<String, Class<?>>();
+    private final Map<String, Object[]> decoded = new ConcurrentHashMap<String, Object[]>();
+
+    static final class Entry<T> {
+
+        final String prefix;
+        final ScalarCodec<T> codec;
+        final boolean immutable;
+
+        Entry(String id, ScalarCodec<T> codec, boolean immutable) {
+            this.prefix = MARKER + id + ':';
+            this.codec = codec;
+            this.immutable = immutable;
+        }
+    }
+
+    ScalarCodecs() {
+        add(BigInteger.class, "I", BIG_INTEGER, true);
+        add(BigDecimal.class, "D", BIG_DECIMAL, true);
+        add(UUID.class, "U", UUID_CODEC, true);
+        addTime("java.time.Instant", "T", "ofEpochSecond", "getEpochSecond");
+        addTime("java.time.Duration", "R", "ofSeconds", "getSeconds");
+    }
+
+    <T> void register(Class<T> type, String id, ScalarCodec<T> codec) {
+        if (id.length() == 0 || id.indexOf(':') >= 0 || id.equals(ENUM_ID)) {
+            throw new IllegalArgumentException("Invalid scalar codec id: " + id);
+        }
+        Class<?> owner = ids.get(id);
+        if (owner != null && owner != type) {
+            throw new IllegalArgumentException("Scalar codec id " + id + " is used by " + owner.getName());
+        }
+        add(type, id, codec, false);
+    }
+
+    private synchronized <T> Entry<T> add(Class<T> type, String id, ScalarCodec<T> codec, boolean immutable) {
+        Entry<T> entry = new Entry<T>(id, codec, immutable);
+        codecs.put(type, entry);
+        ids.put(id, type);
+        decoded.clear();
+        return entry;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void addTime(String className, String id, String factory, String seconds) {
+        try {
+            Class<Object> type = (Class<Object>) Class.forName(className);
+            add(type, id, new TimeCodec(type, factory, seconds), true);
+        } catch (ClassNotFoundException e) {
+            // Not on this platform.
+        } catch (NoSuchMethodException e) {
+            // Not on this platform.
+        }
+    }
+
+    /**
+     * @return Codec of the class, or null if it has none
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    <T> Entry<T> find(Class<T> type) {
+        Entry<T> entry = (Entry<T>) codecs.get(type);
+        if (entry == null && type.isEnum()) {
+            // Every enum shares an id, as a constant is only read back by its own type.
+            entry = new Entry<T>(ENUM_ID, new EnumCodec(type), true);
+            codecs.put(type, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * @return Stored form of the value, or null for null
+     * @throws IllegalArgumentException if the value's class has no codec
+     */
+    @SuppressWarnings("unchecked")
+    String encode(Object value) {
+        if (value == null) return null;
+        Class<Object> type = (Class<Object>) (value instanceof Enum
+                ? ((Enum<?>) value).getDeclaringClass()
+                : value.getClass());
+        Entry<Object> entry = find(type);
+        if (entry == null) throw new IllegalArgumentException("No scalar codec for " + type.getName());
+
+        byte[] bytes = entry.codec.encode(value);
+        StringBuilder sb = new StringBuilder(entry.prefix.length() + (bytes.length + 2) / 3 * 4);
+        PackedArrays.encodeBase64(bytes, sb.append(entry.prefix));
+        return sb.toString();
+    }
+
+    /**
+     * Decodes a stored value, or parses it if it was stored as text.
+     *
+     * @param key    Key the value is stored under, to remember the value decoded
+     * @param stored Stored string
+     * @return Value, or null if the stored string is not a value of the type
+     * @throws IllegalArgumentException if the type has no codec
+     */
+    <T> T decode(String key, String stored, Class<T> type) {
+        Object[] last = decoded.get(key);
+        if (last != null && last[0] == stored && type.isInstance(last[1])) return type.cast(last[1]);
+
+        Entry<T> entry = find(type);
+        if (entry == null) throw new IllegalArgumentException("No scalar codec for " + type.getName());
+
+        T value;
+        if (stored.startsWith(MARKER)) {
+            if (!stored.startsWith(entry.prefix)) return null;
+            try {
+                value = entry.codec.decode(PackedArrays.decodeBase64(stored, entry.prefix.length()));
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        } else {
+            value = entry.codec.parse(stored);
+        }
+
+        if (value != null && entry.immutable) {
+            if (decoded.size() >= MAX_CACHED) decoded.clear();
+            decoded.put(key, new Object[]{stored, value});
+        }
+        return value;
+    }
+
+    private static final ScalarCodec<BigInteger> BIG_INTEGER = new ScalarCodec<BigInteger>() {
+        @Override
+        public byte[] encode(BigInteger value) {
+            return value.toByteArray();
+        }
+
+        @Override
+        public BigInteger decode(byte[] bytes) {
+            return bytes.length > 0 ? new BigInteger(bytes) : null;
+        }
+
+        @Override
+        public BigInteger parse(String text) {
+            try {
+                return new BigInteger(text);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    };
+
+    private static final ScalarCodec<BigDecimal> BIG_DECIMAL = new ScalarCodec<BigDecimal>() {
+        @Override
+        public byte[] encode(BigDecimal value) {
+            byte[] unscaled = value.unscaledValue().toByteArray();
+            return ByteBuffer.allocate(4 + unscaled.length).putInt(value.scale()).put(unscaled).array();
+        }
+
+        @Override
+        public BigDecimal decode(byte[] bytes) {
+            if (bytes.length < 5) return null;
+            ByteBuffer b = ByteBuffer.wrap(bytes);
+            int scale = b.getInt();
+            byte[] unscaled = new byte[bytes.length - 4];
+            b.get(unscaled);
+            return new BigDecimal(new BigInteger(unscaled), scale);
+        }
+
+        @Override
+        public BigDecimal parse(String text) {
+            try {
+                return new BigDecimal(text);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    };
+
+    private static final ScalarCodec<UUID> UUID_CODEC = new ScalarCodec<UUID>() {
+        @Override
+        public byte[] encode(UUID value) {
+            return ByteBuffer.allocate(16)
+                    .putLong(value.getMostSignificantBits())
+                    .putLong(value.getLeastSignificantBits())
+                    .array();
+        }
+
+        @Override
+        public UUID decode(byte[] bytes) {
+            if (bytes.length != 16) return null;
+            ByteBuffer b = ByteBuffer.wrap(bytes);
+            return new UUID(b.getLong(), b.getLong());
+        }
+
+        @Override
+        public UUID parse(String text) {
+            try {
+                return UUID.fromString(text);
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+    };
+
+    private static final class EnumCodec<E extends Enum<E>> implements ScalarCodec<E> {
+
+        private final Class<E> type;
+
+        EnumCodec(Class<E> type) {
+            this.type = type;
+        }
+
+        @Override
+        public byte[] encode(E value) {
+            return PackedArrays.utf8(value.name());
+        }
+
+        @Override
+        public E decode(byte[] bytes) {
+            return parse(PackedArrays.utf8(bytes, 0, bytes.length));
+        }
+
+        @Override
+        public E parse(String text) {
+            try {
+                return Enum.valueOf(type, text);
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Codec of a {@code java.time} class made of seconds and nanoseconds, found by reflection
+     * so the library still runs where {@code java.time} does not exist.
+     */
+    private static final class TimeCodec implements ScalarCodec<Object> {
+
+        private final Method factory;
+        private final Method seconds;
+        private final Method nanos;
+        private final Method parse;
+
+        TimeCodec(Class<?> type, String factory, String seconds) throws NoSuchMethodException {
+            this.factory = type.getMethod(factory, long.class, long.class);
+            this.seconds = type.getMethod(seconds);
+            this.nanos = type.getMethod("getNano");
+            this.parse = type.getMethod("parse", CharSequence.class);
+        }
+
+        @Override
+        public byte[] encode(Object value) {
+            try {
+                return ByteBuffer.allocate(12)
+                        .putLong((Long) seconds.invoke(value))
+                        .putInt((Integer) nanos.invoke(value))
+                        .array();
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public Object decode(byte[] bytes) {
+            if (bytes.length != 12) return null;
+            ByteBuffer b = ByteBuffer.wrap(bytes);
+            try {
+                return factory.invoke(null, b.getLong(), (long) b.getInt());
+            } catch (Exception e) {
+                return null;
+            }
+        }
+
+        @Override
+        public Object parse(String text) {
+            try {
+                return parse.invoke(null, text);
+            } catch (Exception e) {
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package net.shiftstudios.tools.android.sharedprefs;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Decides which shard of a {@link ShardedEngine} a key belongs to. Keys are decided by the
+ * key they were put with, so every entry of an array lives in the same shard.
+ */
+public abstract class ShardPolicy {
+
+    ShardPolicy() {
+    }
+
+    /**
+     * @param key    Key a value was put with
+     * @param shards Number of shards
+     * @return Shard index from 0 to shards - 1
+     */
+    abstract int shardFor(String key, int shards);
+
+    /**
+     * Called once for every key a batch puts, counting the entries of an array as one, before
+     * the values are routed.
+     */
+    void written(String key) {
+    }
+
+    /**
+     * Places keys by prefix. The longest matching prefix wins, and keys matching no prefix go
+     * to the default shard.
+     *
+     * @param prefixes     Shard index by key prefix
+     * @param defaultShard Shard of keys matching no prefix
+     */
+    public static ShardPolicy byPrefix(Map<String, Integer> prefixes, final int defaultShard) {
+        final String[] keys = prefixes.keySet().toArray(new String[prefixes.size()]);
+        final int[] values = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) values[i] = prefixes.get(keys[i]);
+
+        return new ShardPolicy() {
+            @Override
+            int shardFor(String key, int shards) {
+                int shard = defaultShard;
+                int longest = -1;
+                for (int i = 0; i < keys.length; i++) {
+                    if (keys[i].length() > longest && key.startsWith(keys[i])) {
+                        shard = values[i];
+                        longest = keys[i].length();
+                    }
+                }
+                return shard;
+            }
+        };
+    }
+
+    /**
+     * Places keys written often in shard 0, and spreads every other key over the remaining
+     * shards. A key is hot while it was written at least {@code hotWrites} times in the
+     * current or the previous window, and goes back to a cold shard once it is not.
+     *
+     * @param hotWrites    Number of writes in a window which makes a key hot
+     * @param windowMillis Length of a window in milliseconds
+     */
+    public static ShardPolicy byWriteFrequency(final int hotWrites, final long windowMillis) {
+        return new ShardPolicy() {
+
+            private final ConcurrentHashMap<String, Rate> rates = new ConcurrentHashMap<String, Rate>();
+
+            @Override
+            int shardFor(String key, int shards) {
+                Rate rate = rates.get(key);
+                if (shards == 1 || rate != null && rate.isHot(System.currentTimeMillis())) return 0;
+                return 1 + (key.hashCode() & 0x7fffffff) % (shards - 1);
+            }
+
+            @Override
+            void written(String key) {
+                Rate rate = rates.get(key);
+                if (rate == null) {
+                    Rate created = new Rate();
+                    rate = rates.putIfAbsent(key, created);
+                    if (rate == null) rate = created;
+                }
+                rate.written(System.currentTimeMillis());
+            }
+
+            final class Rate {
+
+                private long windowStart = System.currentTimeMillis();
+                private int count;
+                private int previous;
+
+                synchronized void written(long now) {
+                    roll(now);
+                    count++;
+                }
+
+                synchronized boolean isHot(long now) {
+                    roll(now);
+                    return count >= hotWrites || previous >= hotWrites;
+                }
+
+                private void roll(long now) {
+                    long elapsed = now - windowStart;
+                    if (elapsed < windowMillis) return;
+                    previous = elapsed < windowMillis * 2 ? count : 0;
+                    count = 0;
+                    windowStart = now;
+                }
+            }
+        };
+    }
+}
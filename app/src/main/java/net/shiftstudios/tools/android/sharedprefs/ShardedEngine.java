@@ -0,0 +1,496 @@
+package net.shiftstudios.tools.android.sharedprefs;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Storage engine which spreads keys over several engines, so values written often do not
+ * share a file with large values written rarely.
+ * <p>
+ * Every write goes to the shard the policy picks for its key, and removes the key from any
+ * other shard it was in. A background thread periodically moves keys whose shard has changed
+ * without being written, for example keys which stopped being hot. Reads go to the shard
+ * which holds the key, so a key is readable while it moves.
+ * <p>
+ * A key moves by writing its new shard before removing it from the old one, so a crash in
+ * between leaves it in both. The new shard records the keys it received and a sequence
+ * number, so the copy written last is kept when the engine is created and the other one is
+ * removed.
+ */
+public class ShardedEngine implements StorageEngine {
+
+    private static final Object REMOVED = new Object();
+    /**
+     * Keys moved into a shard by the last move which wrote to it.
+     */
+    private static final String MOVED = "\uFDD0M";
+    /**
+     * Sequence number of that move.
+     */
+    private static final String MOVED_AT = "\uFDD0N";
+
+    private final StorageEngine[] shards;
+    private final ShardPolicy policy;
+    private final ConcurrentHashMap<String, Integer> location = new ConcurrentHashMap<String, Integer>();
+    private final Object lock = new Object();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+    private final ScheduledExecutorService migrator;
+    private ScheduledFuture<?> scheduled;
+    /**
+     * Values written by migrations, so the change reported for them is not passed on.
+     */
+    private final ConcurrentHashMap<String, Object> migrated = new ConcurrentHashMap<String, Object>();
+    private long moves;
+    private volatile Thread writing;
+    private Set<String> deferred;
+
+    /**
+     * Shards keys with the default migration period of one minute.
+     *
+     * @param policy Policy which places keys
+     * @param shards Engines to spread keys over
+     */
+    public ShardedEngine(ShardPolicy policy, StorageEngine... shards) {
+        this(policy, 60000, shards);
+    }
+
+    /**
+     * @param policy                Policy which places keys
+     * @param migrationPeriodMillis Time in milliseconds between background migrations
+     * @param shards                Engines to spread keys over
+     */
+    public ShardedEngine(ShardPolicy policy, long migrationPeriodMillis, StorageEngine... shards) {
+        this.policy = policy;
+        this.shards = shards.clone();
+
+        List<Set<String>> all = new ArrayList<Set<String>>();
+        long[] movedAt = new long[shards.length];
+        for (int i = 0; i < shards.length; i++) {
+            all.add(shards[i].getAll().keySet());
+            movedAt[i] = shards[i].getLong(MOVED_AT, -1);
+            moves = Math.max(moves, movedAt[i]);
+        }
+
+        for (int i = 0; i < shards.length; i++) {
+            Set<String> moved = shards[i].getStringSet(MOVED, null);
+            for (String key : all.get(i)) {
+                if (isReserved(key)) continue;
+                Integer at = location.get(key);
+                if (at == null || newer(i, at, key, moved != null && moved.contains(key) ? movedAt[i] : -1)) {
+                    location.put(key, i);
+                }
+            }
+        }
+
+        // Removes the older copy of keys left in two shards by an interrupted move.
+        Batch[] removes = new Batch[shards.length];
+        for (int i = 0; i < shards.length; i++) {
+            for (String key : all.get(i)) {
+                Integer at = location.get(key);
+                if (at != null && at != i) batch(removes, i).remove(key);
+            }
+        }
+        commit(removes, false);
+
+        for (int i = 0; i < shards.length; i++) {
+            final int shard = i;
+            shards[i].addListener(new Listener() {
+                @Override
+                public void onChanged(StorageEngine engine, String key) {
+                    if (key != null && isReserved(key)) return;
+                    if (Thread.currentThread() == writing) {
+                        // Held until the key's new shard is recorded, so listeners read it.
+                        deferred.add(key);
+                        return;
+                    }
+                    if (key != null) {
+                        // Changes may be reported late, on another thread, so they are
+                        // matched by key and value rather than by the thread writing them.
+                        Object value = migrated.get(key);
+                        if (value != null && value.equals(KeyIndex.read(engine, key))) {
+                            migrated.remove(key, value);
+                            return;
+                        }
+                        Integer at = location.get(key);
+                        if (at != null && at != shard) return;
+                    }
+                    changed(key);
+                }
+            });
+        }
+
+        this.migrator = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "SharedPreferencesHelper-shards");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        setMigrationPeriod(migrationPeriodMillis);
+    }
+
+    private static boolean isReserved(String key) {
+        return key.equals(MOVED) || key.equals(MOVED_AT);
+    }
+
+    /**
+     * Decides which copy of a key left in two shards is newer. The copy a move recorded last
+     * wins; copies written before moves were recorded go by the policy.
+     *
+     * @param movedAt Sequence number of the move which wrote the key to shard i, or -1
+     */
+    private boolean newer(int i, int at, String key, long movedAt) {
+        Set<String> moved = shards[at].getStringSet(MOVED, null);
+        long other = moved != null && moved.contains(key) ? shards[at].getLong(MOVED_AT, -1) : -1;
+        if (movedAt != other) return movedAt > other;
+        return i == policy.shardFor(ArrayKeys.baseOf(key), shards.length);
+    }
+
+    /**
+     * Records the keys moved into each shard, with the next sequence number. The caller must
+     * hold {@link #lock}.
+     *
+     * @param moved Shard by key moved into it
+     */
+    private void recordMoves(Batch[] puts, Map<String, Integer> moved) {
+        if (moved.isEmpty()) return;
+        long sequence = ++moves;
+        Map<Integer, Set<String>> byShard = new HashMap<Integer, Set<String>>();
+        for (Map.Entry<String, Integer> entry : moved.entrySet()) {
+            Set<String> keys = byShard.get(entry.getValue());
+            if (keys == null) byShard.put(entry.getValue(), keys = new HashSet<String>());
+            keys.add(entry.getKey());
+        }
+        for (Map.Entry<Integer, Set<String>> entry : byShard.entrySet()) {
+            batch(puts, entry.getKey()).putStringSet(MOVED, entry.getValue()).putLong(MOVED_AT, sequence);
+        }
+    }
+
+    /**
+     * Changes how often keys are moved in the background. The first migration runs
+     * immediately.
+     *
+     * @param millis Time in milliseconds between migrations
+     */
+    public synchronized void setMigrationPeriod(long millis) {
+        if (scheduled != null) scheduled.cancel(false);
+        scheduled = migrator.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                migrate();
+            }
+        }, 0, millis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Gets how many shards the keys are spread over.
+     *
+     * @return Number of shards
+     */
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * Gets the shard which holds a key now.
+     *
+     * @return Shard index, or -1 if the key is not in any shard
+     */
+    public int getShardOf(String key) {
+        Integer at = location.get(key);
+        return at != null ? at : -1;
+    }
+
+    /**
+     * Moves every key which is not in the shard its policy picks, on the calling thread.
+     * Listeners are not called for moved keys, as their values do not change.
+     *
+     * @return Number of moved entries
+     */
+    public int migrate() {
+        synchronized (lock) {
+            Batch[] puts = new Batch[shards.length];
+            Batch[] removes = new Batch[shards.length];
+            Map<Integer, Map<String, ?>> values = new HashMap<Integer, Map<String, ?>>();
+            Map<String, Integer> moved = new HashMap<String, Integer>();
+
+            for (Map.Entry<String, Integer> entry : location.entrySet()) {
+                String key = entry.getKey();
+                int at = entry.getValue();
+                int target = policy.shardFor(ArrayKeys.baseOf(key), shards.length);
+                if (target == at) continue;
+
+                Map<String, ?> all = values.get(at);
+                if (all == null) values.put(at, all = shards[at].getAll());
+                Object value = all.get(key);
+                if (value == null) continue;
+                migrated.put(key, value);
+                write(batch(puts, target), key, value);
+                batch(removes, at).remove(key);
+                moved.put(key, target);
+            }
+            if (moved.isEmpty()) return 0;
+
+            // The new copy is written before the old one is removed, so a crash in between
+            // loses nothing.
+            recordMoves(puts, moved);
+            commit(puts, false);
+            location.putAll(moved);
+            commit(removes, false);
+            return moved.size();
+        }
+    }
+
+    /**
+     * Stops moving keys in the background.
+     */
+    public void close() {
+        migrator.shutdown();
+    }
+
+    private void changed(String key) {
+        for (Listener listener : listeners) listener.onChanged(this, key);
+    }
+
+    private Batch batch(Batch[] batches, int shard) {
+        if (batches[shard] == null) batches[shard] = shards[shard].edit();
+        return batches[shard];
+    }
+
+    private static boolean commit(Batch[] batches, boolean async) {
+        boolean result = true;
+        for (Batch batch : batches) {
+            if (batch == null) continue;
+            if (async) batch.apply();
+            else result &= batch.commit();
+        }
+        return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void write(Batch e, String key, Object value) {
+        if (value == REMOVED || value == null) e.remove(key);
+        else if (value instanceof String) e.putString(key, (String) value);
+        else if (value instanceof Integer) e.putInt(key, (Integer) value);
+        else if (value instanceof Long) e.putLong(key, (Long) value);
+        else if (value instanceof Float) e.putFloat(key, (Float) value);
+        else if (value instanceof Boolean) e.putBoolean(key, (Boolean) value);
+        else if (value instanceof Set) e.putStringSet(key, (Set<String>) value);
+    }
+
+    private StorageEngine shardOf(String key) {
+        Integer at = location.get(key);
+        return at != null ? shards[at] : null;
+    }
+
+    @Override
+    public boolean contains(String key) {
+        return location.containsKey(key);
+    }
+
+    @Override
+    public int getInt(String key, int defValue) {
+        StorageEngine shard = shardOf(key);
+        return shard != null ? shard.getInt(key, defValue) : defValue;
+    }
+
+    @Override
+    public long getLong(String key, long defValue) {
+        StorageEngine shard = shardOf(key);
+        return shard != null ? shard.getLong(key, defValue) : defValue;
+    }
+
+    @Override
+    public float getFloat(String key, float defValue) {
+        StorageEngine shard = shardOf(key);
+        return shard != null ? shard.getFloat(key, defValue) : defValue;
+    }
+
+    @Override
+    public boolean getBoolean(String key, boolean defValue) {
+        StorageEngine shard = shardOf(key);
+        return shard != null ? shard.getBoolean(key, defValue) : defValue;
+    }
+
+    @Override
+    public String getString(String key, String defValue) {
+        StorageEngine shard = shardOf(key);
+        return shard != null ? shard.getString(key, defValue) : defValue;
+    }
+
+    @Override
+    public Set<String> getStringSet(String key, Set<String> defValues) {
+        StorageEngine shard = shardOf(key);
+        return shard != null ? shard.getStringSet(key, defValues) : defValues;
+    }
+
+    @Override
+    public Map<String, ?> getAll() {
+        Map<String, Object> all = new HashMap<String, Object>();
+        for (int i = 0; i < shards.length; i++) {
+            for (Map.Entry<String, ?> entry : shards[i].getAll().entrySet()) {
+                Integer at = location.get(entry.getKey());
+                if (at != null && at == i) all.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return all;
+    }
+
+    @Override
+    public Batch edit() {
+        return new ShardedBatch();
+    }
+
+    @Override
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    private class ShardedBatch implements Batch {
+
+        private final LinkedHashMap<String, Object> changes = new LinkedHashMap<String, Object>();
+        private boolean clear;
+
+        private Batch put(String key, Object value) {
+            // Re-inserting moves the key to the end, so the last write wins in order.
+            changes.remove(key);
+            changes.put(key, value);
+            return this;
+        }
+
+        @Override
+        public Batch putString(String key, String value) {
+            return put(key, value == null ? REMOVED : value);
+        }
+
+        @Override
+        public Batch putStringSet(String key, Set<String> values) {
+            return put(key, values == null ? REMOVED : new HashSet<String>(values));
+        }
+
+        @Override
+        public Batch putInt(String key, int value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Batch putLong(String key, long value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Batch putFloat(String key, float value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Batch putBoolean(String key, boolean value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Batch remove(String key) {
+            return put(key, REMOVED);
+        }
+
+        @Override
+        public Batch clear() {
+            clear = true;
+            changes.clear();
+            return this;
+        }
+
+        @Override
+        public boolean commit() {
+            return write(false);
+        }
+
+        @Override
+        public void apply() {
+            write(true);
+        }
+
+        private boolean write(boolean async) {
+            Set<String> notify;
+            boolean result;
+            synchronized (lock) {
+                Batch[] batches = new Batch[shards.length];
+                Batch[] removes = new Batch[shards.length];
+                if (clear) {
+                    for (int i = 0; i < shards.length; i++) batch(batches, i).clear();
+                    migrated.clear();
+                }
+
+                List<String> removed = new ArrayList<String>();
+                Map<String, Integer> placed = new HashMap<String, Integer>();
+                Map<String, Integer> moved = new HashMap<String, Integer>();
+                // Entries of one array are counted as one write and stay together.
+                Map<String, Integer> targets = new HashMap<String, Integer>();
+                for (Map.Entry<String, Object> entry : changes.entrySet()) {
+                    String key = entry.getKey();
+                    Object value = entry.getValue();
+                    Integer at = clear ? null : location.get(key);
+                    migrated.remove(key);
+
+                    if (value == REMOVED) {
+                        if (at != null) batch(batches, at).remove(key);
+                        removed.add(key);
+                        continue;
+                    }
+
+                    String base = ArrayKeys.baseOf(key);
+                    Integer target = targets.get(base);
+                    if (target == null) {
+                        policy.written(base);
+                        target = policy.shardFor(base, shards.length);
+                        targets.put(base, target);
+                    }
+                    ShardedEngine.write(batch(batches, target), key, value);
+                    if (at != null && !at.equals(target)) {
+                        batch(removes, at).remove(key);
+                        moved.put(key, target);
+                    }
+                    placed.put(key, target);
+                }
+                recordMoves(batches, moved);
+
+                writing = Thread.currentThread();
+                deferred = new LinkedHashSet<String>();
+                try {
+                    // Keys changing shard are written to the new one first, as in migrate().
+                    result = ShardedEngine.commit(batches, async);
+                    if (clear) location.clear();
+                    for (String key : removed) location.remove(key);
+                    location.putAll(placed);
+                    result &= ShardedEngine.commit(removes, async);
+                } finally {
+                    writing = null;
+                    notify = deferred;
+                    deferred = null;
+                }
+            }
+
+            for (String key : notify) changed(key);
+            return result;
+        }
+    }
+}
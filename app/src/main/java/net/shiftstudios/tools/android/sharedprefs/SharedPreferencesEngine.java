@@ -0,0 +1,169 @@
+package net.shiftstudios.tools.android.sharedprefs;
+
+import android.annotation.TargetApi;
+import android.content.SharedPreferences;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Storage engine backed by Android's SharedPreferences.
+ */
+public class SharedPreferencesEngine implements StorageEngine {
+
+    private final SharedPreferences s;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+    // SharedPreferences keeps its listeners in a weak map, so this one is held here.
+    private final SharedPreferences.OnSharedPreferenceChangeListener forwarder =
+            new SharedPreferences.OnSharedPreferenceChangeListener() {
+                @Override
+                public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+                    for (Listener listener : listeners) {
+                        listener.onChanged(SharedPreferencesEngine.this, key);
+                    }
+                }
+            };
+
+    public SharedPreferencesEngine(SharedPreferences s) {
+        this.s = s;
+    }
+
+    /**
+     * Gets the preferences which this engine is using.
+     *
+     * @return SharedPreferences
+     */
+    public SharedPreferences getSharedPreferences() {
+        return s;
+    }
+
+    @Override
+    public boolean contains(String key) {
+        return s.contains(key);
+    }
+
+    @Override
+    public int getInt(String key, int defValue) {
+        return s.getInt(key, defValue);
+    }
+
+    @Override
+    public long getLong(String key, long defValue) {
+        return s.getLong(key, defValue);
+    }
+
+    @Override
+    public float getFloat(String key, float defValue) {
+        return s.getFloat(key, defValue);
+    }
+
+    @Override
+    public boolean getBoolean(String key, boolean defValue) {
+        return s.getBoolean(key, defValue);
+    }
+
+    @Override
+    public String getString(String key, String defValue) {
+        return s.getString(key, defValue);
+    }
+
+    @Override
+    @TargetApi(11)
+    public Set<String> getStringSet(String key, Set<String> defValues) {
+        return s.getStringSet(key, defValues);
+    }
+
+    @Override
+    public Map<String, ?> getAll() {
+        return s.getAll();
+    }
+
+    @Override
+    public Batch edit() {
+        return new EditorBatch(s.edit());
+    }
+
+    @Override
+    public synchronized void addListener(Listener listener) {
+        if (listeners.isEmpty()) s.registerOnSharedPreferenceChangeListener(forwarder);
+        listeners.add(listener);
+    }
+
+    @Override
+    public synchronized void removeListener(Listener listener) {
+        listeners.remove(listener);
+        if (listeners.isEmpty()) s.unregisterOnSharedPreferenceChangeListener(forwarder);
+    }
+
+    private static class EditorBatch implements Batch {
+
+        private final SharedPreferences.Editor e;
+
+        EditorBatch(SharedPreferences.Editor e) {
+            this.e = e;
+        }
+
+        @Override
+        public Batch putInt(String key, int value) {
+            e.putInt(key, value);
+            return this;
+        }
+
+        @Override
+        public Batch putLong(String key, long value) {
+            e.putLong(key, value);
+            return this;
+        }
+
+        @Override
+        public Batch putFloat(String key, float value) {
+            e.putFloat(key, value);
+            return this;
+        }
+
+        @Override
+        public Batch putBoolean(String key, boolean value) {
+            e.putBoolean(key, value);
+            return this;
+        }
+
+        @Override
+        public Batch putString(String key, String value) {
+            e.putString(key, value);
+            return this;
+        }
+
+        @Override
+        @TargetApi(11)
+        public Batch putStringSet(String key, Set<String> value) {
+            e.putStringSet(key, value);
+            return this;
+        }
+
+        @Override
+        public Batch remove(String key) {
+            e.remove(key);
+            return this;
+        }
+
+        @Override
+        public Batch clear() {
+            e.clear();
+            return this;
+        }
+
+        @Override
+        public boolean commit() {
+            return e.commit();
+        }
+
+        @Override
+        @TargetApi(9)
+        public void apply() {
+            e.apply();
+        }
+    }
+}
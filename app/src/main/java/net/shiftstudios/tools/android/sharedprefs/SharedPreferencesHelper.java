@@ -6,13 +6,43 @@ import android.content.SharedPreferences;
 import android.preference.PreferenceManager;
 
 import com.google.gson.Gson;
-
+import com.google.gson.JsonIOException;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.lang.reflect.Array;
 import java.lang.reflect.Type;
+import java.util.Collections;
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Created by Park Shift on 2016-05-01.
@@ -20,9 +50,36 @@ import java.util.Set;
 
 public class SharedPreferencesHelper {
 
-    private SharedPreferences s;
+    private static final int ELIDED = 0;
+    private static final int WRITTEN = 1;
+
+    private StorageEngine s;
     private Context context;
     private Gson gson;
+    private float autoCompactionRatio;
+    private ObjectCache objectCache;
+    private StorageEngine.Listener objectCacheListener;
+    private final Map<SharedPreferences.OnSharedPreferenceChangeListener, StorageEngine.Listener> listeners =
+            new HashMap<SharedPreferences.OnSharedPreferenceChangeListener, StorageEngine.Listener>();
+    private final ObjectCodecs codecs = new ObjectCodecs();
+    private final ScalarCodecs scalars = new ScalarCodecs();
+    private final AtomicLong version = new AtomicLong();
+    private volatile PreferencesSnapshot snapshot;
+    private StorageEngine.Listener snapshotListener;
+    private volatile Instrumentation instrumentation;
+    private final ValueCompression compression = new ValueCompression();
+    private final Map<Object, ValuePublisher<?>> publishers = new HashMap<Object, ValuePublisher<?>>();
+    private final Migrations migrations = new Migrations();
+    private final LinkedList<String> sweepQueue = new LinkedList<String>();
+    private ScheduledExecutorService migrationSweeper;
+    private volatile boolean writeElision = true;
+    private final StripedCounters writeCounts = new StripedCounters(2, true);
+    private volatile int arrayChunkSize = 256;
+    private volatile KeyIndex keyIndex;
+    private final EntryExpiry expiry = new EntryExpiry();
+    private ScheduledExecutorService expirySweeper;
+    private volatile int maxExpiringEntries;
+    private volatile long maxExpiringBytes;
 
     /**
      * Generates a new SharedPreferencesHelper object with default SharedPreferences.
@@ -31,8 +88,8 @@ public class SharedPreferencesHelper {
      */
     public SharedPreferencesHelper(Context context) {
         this.context = context;
-        this.s = PreferenceManager.getDefaultSharedPreferences(context);
-        this.gson = new Gson();
+        this.s = new SharedPreferencesEngine(PreferenceManager.getDefaultSharedPreferences(context));
+        this.gson = HelperRegistry.getGson();
     }
 
     /**
@@ -44,7 +101,7 @@ public class SharedPreferencesHelper {
      */
     public SharedPreferencesHelper(Context context, Gson gson) {
         this.context = context;
-        this.s = PreferenceManager.getDefaultSharedPreferences(context);
+        this.s = new SharedPreferencesEngine(PreferenceManager.getDefaultSharedPreferences(context));
         this.gson = gson;
     }
 
@@ -56,8 +113,8 @@ public class SharedPreferencesHelper {
      */
     public SharedPreferencesHelper(Context context, String name) {
         this.context = context;
-        this.s = context.getSharedPreferences(name, Context.MODE_PRIVATE);
-        this.gson = new Gson();
+        this.s = new SharedPreferencesEngine(context.getSharedPreferences(name, Context.MODE_PRIVATE));
+        this.gson = HelperRegistry.getGson();
     }
 
     /**
@@ -70,7 +127,7 @@ public class SharedPreferencesHelper {
      */
     public SharedPreferencesHelper(Context context, String name, Gson gson) {
         this.context = context;
-        this.s = context.getSharedPreferences(name, Context.MODE_PRIVATE);
+        this.s = new SharedPreferencesEngine(context.getSharedPreferences(name, Context.MODE_PRIVATE));
         this.gson = gson;
     }
 
@@ -84,8 +141,8 @@ public class SharedPreferencesHelper {
      */
     public SharedPreferencesHelper(Context context, String name, int mode) {
         this.context = context;
-        this.s = context.getSharedPreferences(name, mode);
-        this.gson = new Gson();
+        this.s = new SharedPreferencesEngine(context.getSharedPreferences(name, mode));
+        this.gson = HelperRegistry.getGson();
     }
 
     /**
@@ -99,11 +156,67 @@ public class SharedPreferencesHelper {
      */
     public SharedPreferencesHelper(Context context, String name, int mode, Gson gson) {
         this.context = context;
-        this.s = context.getSharedPreferences(name, mode);
+        this.s = new SharedPreferencesEngine(context.getSharedPreferences(name, mode));
         this.gson = gson;
     }
 
 
+    /**
+     * Generates a new SharedPreferencesHelper object which stores values in a memory-mapped
+     * log file in the app's files directory, instead of in SharedPreferences.
+     *
+     * @param context Context
+     * @param name    Log file name
+     * @return SharedPreferencesHelper
+     * @throws IOException if the log file cannot be opened
+     * @see MappedLogEngine
+     */
+    public static SharedPreferencesHelper mappedLog(Context context, String name) throws IOException {
+        File file = new File(context.getFilesDir(), name + ".log");
+        SharedPreferencesHelper helper = new SharedPreferencesHelper(new MappedLogEngine(file));
+        helper.context = context;
+        return helper;
+    }
+
+    /**
+     * Generates a new SharedPreferencesHelper object which stores values in files of the
+     * app's files directory that every process of the app can read and write coherently, in
+     * place of the deprecated {@code MODE_MULTI_PROCESS}. Every write, even through
+     * {@link Editor#apply()}, syncs the store to disk before it returns.
+     *
+     * @param context Context
+     * @param name    Store name
+     * @return SharedPreferencesHelper
+     * @throws IOException if the store files cannot be opened
+     * @see MultiProcessEngine
+     */
+    public static SharedPreferencesHelper multiProcess(Context context, String name) throws IOException {
+        SharedPreferencesHelper helper = new SharedPreferencesHelper(new MultiProcessEngine(context.getFilesDir(), name));
+        helper.context = context;
+        return helper;
+    }
+
+    /**
+     * Generates a new SharedPreferencesHelper object which spreads keys over several
+     * SharedPreferences files with private access mode, so values written often do not cause
+     * rewrites of large values written rarely.
+     *
+     * @param context Context
+     * @param policy  Policy which places keys, such as {@link ShardPolicy#byWriteFrequency(int, long)}
+     * @param names   SharedPreferences names, one per shard
+     * @return SharedPreferencesHelper
+     * @see ShardedEngine
+     */
+    public static SharedPreferencesHelper sharded(Context context, ShardPolicy policy, String... names) {
+        StorageEngine[] shards = new StorageEngine[names.length];
+        for (int i = 0; i < names.length; i++) {
+            shards[i] = new SharedPreferencesEngine(context.getSharedPreferences(names[i], Context.MODE_PRIVATE));
+        }
+        SharedPreferencesHelper helper = new SharedPreferencesHelper(new ShardedEngine(policy, shards));
+        helper.context = context;
+        return helper;
+    }
+
     /**
      * Gets the context which this helper is using now.
      *
@@ -114,509 +227,1940 @@ public class SharedPreferencesHelper {
     }
 
     /**
-     * Gets the preferences which this helper is using now.
+     * Generates a new SharedPreferencesHelper object with a storage engine.
      *
-     * @return SharedPreferences
+     * @param engine Storage engine
      */
-    public SharedPreferences getSharedPreferences() {
-        return s;
+    public SharedPreferencesHelper(StorageEngine engine) {
+        this.s = engine;
+        this.gson = HelperRegistry.getGson();
     }
 
     /**
-     * Gets the gson which this helper is using now.
+     * Generates a new SharedPreferencesHelper object with a storage engine and a gson.
      *
-     * @return Gson
+     * @param engine Storage engine
+     * @param gson   Gson
      */
-    public Gson getGson() {
-        return gson;
+    public SharedPreferencesHelper(StorageEngine engine, Gson gson) {
+        this.s = engine;
+        this.gson = gson;
     }
 
     /**
-     * Checks if specified key is in the preferences.
+     * Gets the preferences which this helper is using now.
      *
-     * @return true if preference contains value with specified key
+     * @return SharedPreferences, or null if this helper is not backed by SharedPreferences
      */
-    public boolean contains(String key) {
-        return s.contains(key);
+    public SharedPreferences getSharedPreferences() {
+        StorageEngine engine = getStorageEngine();
+        return engine instanceof SharedPreferencesEngine
+                ? ((SharedPreferencesEngine) engine).getSharedPreferences()
+                : null;
     }
 
     /**
-     * Registers listener.
+     * Gets the storage engine which this helper is using now, not including the write-behind
+     * buffer.
      *
-     * @param listener Listener
+     * @return StorageEngine
      */
-    public void registerListener(SharedPreferences.OnSharedPreferenceChangeListener listener) {
-        s.registerOnSharedPreferenceChangeListener(listener);
+    public StorageEngine getStorageEngine() {
+        return s instanceof WriteBehindEngine ? ((WriteBehindEngine) s).getBase() : s;
     }
 
     /**
-     * Unregisters listener.
+     * Gets the gson which this helper is using now.
      *
-     * @param listener Listener
+     * @return Gson
      */
-    public void unregisterListener(SharedPreferences.OnSharedPreferenceChangeListener listener) {
-        s.unregisterOnSharedPreferenceChangeListener(listener);
+    public Gson getGson() {
+        return gson;
     }
 
     /**
-     * Remove any value assigned with specified key.
+     * Turns on write-behind mode. Writes are buffered in memory and reads see them
+     * immediately, while a background thread writes them to the preferences in a single
+     * commit once the oldest buffered write is older than the deadline, or once the number of
+     * buffered keys reaches the threshold. Writes to the same key are coalesced.
+     * <p>
+     * While write-behind mode is on, registered listeners are called when the values are
+     * actually written.
+     *
+     * @param deadlineMillis Maximum time in milliseconds a write stays buffered
+     * @param maxPending     Number of buffered keys which triggers a flush
      */
-    public void remove(String key) {
-        SharedPreferences.Editor e = s.edit();
-        e.remove(key);
-        e.commit();
+    public void enableWriteBehind(long deadlineMillis, int maxPending) {
+        if (s instanceof WriteBehindEngine) disableWriteBehind();
+        s = new WriteBehindEngine(s, deadlineMillis, maxPending);
     }
 
     /**
-     * Assign a boolean value to a specified key.
+     * Turns off write-behind mode, writing every buffered change before returning.
      */
-    public void putBoolean(String key, boolean value) {
-        SharedPreferences.Editor e = s.edit();
-        e.putBoolean(key, value);
-        e.commit();
+    public void disableWriteBehind() {
+        if (!(s instanceof WriteBehindEngine)) return;
+        WriteBehindEngine w = (WriteBehindEngine) s;
+        // Flushed before reads move to the base engine, so they keep seeing buffered writes.
+        w.flush();
+        s = w.getBase();
+        w.shutdown();
     }
 
     /**
-     * Assign a boolean array to a specified key.
+     * Checks if write-behind mode is on.
+     *
+     * @return true if writes are buffered
      */
-    public void putBooleanArray(String key, boolean[] value) {
-        SharedPreferences.Editor e = s.edit();
-        e.putInt(key + ".arrayLength", value.length);
-        e.putString(key + ".arrayType", "Boolean");
-
-        for (int i = 0; i < value.length; i++) e.putBoolean(key + '[' + i + ']', value[i]);
-        e.commit();
+    public boolean isWriteBehind() {
+        return s instanceof WriteBehindEngine;
     }
 
     /**
-     * Assign a integer value to a specified key.
+     * Writes every buffered change on the calling thread. Does nothing if write-behind mode
+     * is off.
+     *
+     * @return true if the buffered values were successfully written
      */
-    public void putInt(String key, int value) {
-        SharedPreferences.Editor e = s.edit();
-        e.putInt(key, value);
-        e.commit();
+    public boolean flush() {
+        return !(s instanceof WriteBehindEngine) || ((WriteBehindEngine) s).flush();
     }
 
     /**
-     * Assign a integer array to a specified key.
+     * Waits until the background thread has written every buffered change. Returns
+     * immediately if write-behind mode is off.
+     *
+     * @param timeout Maximum time to wait
+     * @param unit    Unit of the timeout
+     * @return true if everything was written before the timeout elapsed
+     * @throws InterruptedException if interrupted while waiting
      */
-    public void putIntArray(String key, int[] value) {
-        SharedPreferences.Editor e = s.edit();
-        e.putInt(key + ".arrayLength", value.length);
-        e.putString(key + ".arrayType", "Integer");
-
-        for (int i = 0; i < value.length; i++) e.putInt(key + '[' + i + ']', value[i]);
-        e.commit();
+    public boolean awaitFlushed(long timeout, TimeUnit unit) throws InterruptedException {
+        return !(s instanceof WriteBehindEngine)
+                || ((WriteBehindEngine) s).awaitFlushed(timeout, unit);
     }
 
     /**
-     * Assign a floating point value to a specified key.
+     * Removes every orphaned array entry in a single commit. Those are elements beyond the
+     * length of a shortened array, per-element entries of arrays which have been rewritten as
+     * a packed entry, and chunks no chunked array holds. Keys merely named like array entries
+     * are kept.
+     *
+     * @return Number of removed entries and estimated bytes reclaimed
      */
-    public void putFloat(String key, float value) {
-        SharedPreferences.Editor e = s.edit();
-        e.putFloat(key, value);
+    public CompactionResult compact() {
+        Map<String, ?> all = s.getAll();
+        List<String> orphans = ArrayCompactor.findOrphans(all);
+        if (orphans.isEmpty()) return new CompactionResult(0, 0);
+
+        long bytes = 0;
+        StorageEngine.Batch e = batch();
+        for (String key : orphans) {
+            bytes += ArrayCompactor.estimateSize(key, all.get(key));
+            e.remove(key);
+        }
         e.commit();
+        version.incrementAndGet();
+        return new CompactionResult(orphans.size(), bytes);
     }
 
     /**
-     * Assign a floating point array to a specified key.
+     * Gets the ratio of orphaned array entries to all entries in the preferences.
+     *
+     * @return Ratio between 0 and 1
      */
-    public void putFloatArray(String key, float[] value) {
-        SharedPreferences.Editor e = s.edit();
-        e.putInt(key + ".arrayLength", value.length);
-        e.putString(key + ".arrayType", "Float");
-
-        for (int i = 0; i < value.length; i++) e.putFloat(key + '[' + i + ']', value[i]);
-        e.commit();
+    public float getDeadEntryRatio() {
+        Map<String, ?> all = s.getAll();
+        if (all.isEmpty()) return 0;
+        return (float) ArrayCompactor.findOrphans(all).size() / all.size();
     }
 
     /**
-     * Assign a long value to a specified key.
+     * Compacts the preferences automatically whenever arrays are written or values are
+     * removed and the dead entry ratio is above the threshold. Checks the preferences once
+     * when called, and from then on keeps the ratio up to date as keys change, so writes do
+     * not scan the preferences.
+     *
+     * @param ratio Dead entry ratio which triggers compaction, or 0 to turn it off
      */
-    public void putLong(String key, long value) {
-        SharedPreferences.Editor e = s.edit();
-        e.putLong(key, value);
-        e.commit();
+    public void setAutoCompaction(float ratio) {
+        this.autoCompactionRatio = ratio;
+        if (ratio > 0) keyIndex().trackOrphans();
+        compactIfNeeded();
     }
 
     /**
-     * Assign a long array to a specified key.
+     * Compacts if the dead entry ratio kept by the key index, rather than one found by
+     * scanning every value, is above the threshold.
      */
-    public void putLongArray(String key, long[] value) {
-        SharedPreferences.Editor e = s.edit();
-        e.putInt(key + ".arrayLength", value.length);
-        e.putString(key + ".arrayType", "Long");
+    private void compactIfNeeded() {
+        if (autoCompactionRatio > 0 && keyIndex().deadEntryRatio() > autoCompactionRatio) compact();
+    }
 
-        for (int i = 0; i < value.length; i++) e.putLong(key + '[' + i + ']', value[i]);
-        e.commit();
+    /**
+     * Caches objects read by {@link #getObject(String, Type)}, so reading the same key and
+     * type again does not parse the JSON again. Cached objects are shared by every caller.
+     *
+     * @param maxSize Maximum number of cached objects
+     */
+    public void enableObjectCache(int maxSize) {
+        enableObjectCache(maxSize, ObjectCachePolicy.SHARED);
     }
 
     /**
-     * Assign a string value to a specified key.
+     * Caches objects read by {@link #getObject(String, Type)}, so reading the same key and
+     * type again does not parse the JSON again. Cached objects are invalidated by writes
+     * through this helper and by changes reported to preference listeners.
+     *
+     * @param maxSize Maximum number of cached objects
+     * @param policy  Whether callers share cached instances or get their own copies
      */
-    public void putString(String key, String value) {
-        SharedPreferences.Editor e = s.edit();
-        e.putString(key, value);
-        e.commit();
+    public void enableObjectCache(int maxSize, ObjectCachePolicy policy) {
+        disableObjectCache();
+
+        final ObjectCache cache = new ObjectCache(maxSize, policy);
+        objectCacheListener = new StorageEngine.Listener() {
+            @Override
+            public void onChanged(StorageEngine engine, String key) {
+                if (key == null) cache.invalidateAll();
+                else cache.invalidate(key);
+            }
+        };
+        s.addListener(objectCacheListener);
+        objectCache = cache;
     }
 
     /**
-     * Assign a long array to a specified key.
+     * Stops caching objects and drops every cached object.
      */
-    public void putStringArray(String key, String[] value) {
-        SharedPreferences.Editor e = s.edit();
-        e.putInt(key + ".arrayLength", value.length);
-        e.putString(key + ".arrayType", "String");
+    public void disableObjectCache() {
+        if (objectCache == null) return;
 
-        for (int i = 0; i < value.length; i++) e.putString(key + '[' + i + ']', value[i]);
-        e.commit();
+        s.removeListener(objectCacheListener);
+        objectCacheListener = null;
+        objectCache = null;
     }
 
     /**
-     * Assign a BigInteger value to a specified key.
+     * Gets an immutable snapshot of every value in the preferences. The snapshot is rebuilt
+     * only when the preferences have changed since the last call, so repeated calls between
+     * commits return the same instance. Reads from a snapshot take no locks and do not box
+     * primitives. As with {@link #getAll()}, compression dictionaries and expiry times are
+     * left out, and expired values are not returned.
+     *
+     * @return PreferencesSnapshot
      */
-    public void putBigInteger(String key, BigInteger value) {
-        SharedPreferences.Editor e = s.edit();
-        e.putString(key, value.toString());
-        e.commit();
+    public PreferencesSnapshot snapshot() {
+        PreferencesSnapshot current = snapshot;
+        long v = version.get();
+        if (current != null && current.getVersion() == v) return current;
+
+        synchronized (version) {
+            if (snapshotListener == null) {
+                // Changes made outside this helper also make the snapshot stale.
+                snapshotListener = new StorageEngine.Listener() {
+                    @Override
+                    public void onChanged(StorageEngine engine, String key) {
+                        version.incrementAndGet();
+                    }
+                };
+                s.addListener(snapshotListener);
+                v = version.get();
+            }
+
+            current = snapshot;
+            if (current != null && current.getVersion() == v) return current;
+            // Read the version before the values, so a commit racing with the build leaves
+            // the snapshot stale rather than marks it current.
+            PreferencesSnapshot built = new PreferencesSnapshot(v, s.getAll());
+            snapshot = built;
+            return built;
+        }
     }
 
     /**
-     * Assign a BigDecimal value to a specified key.
+     * Starts recording reads and writes per key, commit and listener times, and the length
+     * of objects and arrays written through this helper. Does nothing if already recording.
      */
-    public void putBigDecimal(String key, BigDecimal value) {
-        SharedPreferences.Editor e = s.edit();
-        e.putString(key, value.toString());
-        e.commit();
+    public void enableInstrumentation() {
+        if (instrumentation == null) instrumentation = new Instrumentation();
     }
 
     /**
-     * Assign a date value to a specified key.
+     * Starts recording like {@link #enableInstrumentation()}, and passes the stats to a
+     * reporter periodically on a background thread.
+     *
+     * @param reporter     Reporter
+     * @param periodMillis Time in milliseconds between reports
      */
-    public void putDate(String key, Date value) {
-        SharedPreferences.Editor e = s.edit();
-        e.putLong(key, value.getTime());
-        e.commit();
+    public void enableInstrumentation(PreferenceStats.Reporter reporter, long periodMillis) {
+        enableInstrumentation();
+        instrumentation.schedule(reporter, periodMillis);
     }
 
     /**
-     * Assign a serializable object to a specified key.
+     * Stops recording, and drops everything recorded so far.
      */
-    public void putObject(String key, Object value) {
-        String json = gson.toJson(value);
-
-        SharedPreferences.Editor e = s.edit();
-        e.putString(key, json);
-        e.commit();
+    public void disableInstrumentation() {
+        Instrumentation i = instrumentation;
+        instrumentation = null;
+        if (i != null) i.shutdown();
     }
 
     /**
-     * Assign a string set to a specified key.
+     * Gets what this helper did since instrumentation was turned on.
+     *
+     * @return PreferenceStats, or null if instrumentation is off
      */
-    @TargetApi(11)
-    public void putStringSet(String key, Set<String> value) {
-        SharedPreferences.Editor e = s.edit();
-        e.putStringSet(key, value);
-        e.commit();
+    public PreferenceStats getStats() {
+        Instrumentation i = instrumentation;
+        return i != null ? i.snapshot() : null;
     }
 
-
     /**
-     * Get all values stored in this preference.
-     *
-     * @return All values in a map
+     * @return true if the value has expired, and reads as absent
      */
-    public Map<String, ?> getAll() {
-        return s.getAll();
+    private boolean read(String key) {
+        Instrumentation i = instrumentation;
+        if (i != null) i.read(key);
+        return expireIfDue(key);
     }
 
     /**
-     * Get a boolean value assigned to a specified key. If no value assigned, return false.
+     * Removes a value in the background if it has expired. A read-only engine such as a
+     * {@link PreferencesSnapshot} is left as it is, and the value only reads as absent.
      *
-     * @return false if no value assigned
+     * @return true if the value has expired
      */
-    public boolean getBoolean(String key) {
-        return s.getBoolean(key, false);
+    private boolean expireIfDue(String key) {
+        expiry.load(s);
+        if (!expiry.isExpired(key, System.currentTimeMillis())) return false;
+        if (s instanceof PreferencesSnapshot) return true;
+        Editor editor = edit();
+        editor.remove(key);
+        editor.clearExpiry(key);
+        editor.apply();
+        return true;
     }
 
     /**
-     * Get a boolean value assigned to a specified key.
+     * Turns write elision on or off. While it is on, which is the default, a put of the value
+     * a key already holds is left out of its batch, and a batch left empty is not committed
+     * at all, so re-saving unchanged state neither rewrites the file nor wakes listeners.
+     * Arrays are compared element by element through their packed form, and objects by their
+     * JSON. Values are compared with the stored ones when they are put.
      *
-     * @param defaultValue Default value
-     * @return Default value if no value assigned
+     * @param enabled true to leave out unchanged values
      */
-    public boolean getBoolean(String key, boolean defaultValue) {
-        return s.getBoolean(key, defaultValue);
+    public void setWriteElision(boolean enabled) {
+        this.writeElision = enabled;
     }
 
     /**
-     * Get a boolean array assigned to a specified key.
+     * Checks if write elision is on.
      *
-     * @throws NullPointerException if no array assigned
+     * @return true if unchanged values are left out of batches
      */
-    public boolean[] getBooleanArray(String key) throws NullPointerException {
-        int length = s.getInt(key + ".arrayLength", -1);
-        if (length == -1) throw new NullPointerException();
-        if (! s.getString(key + ".arrayType", "").equals("Boolean")) throw new NullPointerException();
-
-        boolean[] value = new boolean[length];
-        for (int i = 0; i < length; i++) {
-            value[i] = s.getBoolean(key + '[' + i + ']', false);
-        }
-        return value;
+    public boolean isWriteElision() {
+        return writeElision;
     }
 
     /**
-     * Get a boolean array assigned to a specified key.
+     * Gets how many puts and removes were left out because they would not change anything.
      *
-     * @param defaultValue Default value
-     * @return Default value if no value assigned
+     * @return Number of elided writes
      */
-    public boolean[] getBooleanArray(String key, boolean[] defaultValue) {
-        int length = s.getInt(key + ".arrayLength", -1);
-        if (length == -1) return defaultValue;
-        if (! s.getString(key + ".arrayType", "").equals("Boolean")) return defaultValue;
-
-        boolean[] value = new boolean[length];
-        for (int i = 0; i < length; i++) {
-            value[i] = s.getBoolean(key + '[' + i + ']', false);
-        }
-        return value;
+    public long getElidedWriteCount() {
+        return writeCounts.sum(ELIDED);
     }
 
     /**
-     * Get a integer value assigned to a specified key. If no value assigned, return 0.
+     * Gets how many puts and removes were written.
      *
-     * @return 0 if no value assigned
+     * @return Number of real writes
      */
-    public int getInt(String key) {
-        return s.getInt(key, 0);
+    public long getWriteCount() {
+        return writeCounts.sum(WRITTEN);
     }
 
     /**
-     * Get a integer value assigned to a specified key.
+     * Sets how many elements each chunk holds in arrays chunked from now on. An array becomes
+     * chunked when an element is set or appended, and stays chunked when it is put again, so
+     * later changes rewrite only the chunks they touch. The default is 256.
      *
-     * @param defaultValue Default value
-     * @return Default value if no value assigned
+     * @param elements Elements per chunk
+     * @throws IllegalArgumentException if the size is not positive
      */
-    public int getInt(String key, int defaultValue) {
-        return s.getInt(key, defaultValue);
+    public void setArrayChunkSize(int elements) {
+        if (elements < 1) throw new IllegalArgumentException("Chunk size must be positive");
+        this.arrayChunkSize = elements;
     }
 
     /**
-     * Get a integer array assigned to a specified key.
+     * Checks if a key holds a value, comparing floats by their bits and strings in their
+     * stored form, so a value compressed differently than it would be now is written again.
      *
-     * @throws NullPointerException if no array assigned
+     * @param value Value, or null to check that the key holds nothing
      */
-    public int[] getIntArray(String key) throws NullPointerException {
-        int length = s.getInt(key + ".arrayLength", -1);
-        if (length == -1) throw new NullPointerException();
-        if (! s.getString(key + ".arrayType", "").equals("Integer")) throw new NullPointerException();
-
-        int[] value = new int[length];
-        for (int i = 0; i < length; i++) {
-            value[i] = s.getInt(key + '[' + i + ']', 0);
+    private boolean holds(String key, Object value) {
+        try {
+            if (value == null) return !s.contains(key);
+            if (!s.contains(key)) return false;
+            if (value instanceof Integer) return s.getInt(key, 0) == (Integer) value;
+            if (value instanceof Long) return s.getLong(key, 0) == (Long) value;
+            if (value instanceof Float) {
+                return Float.floatToIntBits(s.getFloat(key, 0)) == Float.floatToIntBits((Float) value);
+            }
+            if (value instanceof Boolean) return s.getBoolean(key, false) == (Boolean) value;
+            if (value instanceof String) return value.equals(s.getString(key, null));
+            return value.equals(s.getStringSet(key, null));
+        } catch (ClassCastException e) {
+            // The key holds a value of another type.
+            return false;
         }
-        return value;
     }
 
     /**
-     * Get a integer array assigned to a specified key.
-     *
-     * @param defaultValue Default value
-     * @return Default value if no value assigned
+     * @return true if the key has no migrations or its value is at their latest version
      */
-    public int[] getIntArray(String key, int[] defaultValue) {
-        int length = s.getInt(key + ".arrayLength", -1);
-        if (length == -1) return defaultValue;
-        if (! s.getString(key + ".arrayType", "").equals("Integer")) return defaultValue;
-
-        int[] value = new int[length];
-        for (int i = 0; i < length; i++) {
-            value[i] = s.getInt(key + '[' + i + ']', 0);
-        }
-        return value;
+    private boolean isCurrentVersion(String key) {
+        int target = migrations.target(key);
+        return target == 0 || s.getInt(key + Migrations.VERSION_SUFFIX, 0) == target;
     }
 
     /**
-     * Get a floating point value assigned to a specified key. If no value assigned, return 0.0.
+     * Compresses strings, objects and arrays written from now on whose stored form is at
+     * least {@code thresholdChars} long, with Deflate and the dictionary last trained on these
+     * preferences. Compressed values are read back transparently, also after compression is
+     * turned off.
      *
-     * @return 0.0 if no value assigned
+     * @param thresholdChars Minimum length in characters of a value to be compressed
      */
-    public float getFloat(String key) {
-        return s.getFloat(key, 0.0f);
+    public void enableCompression(int thresholdChars) {
+        compression.enable(Math.max(1, thresholdChars), s);
     }
 
     /**
-     * Get a floating point value assigned to a specified key.
-     *
-     * @param defaultValue Default value
-     * @return Default value if no value assigned
+     * Stops compressing values written from now on. Values already compressed stay readable.
      */
-    public float getFloat(String key, float defaultValue) {
-        return s.getFloat(key, defaultValue);
+    public void disableCompression() {
+        compression.disable();
     }
 
     /**
-     * Get a floating point array assigned to a specified key.
+     * Trains a Deflate dictionary on the strings, objects and arrays stored now, stores it in
+     * the preferences and uses it for values compressed from now on. Values already
+     * compressed keep their own dictionary.
      *
-     * @throws NullPointerException if no array assigned
+     * @param maxSize Maximum dictionary size in bytes, at most 32768
+     * @return Size of the dictionary in bytes, or 0 if the values have too little in common
      */
-    public float[] getFloatArray(String key) throws NullPointerException {
-        int length = s.getInt(key + ".arrayLength", -1);
-        if (length == -1) throw new NullPointerException();
-        if (! s.getString(key + ".arrayType", "").equals("Float")) throw new NullPointerException();
-
-        float[] value = new float[length];
-        for (int i = 0; i < length; i++) {
-            value[i] = s.getFloat(key + '[' + i + ']', 0);
+    public int trainCompressionDictionary(int maxSize) {
+        List<String> values = new ArrayList<String>();
+        for (Map.Entry<String, ?> entry : s.getAll().entrySet()) {
+            if (entry.getKey().startsWith(ValueCompression.MARKER)) continue;
+            if (!(entry.getValue() instanceof String)) continue;
+            String value = decompress((String) entry.getValue(), null);
+            if (value != null && value.length() > 32) values.add(value);
         }
-        return value;
+
+        byte[] dictionary = ValueCompression.train(values, Math.min(maxSize, 32768));
+        if (dictionary == null) return 0;
+        compression.setDictionary(dictionary, s);
+        return dictionary.length;
     }
 
     /**
-     * Get a floating point array assigned to a specified key.
+     * Gets how much the value assigned to a specified key was compressed. For arrays, the
+     * array's own key is used.
      *
-     * @param defaultValue Default value
-     * @return Default value if no value assigned
+     * @return Stored length divided by original length, or 1 if the value is not compressed
      */
-    public float[] getFloatArray(String key, float[] defaultValue) {
-        int length = s.getInt(key + ".arrayLength", -1);
-        if (length == -1) return defaultValue;
-        if (! s.getString(key + ".arrayType", "").equals("Float")) return defaultValue;
-
-        float[] value = new float[length];
-        for (int i = 0; i < length; i++) {
-            value[i] = s.getFloat(key + '[' + i + ']', 0);
-        }
-        return value;
+    public float getCompressionRatio(String key) {
+        String value = s.getString(key, null);
+        if (!ValueCompression.isCompressed(value)) value = s.getString(key + PackedArrays.SUFFIX, null);
+        return ValueCompression.ratio(value);
     }
 
     /**
-     * Get a long value assigned to a specified key. If no value assigned, return 0.
+     * Gets how much every compressed value was compressed.
      *
-     * @return 0 if no value assigned
+     * @return Stored length divided by original length, by key
      */
-    public long getLong(String key) {
-        return s.getLong(key, 0);
+    public Map<String, Float> getCompressionRatios() {
+        Map<String, Float> ratios = new HashMap<String, Float>();
+        for (Map.Entry<String, ?> entry : s.getAll().entrySet()) {
+            Object value = entry.getValue();
+            if (value instanceof String && ValueCompression.isCompressed((String) value)) {
+                ratios.put(ArrayKeys.baseOf(entry.getKey()), ValueCompression.ratio((String) value));
+            }
+        }
+        return ratios;
+    }
+
+    private String decompress(String value, String defaultValue) {
+        if (!ValueCompression.isCompressed(value)) return value;
+        String plain = compression.decompress(value, s);
+        return plain != null ? plain : defaultValue;
     }
 
     /**
-     * Get a long value assigned to a specified key.
+     * Registers a migration of the objects or arrays assigned to a key. Values are upgraded
+     * lazily: a value read by {@link #getObject(String, Type)} or an array getter goes through
+     * every migration newer than its stored version, and is written back with its new version
+     * in a single commit, so an upgrade interrupted by process death is simply run again.
+     * Values put from now on are written at the latest version. Migrations must be registered
+     * before the key is read or written. Strings put with {@link Editor#putString(String, String)}
+     * and stored values which are not a JSON object or array are never migrated.
      *
-     * @param defaultValue Default value
-     * @return Default value if no value assigned
+     * @param key       Key the values were put with
+     * @param version   Version the migration upgrades to from the version before. Values
+     *                  stored before any migration was registered are at version 0.
+     * @param migration Migration
+     * @throws IllegalArgumentException if the version is below 1 or already registered
      */
-    public long getLong(String key, long defaultValue) {
-        return s.getLong(key, defaultValue);
+    public void registerMigration(String key, int version, Migration migration) {
+        migrations.register(key, false, version, migration);
+        synchronized (migrations) {
+            sweepQueue.clear();
+        }
     }
 
     /**
-     * Get a long array assigned to a specified key.
+     * Registers a migration of the objects or arrays assigned to every key which starts with
+     * a prefix and has no migrations of its own. A key matching several prefixes is migrated
+     * by those of the longest.
      *
-     * @throws NullPointerException if no array assigned
+     * @param prefix    Prefix of the keys the values were put with
+     * @param version   Version the migration upgrades to from the version before
+     * @param migration Migration
+     * @throws IllegalArgumentException if the version is below 1 or already registered
+     * @see #registerMigration(String, int, Migration)
      */
-    public long[] getLongArray(String key) throws NullPointerException {
-        int length = s.getInt(key + ".arrayLength", -1);
-        if (length == -1) throw new NullPointerException();
-        if (! s.getString(key + ".arrayType", "").equals("Long")) throw new NullPointerException();
-
-        long[] value = new long[length];
-        for (int i = 0; i < length; i++) {
-            value[i] = s.getLong(key + '[' + i + ']', 0);
+    public void registerPrefixMigration(String prefix, int version, Migration migration) {
+        migrations.register(prefix, true, version, migration);
+        synchronized (migrations) {
+            sweepQueue.clear();
         }
-        return value;
     }
 
     /**
-     * Get a long array assigned to a specified key.
+     * Upgrades up to {@code maxKeys} values which have not been read since their migrations
+     * were registered, in a single commit on the calling thread. It can be called whenever
+     * the app is idle, for example from a {@code MessageQueue.IdleHandler}. Values a migration
+     * throws on are skipped, and throw when read.
      *
-     * @param defaultValue Default value
-     * @return Default value if no value assigned
+     * @param maxKeys Maximum number of values to upgrade
+     * @return Number of upgraded values, or 0 once every value is up to date
      */
-    public long[] getLongArray(String key, long[] defaultValue) {
-        int length = s.getInt(key + ".arrayLength", -1);
-        if (length == -1) return defaultValue;
-        if (! s.getString(key + ".arrayType", "").equals("Long")) return defaultValue;
-
-        long[] value = new long[length];
-        for (int i = 0; i < length; i++) {
-            value[i] = s.getLong(key + '[' + i + ']', 0);
+    public int migrate(int maxKeys) {
+        if (migrations.isEmpty()) return 0;
+
+        synchronized (migrations) {
+            Editor editor = edit();
+            int upgraded = 0;
+            boolean scanned = false;
+            while (upgraded < maxKeys) {
+                String key = sweepQueue.poll();
+                if (key == null) {
+                    // Values upgraded by this call are not committed yet, so a scan would
+                    // find them again.
+                    if (scanned || upgraded > 0) break;
+                    scanned = true;
+                    Set<String> keys = new LinkedHashSet<String>();
+                    for (String stored : s.getAll().keySet()) {
+                        if (stored.startsWith(ValueCompression.MARKER)) continue;
+                        String base = ArrayKeys.baseOf(stored);
+                        if (migrations.target(base) > 0) keys.add(base);
+                    }
+                    sweepQueue.addAll(keys);
+                    continue;
+                }
+                try {
+                    if (upgrade(key, null, editor)) upgraded++;
+                } catch (RuntimeException e) {
+                    // A value the migrations cannot handle is left as it is, and fails when
+                    // read, rather than stopping every other value from being upgraded.
+                }
+            }
+            if (upgraded > 0) editor.commit();
+            return upgraded;
         }
-        return value;
     }
 
     /**
-     * Get a string value assigned to a specified key. If no value assigned, return null.
+     * Upgrades the values which have not been read since their migrations were registered on
+     * a low priority background thread, {@code batchSize} values per commit, and stops once
+     * every value is up to date.
      *
-     * @return null if no value assigned
+     * @param batchSize    Maximum number of values upgraded per commit
+     * @param periodMillis Time in milliseconds between commits
      */
-    public String getString(String key) {
-        return s.getString(key, null);
+    public synchronized void enableMigrationSweeper(final int batchSize, long periodMillis) {
+        disableMigrationSweeper();
+        final ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "SharedPreferencesHelper-migrations");
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            }
+        });
+        sweeper.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                if (migrate(batchSize) == 0) sweeper.shutdown();
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+        migrationSweeper = sweeper;
     }
 
     /**
-     * Get a string value assigned to a specified key.
-     *
-     * @param defaultValue Default value
-     * @return Default value if no value assigned
+     * Stops upgrading values in the background. Values are still upgraded when read.
      */
-    public String getString(String key, String defaultValue) {
-        return s.getString(key, defaultValue);
+    public synchronized void disableMigrationSweeper() {
+        if (migrationSweeper != null) migrationSweeper.shutdown();
+        migrationSweeper = null;
     }
 
     /**
-     * Get a string array assigned to a specified key.
+     * Upgrades a value on the calling thread before it is read, if it is not up to date.
      *
-     * @throws NullPointerException if no array assigned
+     * @param arrayType Array class the value is read as, or null for an object
      */
-    public String[] getStringArray(String key) throws NullPointerException {
-        int length = s.getInt(key + ".arrayLength", -1);
-        if (length == -1) throw new NullPointerException();
-        if (! s.getString(key + ".arrayType", "").equals("String")) throw new NullPointerException();
+    private void upgrade(String key, Class<?> arrayType) {
+        if (migrations.isEmpty()) return;
+        if (migrations.pending(key, s.getInt(key + Migrations.VERSION_SUFFIX, 0)) == null) return;
 
-        String[] value = new String[length];
-        for (int i = 0; i < length; i++) {
-            value[i] = s.getString(key + '[' + i + ']', null);
+        synchronized (migrations) {
+            Editor editor = edit();
+            if (upgrade(key, arrayType, editor)) editor.commit();
         }
-        return value;
     }
 
     /**
-     * Get a string array assigned to a specified key.
+     * Runs the migrations a value has not gone through yet, and puts it back at the latest
+     * version. The caller must hold the lock of the migrations.
      *
-     * @param defaultValue Default value
-     * @return Default value if no value assigned
+     * @param arrayType Array class the value is read as, or null to keep the stored one
+     * @return true if the value was upgraded
      */
-    public String[] getStringArray(String key, String[] defaultValue) {
-        int length = s.getInt(key + ".arrayLength", -1);
-        if (length == -1) return defaultValue;
-        if (! s.getString(key + ".arrayType", "").equals("String")) return defaultValue;
+    private boolean upgrade(String key, Class<?> arrayType, Editor editor) {
+        SortedMap<Integer, Migration> pending =
+                migrations.pending(key, s.getInt(key + Migrations.VERSION_SUFFIX, 0));
+        if (pending == null) return false;
+
+        ArrayKeys keys = new ArrayKeys(key);
+        Class<?> storedType = storedArrayType(keys);
+        String json;
+        if (storedType != null) {
+            json = gson.toJson(readArray(keys, storedType));
+        } else {
+            try {
+                json = decompress(s.getString(key, null), null);
+            } catch (ClassCastException e) {
+                // Only objects and arrays are migrated.
+                return false;
+            }
+            if (!Migrations.isMigratable(json)) return false;
+        }
 
-        String[] value = new String[length];
-        for (int i = 0; i < length; i++) {
-            value[i] = s.getString(key + '[' + i + ']', null);
+        for (Migration migration : pending.values()) json = migration.migrate(key, json);
+
+        if (storedType != null) {
+            Object array = gson.fromJson(json, arrayType != null ? arrayType : storedType);
+            editor.putArray(keys, array);
+        } else {
+            editor.putJson(key, json);
         }
-        return value;
+        return true;
     }
 
     /**
-     * Get a BigInteger value assigned to a specified key. If no value assigned, return 0.
-     *
-     * @return 0 if no value assigned
+     * @return Class of the array stored under the keys, or null if there is none
      */
-    public BigInteger getBigInteger(String key) {
-        return new BigInteger(s.getString(key, "0"));
+    private Class<?> storedArrayType(ArrayKeys keys) {
+        String packed = decompress(s.getString(keys.packed, null), null);
+        ChunkedArrays.Header header = ChunkedArrays.parse(packed);
+        if (header != null) return PackedArrays.arrayClass(header.type);
+        if (packed != null) return PackedArrays.arrayClass(PackedArrays.typeOf(packed));
+
+        if (s.getInt(keys.length(), -1) == -1) return null;
+        String type = s.getString(keys.type(), "");
+        if (type.equals("Boolean")) return boolean[].class;
+        if (type.equals("Integer")) return int[].class;
+        if (type.equals("Long")) return long[].class;
+        if (type.equals("Float")) return float[].class;
+        if (type.equals("String")) return String[].class;
+        return null;
     }
 
-    /**
+    private Object readArray(ArrayKeys keys, Class<?> type) {
+        if (type == boolean[].class) return readBooleanArray(keys, null);
+        if (type == int[].class) return readIntArray(keys, null);
+        if (type == long[].class) return readLongArray(keys, null);
+        if (type == float[].class) return readFloatArray(keys, null);
+        return readStringArray(keys, null);
+    }
+
+    /**
+     * Registers a codec used instead of Gson to read and write objects of a class. Codecs
+     * generated for classes marked with {@link PreferenceObject} are found automatically.
+     *
+     * @param type  Class of the objects
+     * @param codec Codec
+     */
+    public <T> void registerCodec(Class<T> type, ObjectCodec<T> codec) {
+        codecs.register(type, codec);
+    }
+
+    /**
+     * Registers a codec which stores values of a class in compact binary form, for
+     * {@link #putScalar(String, Object)} and {@link #getScalar(String, Class, Object)}.
+     * BigInteger, BigDecimal, UUID, enums, and Instant and Duration where the platform has
+     * them, have built in codecs.
+     *
+     * @param type  Class of the values
+     * @param id    Id stored with every value, unique among the codecs of this helper
+     * @param codec Codec
+     * @throws IllegalArgumentException if the id is empty, contains ':' or is taken
+     */
+    public <T> void registerScalarCodec(Class<T> type, String id, ScalarCodec<T> codec) {
+        scalars.register(type, id, codec);
+    }
+
+    /**
+     * {@link #toJson(Object)} and {@link #fromJson(String, Type)}, for copies of cached objects.
+     */
+    private final ObjectCache.Json cacheJson = new ObjectCache.Json() {
+        @Override
+        public String toJson(Object value) {
+            return SharedPreferencesHelper.this.toJson(value);
+        }
+
+        @Override
+        public Object fromJson(String json, Type type) {
+            return SharedPreferencesHelper.this.fromJson(json, type);
+        }
+    };
+
+    @SuppressWarnings("unchecked")
+    private String toJson(Object value) {
+        ObjectCodec<Object> codec = value == null ? null : codecs.find((Class<Object>) value.getClass());
+        if (codec == null) return gson.toJson(value);
+
+        StringWriter out = new StringWriter();
+        try {
+            codec.write(new JsonWriter(out), value);
+        } catch (IOException e) {
+            throw new JsonIOException(e);
+        }
+        return out.toString();
+    }
+
+    private Object fromJson(String json, Type type) {
+        ObjectCodec<?> codec = type instanceof Class ? codecs.find((Class<?>) type) : null;
+        if (codec == null) return gson.fromJson(json, type);
+        if (json == null || json.length() == 0) return null;
+
+        try {
+            JsonReader in = new JsonReader(new StringReader(json));
+            if (in.peek() == JsonToken.END_DOCUMENT) return null;
+            return codec.read(in);
+        } catch (IOException e) {
+            throw new JsonSyntaxException(e);
+        } catch (IllegalStateException e) {
+            throw new JsonSyntaxException(e);
+        }
+    }
+
+    /**
+     * Checks if specified key is in the preferences.
+     *
+     * @return true if preference contains value with specified key
+     */
+    public boolean contains(String key) {
+        return !expireIfDue(key) && s.contains(key);
+    }
+
+    /**
+     * Put a string value which expires after a time. Once expired, it reads as absent and is
+     * removed on the next read or by the expiry sweeper.
+     */
+    public void putString(String key, String value, long ttl, TimeUnit unit) {
+        edit().putString(key, value, ttl, unit).commit();
+    }
+
+    /**
+     * Put an object which expires after a time. Once expired, it reads as absent and is
+     * removed on the next read or by the expiry sweeper.
+     */
+    public void putObject(String key, Object value, long ttl, TimeUnit unit) {
+        edit().putObject(key, value, ttl, unit).commit();
+    }
+
+    /**
+     * Limits the values put with a time to live. Past either limit, the sweeper and
+     * {@link #removeExpired(int)} remove the ones used longest ago, after expired ones. Sizes
+     * are estimated as two bytes per character of keys and strings.
+     *
+     * @param maxEntries Maximum number of expiring values, or 0 for no limit
+     * @param maxBytes   Maximum size in bytes of expiring values, or 0 for no limit
+     */
+    public void setExpiringEntryLimits(int maxEntries, long maxBytes) {
+        this.maxExpiringEntries = maxEntries;
+        this.maxExpiringBytes = maxBytes;
+    }
+
+    /**
+     * Removes up to {@code maxEntries} expired values, then values used longest ago while the
+     * expiring values are over their limits, in a single commit on the calling thread.
+     *
+     * @param maxEntries Maximum number of values to remove
+     * @return Number of removed values, or 0 once nothing is due
+     */
+    public int removeExpired(int maxEntries) {
+        expiry.load(s);
+        if (!expiry.isActive() || s instanceof PreferencesSnapshot) return 0;
+        List<String> due = expiry.due(System.currentTimeMillis(), maxExpiringEntries, maxExpiringBytes, maxEntries);
+        if (due.isEmpty()) return 0;
+
+        Editor editor = edit();
+        for (String key : due) {
+            editor.remove(key);
+            // Also when the value itself is gone already.
+            editor.clearExpiry(key);
+        }
+        editor.commit();
+        return due.size();
+    }
+
+    /**
+     * Removes expired values and enforces the limits on a low priority background thread,
+     * {@code batchSize} values per commit.
+     *
+     * @param batchSize    Maximum number of values removed per commit
+     * @param periodMillis Time in milliseconds between commits
+     * @see #setExpiringEntryLimits(int, long)
+     */
+    public synchronized void enableExpirySweeper(final int batchSize, long periodMillis) {
+        disableExpirySweeper();
+        ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "SharedPreferencesHelper-expiry");
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            }
+        });
+        sweeper.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                removeExpired(batchSize);
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+        expirySweeper = sweeper;
+    }
+
+    /**
+     * Stops removing expired values in the background. They are still removed when read.
+     */
+    public synchronized void disableExpirySweeper() {
+        if (expirySweeper != null) expirySweeper.shutdown();
+        expirySweeper = null;
+    }
+
+    /**
+     * Registers listener.
+     *
+     * @param listener Listener
+     */
+    public void registerListener(final SharedPreferences.OnSharedPreferenceChangeListener listener) {
+        StorageEngine.Listener adapter = new StorageEngine.Listener() {
+            @Override
+            public void onChanged(StorageEngine engine, String key) {
+                Instrumentation i = instrumentation;
+                if (i == null) {
+                    listener.onSharedPreferenceChanged(getSharedPreferences(), key);
+                    return;
+                }
+
+                long start = System.nanoTime();
+                listener.onSharedPreferenceChanged(getSharedPreferences(), key);
+                i.listenerCalled(System.nanoTime() - start);
+            }
+        };
+        synchronized (listeners) {
+            if (listeners.containsKey(listener)) return;
+            listeners.put(listener, adapter);
+        }
+        s.addListener(adapter);
+    }
+
+    /**
+     * Unregisters listener.
+     *
+     * @param listener Listener
+     */
+    public void unregisterListener(SharedPreferences.OnSharedPreferenceChangeListener listener) {
+        StorageEngine.Listener adapter;
+        synchronized (listeners) {
+            adapter = listeners.remove(listener);
+        }
+        if (adapter != null) s.removeListener(adapter);
+    }
+
+    /**
+     * Subscribes to changes of the keys matched by a filter. The listener is called on a
+     * background thread, once for every burst of changes, with an array reported under its
+     * own key however many entries it is stored in.
+     *
+     * @param filter   Keys to be notified about
+     * @param listener Listener
+     * @return Subscription, to be cancelled when no longer needed
+     */
+    public ChangeSubscription subscribe(KeyFilter filter, ChangeSubscription.Listener listener) {
+        return subscribe(filter, 0, null, listener);
+    }
+
+    /**
+     * Subscribes to changes of the keys matched by a filter. Changes arriving within the
+     * debounce window after the first one are delivered together in a single call.
+     *
+     * @param filter         Keys to be notified about
+     * @param debounceMillis Time in milliseconds to collect changes before the listener is called
+     * @param executor       Executor the listener is called on, or null for a background thread
+     * @param listener       Listener
+     * @return Subscription, to be cancelled when no longer needed
+     */
+    public ChangeSubscription subscribe(KeyFilter filter, long debounceMillis, Executor executor,
+                                        ChangeSubscription.Listener listener) {
+        return new ChangeSubscription(s, filter, debounceMillis, executor, listener);
+    }
+
+    /**
+     * Starts a batch of edits. Nothing is written until {@link Editor#commit()} or
+     * {@link Editor#apply()} is called, and then every change is written at once.
+     *
+     * @return Editor
+     */
+    public Editor edit() {
+        return new Editor(batch());
+    }
+
+    /**
+     * Starts a batch on the engine, which keeps the key index up to date if there is one.
+     */
+    private StorageEngine.Batch batch() {
+        StorageEngine engine = s;
+        KeyIndex index = keyIndex;
+        if (index == null) return engine.edit();
+        index.bind(engine);
+        return index.track(engine.edit());
+    }
+
+    /**
+     * Remove any value assigned with specified key.
+     */
+    public void remove(String key) {
+        edit().remove(key).commit();
+    }
+
+    /**
+     * Assign a boolean value to a specified key.
+     */
+    public void putBoolean(String key, boolean value) {
+        edit().putBoolean(key, value).commit();
+    }
+
+    /**
+     * Assign a boolean array to a specified key.
+     */
+    public void putBooleanArray(String key, boolean[] value) {
+        edit().putBooleanArray(key, value).commit();
+    }
+
+    /**
+     * Assign a integer value to a specified key.
+     */
+    public void putInt(String key, int value) {
+        edit().putInt(key, value).commit();
+    }
+
+    /**
+     * Assign a integer array to a specified key.
+     */
+    public void putIntArray(String key, int[] value) {
+        edit().putIntArray(key, value).commit();
+    }
+
+    /**
+     * Assign a floating point value to a specified key.
+     */
+    public void putFloat(String key, float value) {
+        edit().putFloat(key, value).commit();
+    }
+
+    /**
+     * Assign a floating point array to a specified key.
+     */
+    public void putFloatArray(String key, float[] value) {
+        edit().putFloatArray(key, value).commit();
+    }
+
+    /**
+     * Assign a long value to a specified key.
+     */
+    public void putLong(String key, long value) {
+        edit().putLong(key, value).commit();
+    }
+
+    /**
+     * Assign a long array to a specified key.
+     */
+    public void putLongArray(String key, long[] value) {
+        edit().putLongArray(key, value).commit();
+    }
+
+    /**
+     * Assign a string value to a specified key.
+     */
+    public void putString(String key, String value) {
+        edit().putString(key, value).commit();
+    }
+
+    /**
+     * Assign a long array to a specified key.
+     */
+    public void putStringArray(String key, String[] value) {
+        edit().putStringArray(key, value).commit();
+    }
+
+    /**
+     * Assign a BigInteger value to a specified key.
+     */
+    public void putBigInteger(String key, BigInteger value) {
+        edit().putBigInteger(key, value).commit();
+    }
+
+    /**
+     * Assign a BigDecimal value to a specified key.
+     */
+    public void putBigDecimal(String key, BigDecimal value) {
+        edit().putBigDecimal(key, value).commit();
+    }
+
+    /**
+     * Assign a date value to a specified key.
+     */
+    public void putDate(String key, Date value) {
+        edit().putDate(key, value).commit();
+    }
+
+    /**
+     * Assign a value to a specified key with the scalar codec of its class.
+     *
+     * @throws IllegalArgumentException if the value's class has no scalar codec
+     */
+    public void putScalar(String key, Object value) {
+        edit().putScalar(key, value).commit();
+    }
+
+    /**
+     * Assign a serializable object to a specified key.
+     */
+    public void putObject(String key, Object value) {
+        edit().putObject(key, value).commit();
+    }
+
+    /**
+     * Assign a string set to a specified key.
+     */
+    @TargetApi(11)
+    public void putStringSet(String key, Set<String> value) {
+        edit().putStringSet(key, value).commit();
+    }
+
+
+    /**
+     * Get a value assigned to a typed handle.
+     *
+     * @param key Handle
+     * @return Default value of the handle if no value assigned
+     */
+    public <T> T get(PrefKey<T> key) {
+        return key.read(this);
+    }
+
+    /**
+     * Assign a value to a typed handle.
+     */
+    public <T> void put(PrefKey<T> key, T value) {
+        edit().put(key, value).commit();
+    }
+
+    /**
+     * Writes every value to a stream in a compact binary format, one record per value and per
+     * array. Expiry times are not written, so imported values do not expire. The stream is
+     * flushed but not closed.
+     *
+     * @param out Stream to write to
+     * @return Number of records written
+     * @throws IOException if the stream cannot be written
+     */
+    public int exportTo(OutputStream out) throws IOException {
+        return StoreArchive.write(s, compression, out);
+    }
+
+    /**
+     * Puts every value written by {@link #exportTo(OutputStream)}, committing every 5000
+     * values. Values not in the archive are kept.
+     *
+     * @param in Stream to read from
+     * @return Number of records read
+     * @throws IOException if the stream cannot be read or is not a valid archive
+     */
+    public int importFrom(InputStream in) throws IOException {
+        return importFrom(in, 5000);
+    }
+
+    /**
+     * Puts every value written by {@link #exportTo(OutputStream)}, committing every
+     * {@code batchSize} values. Values not in the archive are kept. If the archive is cut
+     * short, the batches committed before stay written.
+     *
+     * @param in        Stream to read from
+     * @param batchSize Number of values in each commit
+     * @return Number of records read
+     * @throws IOException if the stream cannot be read or is not a valid archive
+     */
+    public int importFrom(InputStream in, int batchSize) throws IOException {
+        return StoreArchive.read(in, this, batchSize);
+    }
+
+    /**
+     * Observes the value assigned to a specified key, read as a type: the current value
+     * first, then every value which differs from the one before. Values are read and
+     * delivered on a shared background thread, and observers of the same key and type share
+     * every read. Nothing is emitted while no value is assigned.
+     *
+     * @param type Type of the value, such as {@code Integer.class}, {@code int[].class} or an
+     *             object type
+     * @return Publisher of the value
+     */
+    public <T> PreferenceFlow.Publisher<T> observe(String key, Type type) {
+        return observe(key, type, null);
+    }
+
+    /**
+     * Observes the value assigned to a specified key like {@link #observe(String, Type)},
+     * reading and delivering values on an executor.
+     *
+     * @param type     Type of the value
+     * @param executor Executor values are read and delivered on
+     * @return Publisher of the value
+     */
+    public <T> PreferenceFlow.Publisher<T> observe(final String key, final Type type, Executor executor) {
+        return publisher(Arrays.asList(key, type, executor), key, executor, new ValuePublisher.Reader<T>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public T read() {
+                return (T) readAs(key, type);
+            }
+        });
+    }
+
+    /**
+     * Observes a typed handle like {@link #observe(String, Type)}. While nothing is assigned,
+     * the handle's default value is emitted.
+     *
+     * @return Publisher of the value
+     */
+    public <T> PreferenceFlow.Publisher<T> observe(final PrefKey<T> key) {
+        return publisher(key, key.name, null, new ValuePublisher.Reader<T>() {
+            @Override
+            public T read() {
+                return key.read(SharedPreferencesHelper.this);
+            }
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> PreferenceFlow.Publisher<T> publisher(final Object id, String key, Executor executor,
+                                                      ValuePublisher.Reader<T> reader) {
+        synchronized (publishers) {
+            ValuePublisher<?> publisher = publishers.get(id);
+            if (publisher == null) {
+                final ValuePublisher<?>[] created = new ValuePublisher<?>[1];
+                publisher = created[0] = new ValuePublisher<T>(this, key, reader, executor, new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (publishers) {
+                            if (publishers.get(id) == created[0]) publishers.remove(id);
+                        }
+                    }
+                });
+                publishers.put(id, publisher);
+            }
+            return (PreferenceFlow.Publisher<T>) publisher;
+        }
+    }
+
+    /**
+     * @return Value read with the getter matching the type, or null if no value is assigned
+     */
+    private Object readAs(String key, Type type) {
+        if (!s.contains(key)) {
+            ArrayKeys keys = new ArrayKeys(key);
+            if (!s.contains(keys.packed) && !s.contains(keys.length())) return null;
+        }
+
+        if (type == Boolean.class) return getBoolean(key, false);
+        if (type == Integer.class) return getInt(key, 0);
+        if (type == Long.class) return getLong(key, 0);
+        if (type == Float.class) return getFloat(key, 0);
+        if (type == String.class) return getString(key, null);
+        if (type == BigInteger.class) return getBigInteger(key);
+        if (type == BigDecimal.class) return getBigDecimal(key);
+        if (type == Date.class) return getDate(key);
+        if (type == Set.class) return getStringSet(key, null);
+        if (type == boolean[].class) return getBooleanArray(key, null);
+        if (type == int[].class) return getIntArray(key, null);
+        if (type == long[].class) return getLongArray(key, null);
+        if (type == float[].class) return getFloatArray(key, null);
+        if (type == String[].class) return getStringArray(key, null);
+        return getObject(key, type);
+    }
+
+    /**
+     * Get all values stored in this preference. Compression dictionaries and the expiry times
+     * of values put with a time to live are left out.
+     *
+     * @return All values in a map
+     */
+    public Map<String, ?> getAll() {
+        return withoutMetadata(s.getAll());
+    }
+
+    /**
+     * @return The values, or a copy of them without compression dictionaries and expiry times
+     */
+    private Map<String, ?> withoutMetadata(Map<String, ?> all) {
+        boolean expiring = all.containsKey(EntryExpiry.MARKER);
+        Map<String, Object> values = null;
+        for (String key : all.keySet()) {
+            if (!ValueCompression.isMetadata(key) && !(expiring && EntryExpiry.isMetadata(key))) continue;
+            if (values == null) values = new HashMap<String, Object>(all);
+            values.remove(key);
+        }
+        return values != null ? values : all;
+    }
+
+    /**
+     * Get the keys starting with a prefix, as they are stored: an array shows as its packed
+     * entry, chunks or elements. Compression dictionaries and expiry times are left out. The
+     * first call builds a sorted index of every key, which is kept up to date from then on, so
+     * later calls cost the keys found rather than the whole store.
+     *
+     * @param prefix Prefix, or "" for every key
+     * @return Keys in order
+     */
+    public SortedSet<String> keys(String prefix) {
+        return keyIndex().keys(prefix);
+    }
+
+    /**
+     * Iterate over the values stored under keys starting with a prefix, in key order. Each
+     * value is read when the iterator reaches it, as {@link #getAll()} would hold it.
+     *
+     * @param prefix Prefix, or "" for every key
+     * @return Entries by stored key
+     */
+    public Iterator<Map.Entry<String, Object>> entries(String prefix) {
+        return keyIndex().entries(prefix);
+    }
+
+    /**
+     * Remove every value stored under keys starting with a prefix in a single commit. Arrays
+     * are removed whole, and compression dictionaries are kept.
+     *
+     * @param prefix Prefix, or "" for every key
+     * @return Number of keys removed
+     */
+    public int removeAll(String prefix) {
+        Editor editor = edit();
+        int removed = editor.removeKeys(prefix);
+        editor.commit();
+        return removed;
+    }
+
+    private KeyIndex keyIndex() {
+        KeyIndex index = keyIndex;
+        if (index == null) {
+            synchronized (listeners) {
+                if (keyIndex == null) keyIndex = new KeyIndex(s);
+                index = keyIndex;
+            }
+        }
+        // Follows the engine when write-behind mode replaces it.
+        index.bind(s);
+        return index;
+    }
+
+    /**
+     * Get a boolean value assigned to a specified key. If no value assigned, return false.
+     *
+     * @return false if no value assigned
+     */
+    public boolean getBoolean(String key) {
+        if (read(key)) return false;
+        return s.getBoolean(key, false);
+    }
+
+    /**
+     * Get a boolean value assigned to a specified key.
+     *
+     * @param defaultValue Default value
+     * @return Default value if no value assigned
+     */
+    public boolean getBoolean(String key, boolean defaultValue) {
+        if (read(key)) return defaultValue;
+        return s.getBoolean(key, defaultValue);
+    }
+
+    /**
+     * Get a boolean array assigned to a specified key.
+     *
+     * @throws NullPointerException if no array assigned
+     */
+    public boolean[] getBooleanArray(String key) throws NullPointerException {
+        boolean[] value = getBooleanArray(key, null);
+        if (value == null) throw new NullPointerException();
+        return value;
+    }
+
+    /**
+     * Get a boolean array assigned to a specified key.
+     *
+     * @param defaultValue Default value
+     * @return Default value if no value assigned
+     */
+    public boolean[] getBooleanArray(String key, boolean[] defaultValue) {
+        return getBooleanArray(new ArrayKeys(key), defaultValue);
+    }
+
+    boolean[] getBooleanArray(ArrayKeys keys, boolean[] defaultValue) {
+        if (read(keys.base)) return defaultValue;
+        upgrade(keys.base, boolean[].class);
+        return readBooleanArray(keys, defaultValue);
+    }
+
+    private boolean[] readBooleanArray(ArrayKeys keys, boolean[] defaultValue) {
+        String packed = decompress(s.getString(keys.packed, null), null);
+        ChunkedArrays.Header header = ChunkedArrays.parse(packed);
+        if (header != null) {
+            boolean[] value = (boolean[]) readChunked(keys, header, boolean[].class);
+            return value != null ? value : defaultValue;
+        }
+        if (packed != null) {
+            boolean[] value = PackedArrays.decodeBooleanArray(packed);
+            return value != null ? value : defaultValue;
+        }
+
+        int length = s.getInt(keys.length(), -1);
+        if (length == -1) return defaultValue;
+        if (! s.getString(keys.type(), "").equals("Boolean")) return defaultValue;
+
+        boolean[] value = new boolean[length];
+        for (int i = 0; i < length; i++) {
+            value[i] = s.getBoolean(keys.element(i), false);
+        }
+        return value;
+    }
+
+    /**
+     * Get a integer value assigned to a specified key. If no value assigned, return 0.
+     *
+     * @return 0 if no value assigned
+     */
+    public int getInt(String key) {
+        if (read(key)) return 0;
+        return s.getInt(key, 0);
+    }
+
+    /**
+     * Get a integer value assigned to a specified key.
+     *
+     * @param defaultValue Default value
+     * @return Default value if no value assigned
+     */
+    public int getInt(String key, int defaultValue) {
+        if (read(key)) return defaultValue;
+        return s.getInt(key, defaultValue);
+    }
+
+    /**
+     * Get a integer array assigned to a specified key.
+     *
+     * @throws NullPointerException if no array assigned
+     */
+    public int[] getIntArray(String key) throws NullPointerException {
+        int[] value = getIntArray(key, null);
+        if (value == null) throw new NullPointerException();
+        return value;
+    }
+
+    /**
+     * Get a integer array assigned to a specified key.
+     *
+     * @param defaultValue Default value
+     * @return Default value if no value assigned
+     */
+    public int[] getIntArray(String key, int[] defaultValue) {
+        return getIntArray(new ArrayKeys(key), defaultValue);
+    }
+
+    int[] getIntArray(ArrayKeys keys, int[] defaultValue) {
+        if (read(keys.base)) return defaultValue;
+        upgrade(keys.base, int[].class);
+        return readIntArray(keys, defaultValue);
+    }
+
+    private int[] readIntArray(ArrayKeys keys, int[] defaultValue) {
+        String packed = decompress(s.getString(keys.packed, null), null);
+        ChunkedArrays.Header header = ChunkedArrays.parse(packed);
+        if (header != null) {
+            int[] value = (int[]) readChunked(keys, header, int[].class);
+            return value != null ? value : defaultValue;
+        }
+        if (packed != null) {
+            int[] value = PackedArrays.decodeIntArray(packed);
+            return value != null ? value : defaultValue;
+        }
+
+        int length = s.getInt(keys.length(), -1);
+        if (length == -1) return defaultValue;
+        if (! s.getString(keys.type(), "").equals("Integer")) return defaultValue;
+
+        int[] value = new int[length];
+        for (int i = 0; i < length; i++) {
+            value[i] = s.getInt(keys.element(i), 0);
+        }
+        return value;
+    }
+
+    /**
+     * Get a floating point value assigned to a specified key. If no value assigned, return 0.0.
+     *
+     * @return 0.0 if no value assigned
+     */
+    public float getFloat(String key) {
+        if (read(key)) return 0.0f;
+        return s.getFloat(key, 0.0f);
+    }
+
+    /**
+     * Get a floating point value assigned to a specified key.
+     *
+     * @param defaultValue Default value
+     * @return Default value if no value assigned
+     */
+    public float getFloat(String key, float defaultValue) {
+        if (read(key)) return defaultValue;
+        return s.getFloat(key, defaultValue);
+    }
+
+    /**
+     * Get a floating point array assigned to a specified key.
+     *
+     * @throws NullPointerException if no array assigned
+     */
+    public float[] getFloatArray(String key) throws NullPointerException {
+        float[] value = getFloatArray(key, null);
+        if (value == null) throw new NullPointerException();
+        return value;
+    }
+
+    /**
+     * Get a floating point array assigned to a specified key.
+     *
+     * @param defaultValue Default value
+     * @return Default value if no value assigned
+     */
+    public float[] getFloatArray(String key, float[] defaultValue) {
+        return getFloatArray(new ArrayKeys(key), defaultValue);
+    }
+
+    float[] getFloatArray(ArrayKeys keys, float[] defaultValue) {
+        if (read(keys.base)) return defaultValue;
+        upgrade(keys.base, float[].class);
+        return readFloatArray(keys, defaultValue);
+    }
+
+    private float[] readFloatArray(ArrayKeys keys, float[] defaultValue) {
+        String packed = decompress(s.getString(keys.packed, null), null);
+        ChunkedArrays.Header header = ChunkedArrays.parse(packed);
+        if (header != null) {
+            float[] value = (float[]) readChunked(keys, header, float[].class);
+            return value != null ? value : defaultValue;
+        }
+        if (packed != null) {
+            float[] value = PackedArrays.decodeFloatArray(packed);
+            return value != null ? value : defaultValue;
+        }
+
+        int length = s.getInt(keys.length(), -1);
+        if (length == -1) return defaultValue;
+        if (! s.getString(keys.type(), "").equals("Float")) return defaultValue;
+
+        float[] value = new float[length];
+        for (int i = 0; i < length; i++) {
+            value[i] = s.getFloat(keys.element(i), 0);
+        }
+        return value;
+    }
+
+    /**
+     * Get a long value assigned to a specified key. If no value assigned, return 0.
+     *
+     * @return 0 if no value assigned
+     */
+    public long getLong(String key) {
+        if (read(key)) return 0;
+        return s.getLong(key, 0);
+    }
+
+    /**
+     * Get a long value assigned to a specified key.
+     *
+     * @param defaultValue Default value
+     * @return Default value if no value assigned
+     */
+    public long getLong(String key, long defaultValue) {
+        if (read(key)) return defaultValue;
+        return s.getLong(key, defaultValue);
+    }
+
+    /**
+     * Get a long array assigned to a specified key.
+     *
+     * @throws NullPointerException if no array assigned
+     */
+    public long[] getLongArray(String key) throws NullPointerException {
+        long[] value = getLongArray(key, null);
+        if (value == null) throw new NullPointerException();
+        return value;
+    }
+
+    /**
+     * Get a long array assigned to a specified key.
+     *
+     * @param defaultValue Default value
+     * @return Default value if no value assigned
+     */
+    public long[] getLongArray(String key, long[] defaultValue) {
+        return getLongArray(new ArrayKeys(key), defaultValue);
+    }
+
+    long[] getLongArray(ArrayKeys keys, long[] defaultValue) {
+        if (read(keys.base)) return defaultValue;
+        upgrade(keys.base, long[].class);
+        return readLongArray(keys, defaultValue);
+    }
+
+    private long[] readLongArray(ArrayKeys keys, long[] defaultValue) {
+        String packed = decompress(s.getString(keys.packed, null), null);
+        ChunkedArrays.Header header = ChunkedArrays.parse(packed);
+        if (header != null) {
+            long[] value = (long[]) readChunked(keys, header, long[].class);
+            return value != null ? value : defaultValue;
+        }
+        if (packed != null) {
+            long[] value = PackedArrays.decodeLongArray(packed);
+            return value != null ? value : defaultValue;
+        }
+
+        int length = s.getInt(keys.length(), -1);
+        if (length == -1) return defaultValue;
+        if (! s.getString(keys.type(), "").equals("Long")) return defaultValue;
+
+        long[] value = new long[length];
+        for (int i = 0; i < length; i++) {
+            value[i] = s.getLong(keys.element(i), 0);
+        }
+        return value;
+    }
+
+    /**
+     * Get a string value assigned to a specified key. If no value assigned, return null.
+     *
+     * @return null if no value assigned
+     */
+    public String getString(String key) {
+        if (read(key)) return null;
+        return decompress(s.getString(key, null), null);
+    }
+
+    /**
+     * Get a string value assigned to a specified key.
+     *
+     * @param defaultValue Default value
+     * @return Default value if no value assigned
+     */
+    public String getString(String key, String defaultValue) {
+        if (read(key)) return defaultValue;
+        return decompress(s.getString(key, defaultValue), defaultValue);
+    }
+
+    /**
+     * Get a string array assigned to a specified key.
+     *
+     * @throws NullPointerException if no array assigned
+     */
+    public String[] getStringArray(String key) throws NullPointerException {
+        String[] value = getStringArray(key, null);
+        if (value == null) throw new NullPointerException();
+        return value;
+    }
+
+    /**
+     * Get a string array assigned to a specified key.
+     *
+     * @param defaultValue Default value
+     * @return Default value if no value assigned
+     */
+    public String[] getStringArray(String key, String[] defaultValue) {
+        return getStringArray(new ArrayKeys(key), defaultValue);
+    }
+
+    String[] getStringArray(ArrayKeys keys, String[] defaultValue) {
+        if (read(keys.base)) return defaultValue;
+        upgrade(keys.base, String[].class);
+        return readStringArray(keys, defaultValue);
+    }
+
+    private String[] readStringArray(ArrayKeys keys, String[] defaultValue) {
+        String packed = decompress(s.getString(keys.packed, null), null);
+        ChunkedArrays.Header header = ChunkedArrays.parse(packed);
+        if (header != null) {
+            String[] value = (String[]) readChunked(keys, header, String[].class);
+            return value != null ? value : defaultValue;
+        }
+        if (packed != null) {
+            String[] value = PackedArrays.decodeStringArray(packed);
+            return value != null ? value : defaultValue;
+        }
+
+        int length = s.getInt(keys.length(), -1);
+        if (length == -1) return defaultValue;
+        if (! s.getString(keys.type(), "").equals("String")) return defaultValue;
+
+        String[] value = new String[length];
+        for (int i = 0; i < length; i++) {
+            value[i] = s.getString(keys.element(i), null);
+        }
+        return value;
+    }
+
+    /**
+     * Get a range of a boolean array assigned to a specified key. Only the chunks the range
+     * overlaps are read from a chunked array.
+     *
+     * @param from First index, inclusive
+     * @param to   Last index, exclusive
+     * @return Elements from {@code from} to {@code to - 1}, or null if no array assigned
+     * @throws IndexOutOfBoundsException if the range is not within the array
+     */
+    public boolean[] getBooleanArrayRange(String key, int from, int to) {
+        return (boolean[]) readRange(new ArrayKeys(key), boolean[].class, from, to);
+    }
+
+    /**
+     * Iterate over a boolean array assigned to a specified key one chunk at a time, so a long
+     * array is never in memory whole. An array which is not chunked is a single chunk.
+     *
+     * @return Chunks in order, none if no array assigned
+     */
+    public Iterator<boolean[]> getBooleanArrayChunks(String key) {
+        return chunks(new ArrayKeys(key), boolean[].class);
+    }
+
+    /**
+     * Set an element of a boolean array assigned to a specified key, rewriting only the chunk
+     * which holds it.
+     *
+     * @throws IndexOutOfBoundsException if no array or no such element assigned
+     */
+    public void setBooleanArrayElement(String key, int index, boolean value) {
+        edit().setBooleanArrayElement(key, index, value).commit();
+    }
+
+    /**
+     * Append elements to a boolean array assigned to a specified key, rewriting only its last
+     * chunks. An array is created if none is assigned.
+     */
+    public void appendToBooleanArray(String key, boolean... values) {
+        edit().appendToBooleanArray(key, values).commit();
+    }
+
+    /**
+     * Get a range of a integer array assigned to a specified key. Only the chunks the range
+     * overlaps are read from a chunked array.
+     *
+     * @param from First index, inclusive
+     * @param to   Last index, exclusive
+     * @return Elements from {@code from} to {@code to - 1}, or null if no array assigned
+     * @throws IndexOutOfBoundsException if the range is not within the array
+     */
+    public int[] getIntArrayRange(String key, int from, int to) {
+        return (int[]) readRange(new ArrayKeys(key), int[].class, from, to);
+    }
+
+    /**
+     * Iterate over a integer array assigned to a specified key one chunk at a time, so a long
+     * array is never in memory whole. An array which is not chunked is a single chunk.
+     *
+     * @return Chunks in order, none if no array assigned
+     */
+    public Iterator<int[]> getIntArrayChunks(String key) {
+        return chunks(new ArrayKeys(key), int[].class);
+    }
+
+    /**
+     * Set an element of a integer array assigned to a specified key, rewriting only the chunk
+     * which holds it.
+     *
+     * @throws IndexOutOfBoundsException if no array or no such element assigned
+     */
+    public void setIntArrayElement(String key, int index, int value) {
+        edit().setIntArrayElement(key, index, value).commit();
+    }
+
+    /**
+     * Append elements to a integer array assigned to a specified key, rewriting only its last
+     * chunks. An array is created if none is assigned.
+     */
+    public void appendToIntArray(String key, int... values) {
+        edit().appendToIntArray(key, values).commit();
+    }
+
+    /**
+     * Get a range of a floating point array assigned to a specified key. Only the chunks the range
+     * overlaps are read from a chunked array.
+     *
+     * @param from First index, inclusive
+     * @param to   Last index, exclusive
+     * @return Elements from {@code from} to {@code to - 1}, or null if no array assigned
+     * @throws IndexOutOfBoundsException if the range is not within the array
+     */
+    public float[] getFloatArrayRange(String key, int from, int to) {
+        return (float[]) readRange(new ArrayKeys(key), float[].class, from, to);
+    }
+
+    /**
+     * Iterate over a floating point array assigned to a specified key one chunk at a time, so a long
+     * array is never in memory whole. An array which is not chunked is a single chunk.
+     *
+     * @return Chunks in order, none if no array assigned
+     */
+    public Iterator<float[]> getFloatArrayChunks(String key) {
+        return chunks(new ArrayKeys(key), float[].class);
+    }
+
+    /**
+     * Set an element of a floating point array assigned to a specified key, rewriting only the chunk
+     * which holds it.
+     *
+     * @throws IndexOutOfBoundsException if no array or no such element assigned
+     */
+    public void setFloatArrayElement(String key, int index, float value) {
+        edit().setFloatArrayElement(key, index, value).commit();
+    }
+
+    /**
+     * Append elements to a floating point array assigned to a specified key, rewriting only its last
+     * chunks. An array is created if none is assigned.
+     */
+    public void appendToFloatArray(String key, float... values) {
+        edit().appendToFloatArray(key, values).commit();
+    }
+
+    /**
+     * Get a range of a long array assigned to a specified key. Only the chunks the range
+     * overlaps are read from a chunked array.
+     *
+     * @param from First index, inclusive
+     * @param to   Last index, exclusive
+     * @return Elements from {@code from} to {@code to - 1}, or null if no array assigned
+     * @throws IndexOutOfBoundsException if the range is not within the array
+     */
+    public long[] getLongArrayRange(String key, int from, int to) {
+        return (long[]) readRange(new ArrayKeys(key), long[].class, from, to);
+    }
+
+    /**
+     * Iterate over a long array assigned to a specified key one chunk at a time, so a long
+     * array is never in memory whole. An array which is not chunked is a single chunk.
+     *
+     * @return Chunks in order, none if no array assigned
+     */
+    public Iterator<long[]> getLongArrayChunks(String key) {
+        return chunks(new ArrayKeys(key), long[].class);
+    }
+
+    /**
+     * Set an element of a long array assigned to a specified key, rewriting only the chunk
+     * which holds it.
+     *
+     * @throws IndexOutOfBoundsException if no array or no such element assigned
+     */
+    public void setLongArrayElement(String key, int index, long value) {
+        edit().setLongArrayElement(key, index, value).commit();
+    }
+
+    /**
+     * Append elements to a long array assigned to a specified key, rewriting only its last
+     * chunks. An array is created if none is assigned.
+     */
+    public void appendToLongArray(String key, long... values) {
+        edit().appendToLongArray(key, values).commit();
+    }
+
+    /**
+     * Get a range of a string array assigned to a specified key. Only the chunks the range
+     * overlaps are read from a chunked array.
+     *
+     * @param from First index, inclusive
+     * @param to   Last index, exclusive
+     * @return Elements from {@code from} to {@code to - 1}, or null if no array assigned
+     * @throws IndexOutOfBoundsException if the range is not within the array
+     */
+    public String[] getStringArrayRange(String key, int from, int to) {
+        return (String[]) readRange(new ArrayKeys(key), String[].class, from, to);
+    }
+
+    /**
+     * Iterate over a string array assigned to a specified key one chunk at a time, so a long
+     * array is never in memory whole. An array which is not chunked is a single chunk.
+     *
+     * @return Chunks in order, none if no array assigned
+     */
+    public Iterator<String[]> getStringArrayChunks(String key) {
+        return chunks(new ArrayKeys(key), String[].class);
+    }
+
+    /**
+     * Set an element of a string array assigned to a specified key, rewriting only the chunk
+     * which holds it.
+     *
+     * @throws IndexOutOfBoundsException if no array or no such element assigned
+     */
+    public void setStringArrayElement(String key, int index, String value) {
+        edit().setStringArrayElement(key, index, value).commit();
+    }
+
+    /**
+     * Append elements to a string array assigned to a specified key, rewriting only its last
+     * chunks. An array is created if none is assigned.
+     */
+    public void appendToStringArray(String key, String... values) {
+        edit().appendToStringArray(key, values).commit();
+    }
+
+    /**
+     * Reads a whole chunked array.
+     *
+     * @return Array, or null if it is of another type or a chunk is missing
+     */
+    private Object readChunked(ArrayKeys keys, ChunkedArrays.Header header, Class<?> type) {
+        if (header.type != PackedArrays.typeOf(type)) return null;
+        return ChunkedArrays.read(s, compression, keys, header, 0, header.length);
+    }
+
+    private Object readRange(ArrayKeys keys, Class<?> type, int from, int to) {
+        if (read(keys.base)) return null;
+        upgrade(keys.base, type);
+        ChunkedArrays.Header header = ChunkedArrays.parse(s.getString(keys.packed, null));
+        Object whole = null;
+        int length;
+        if (header != null) {
+            if (header.type != PackedArrays.typeOf(type)) return null;
+            length = header.length;
+        } else {
+            whole = readArray(keys, type);
+            if (whole == null) return null;
+            length = Array.getLength(whole);
+        }
+        if (from < 0 || to > length || from > to) {
+            throw new IndexOutOfBoundsException("Range " + from + " to " + to + ", length " + length);
+        }
+        if (header != null) return ChunkedArrays.read(s, compression, keys, header, from, to);
+
+        Object range = Array.newInstance(type.getComponentType(), to - from);
+        System.arraycopy(whole, from, range, 0, to - from);
+        return range;
+    }
+
+    /**
+     * Iterates over the chunks of an array, reading each when the iterator reaches it. A
+     * chunk changed meanwhile into a different length fails with IllegalStateException.
+     */
+    private <A> Iterator<A> chunks(final ArrayKeys keys, final Class<A> type) {
+        if (read(keys.base)) return Collections.<A>emptyList().iterator();
+        upgrade(keys.base, type);
+        final ChunkedArrays.Header header = ChunkedArrays.parse(s.getString(keys.packed, null));
+        if (header == null || header.type != PackedArrays.typeOf(type)) {
+            Object whole = readArray(keys, type);
+            List<A> single = whole != null ? Collections.singletonList(type.cast(whole)) : Collections.<A>emptyList();
+            return single.iterator();
+        }
+
+        return new Iterator<A>() {
+
+            private int next;
+
+            @Override
+            public boolean hasNext() {
+                return next < header.chunks();
+            }
+
+            @Override
+            public A next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                Object elements = ChunkedArrays.readChunk(s, compression, keys, header, next);
+                if (elements == null) {
+                    throw new IllegalStateException("Chunk " + next + " of " + keys.base + " is missing");
+                }
+                next++;
+                return type.cast(elements);
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Get a BigInteger value assigned to a specified key. If no value assigned, return 0.
+     *
+     * @return 0 if no value assigned
+     */
+    public BigInteger getBigInteger(String key) {
+        return getScalar(key, BigInteger.class, BigInteger.ZERO);
+    }
+
+    /**
      * Get a BigInteger value assigned to a specified key.
      *
      * @param defaultValue Default value
      * @return Default value if no value assigned
      */
     public BigInteger getBigInteger(String key, BigInteger defaultValue) {
-        return new BigInteger(s.getString(key, defaultValue.toString()));
+        return getScalar(key, BigInteger.class, defaultValue);
     }
 
     /**
@@ -625,7 +2169,17 @@ public class SharedPreferencesHelper {
      * @return 0 if no value assigned
      */
     public BigDecimal getBigDecimal(String key) {
-        return new BigDecimal(s.getString(key, "0"));
+        return getScalar(key, BigDecimal.class, BigDecimal.ZERO);
+    }
+
+    /**
+     * Get a BigDecimal value assigned to a specified key.
+     *
+     * @param defaultValue Default value
+     * @return Default value if no value assigned
+     */
+    public BigDecimal getBigDecimal(String key, BigDecimal defaultValue) {
+        return getScalar(key, BigDecimal.class, defaultValue);
     }
 
     /**
@@ -633,9 +2187,42 @@ public class SharedPreferencesHelper {
      *
      * @param defaultValue Default value
      * @return Default value if no value assigned
+     * @deprecated Use {@link #getBigDecimal(String, BigDecimal)}
      */
+    @Deprecated
     public BigDecimal getBigDecimal(String key, BigInteger defaultValue) {
-        return new BigDecimal(s.getString(key, defaultValue.toString()));
+        return getBigDecimal(key, new BigDecimal(defaultValue));
+    }
+
+    /**
+     * Get a value assigned to a specified key with the scalar codec of a class. Values of the
+     * class stored as text, such as decimal strings written by earlier versions, are parsed.
+     *
+     * @return null if no value of the class assigned
+     * @throws IllegalArgumentException if the class has no scalar codec
+     */
+    public <T> T getScalar(String key, Class<T> type) {
+        return getScalar(key, type, null);
+    }
+
+    /**
+     * Get a value assigned to a specified key with the scalar codec of a class.
+     *
+     * @param defaultValue Default value
+     * @return Default value if no value of the class assigned
+     * @throws IllegalArgumentException if the class has no scalar codec
+     */
+    public <T> T getScalar(String key, Class<T> type, T defaultValue) {
+        if (read(key)) return defaultValue;
+        String stored;
+        try {
+            stored = s.getString(key, null);
+        } catch (ClassCastException e) {
+            return defaultValue;
+        }
+        if (stored == null) return defaultValue;
+        T value = scalars.decode(key, stored, type);
+        return value != null ? value : defaultValue;
     }
 
     /**
@@ -644,6 +2231,7 @@ public class SharedPreferencesHelper {
      * @return Current date if no value assigned
      */
     public Date getDate(String key) {
+        if (read(key)) return new Date();
         return new Date(s.getLong(key, System.currentTimeMillis()));
     }
 
@@ -654,6 +2242,7 @@ public class SharedPreferencesHelper {
      * @return Default value if no value assigned
      */
     public Date getDate(String key, Date defaultValue) {
+        if (read(key)) return new Date(defaultValue.getTime());
         return new Date(s.getLong(key, defaultValue.getTime()));
     }
 
@@ -664,16 +2253,7 @@ public class SharedPreferencesHelper {
      * @throws NullPointerException if no object assigned
      */
     public Object getObject(String key) throws NullPointerException {
-        String json = s.getString(key, "");
-        Object object;
-
-        try {
-            object = gson.fromJson(json, Object.class);
-        } catch (NullPointerException e) {
-            throw e;
-        }
-
-        return object;
+        return getObject(key, Object.class);
     }
 
     /**
@@ -684,15 +2264,25 @@ public class SharedPreferencesHelper {
      * @throws NullPointerException if no object assigned
      */
     public Object getObject(String key, Type type) throws NullPointerException {
-        String json = s.getString(key, "");
+        if (read(key)) return null;
+        upgrade(key, null);
+        ObjectCache cache = objectCache;
+        if (cache != null) {
+            Object cached = cache.get(cacheJson, key, type);
+            if (cached != null) return cached;
+        }
+
+        long generation = cache != null ? cache.generation() : 0;
+        String json = decompress(s.getString(key, ""), "");
         Object object;
 
         try {
-            object = gson.fromJson(json, type);
+            object = fromJson(json, type);
         } catch (NullPointerException e) {
             throw e;
         }
 
+        if (cache != null) return cache.put(cacheJson, key, type, object, generation);
         return object;
     }
 
@@ -703,6 +2293,7 @@ public class SharedPreferencesHelper {
      */
     @TargetApi(11)
     public Set<String> getStringSet(String key) {
+        if (read(key)) return null;
         return s.getStringSet(key, null);
     }
 
@@ -714,6 +2305,648 @@ public class SharedPreferencesHelper {
      */
     @TargetApi(11)
     public Set<String> getStringSet(String key, Set<String> defaultValue) {
+        if (read(key)) return defaultValue;
         return s.getStringSet(key, defaultValue);
     }
+
+    /**
+     * A batch of edits on the preferences this helper is using. Every put is held until
+     * {@link #commit()} or {@link #apply()} is called, so a burst of puts costs one write.
+     */
+    public class Editor {
+
+        private StorageEngine.Batch e;
+        private boolean arraysChanged;
+        private ObjectCache cache = objectCache;
+        private Instrumentation metrics = instrumentation;
+        private List<String> changedKeys;
+        private boolean cleared;
+        private Set<String> written;
+        private int writes;
+        private Map<String, ChunkedArrays.Pending> chunked;
+        /**
+         * Expiry times set in this batch by key, or -1 where an expiry is dropped.
+         */
+        private Map<String, Long> expiries;
+        private boolean expiryMarked;
+
+        private Editor(StorageEngine.Batch e) {
+            this.e = e;
+            if (cache != null) changedKeys = new ArrayList<String>();
+            if (writeElision) written = new HashSet<String>();
+            expiry.load(s);
+        }
+
+        private void changed(String key) {
+            wrote(key);
+            if (changedKeys != null) changedKeys.add(key);
+            if (metrics != null) metrics.write(key);
+        }
+
+        private void wrote(String key) {
+            if (written != null) written.add(key);
+            writes++;
+            writeCounts.add(WRITTEN, 1);
+            // A value written without a time to live no longer expires.
+            if (expiry.isActive() && (expiries == null || !expiries.containsKey(key)) && expiry.contains(key)) {
+                clearExpiry(key);
+            }
+        }
+
+        private void clearExpiry(String key) {
+            e.remove(key + EntryExpiry.SUFFIX);
+            if (expiries == null) expiries = new HashMap<String, Long>();
+            expiries.put(key, -1L);
+            writes++;
+        }
+
+        /**
+         * Checks if a put may be left out when the key already holds its value. A key written
+         * earlier in this batch, or put after a clear, is always written so the last put wins.
+         */
+        private boolean mayElide(String key) {
+            if (written == null || cleared || written.contains(key)) return false;
+            // Putting the same value without a time to live still drops its expiry.
+            return !expiry.isActive() || expiries != null && expiries.containsKey(key) || !expiry.contains(key);
+        }
+
+        private Editor elided() {
+            writeCounts.add(ELIDED, 1);
+            return this;
+        }
+
+        /**
+         * Remove any value assigned with specified key, including an array's elements.
+         */
+        public Editor remove(String key) {
+            ArrayKeys keys = new ArrayKeys(key);
+            if (mayElide(key) && holds(key, null) && holds(keys.packed, null)
+                    && s.getInt(keys.length(), -1) == -1) {
+                return elided();
+            }
+
+            e.remove(key);
+            changed(key);
+            if (!migrations.isEmpty()) e.remove(key + Migrations.VERSION_SUFFIX);
+            e.remove(keys.packed);
+            removeElements(keys);
+            removeChunks(keys);
+            arraysChanged = true;
+            return this;
+        }
+
+        /**
+         * Remove every value stored under keys starting with a prefix. Arrays are removed
+         * whole, and compression dictionaries are kept.
+         */
+        public Editor removeAll(String prefix) {
+            removeKeys(prefix);
+            return this;
+        }
+
+        /**
+         * @return Number of keys removed
+         */
+        private int removeKeys(String prefix) {
+            SortedSet<String> keys = keyIndex().keys(prefix);
+            Set<String> removed = new HashSet<String>();
+            for (String key : keys) {
+                // The key itself goes too, in case it is left over from an array.
+                e.remove(key);
+                wrote(key);
+                if (removed.add(ArrayKeys.baseOf(key))) remove(ArrayKeys.baseOf(key));
+            }
+            return keys.size();
+        }
+
+        /**
+         * Assign a value to a typed handle.
+         */
+        public <T> Editor put(PrefKey<T> key, T value) {
+            key.write(this, value);
+            return this;
+        }
+
+        /**
+         * Remove all values in the preferences.
+         */
+        public Editor clear() {
+            e.clear();
+            compression.restoreDictionary(e);
+            cleared = true;
+            chunked = null;
+            return this;
+        }
+
+        /**
+         * Assign a boolean value to a specified key.
+         */
+        public Editor putBoolean(String key, boolean value) {
+            if (mayElide(key) && holds(key, value)) return elided();
+            e.putBoolean(key, value);
+            changed(key);
+            return this;
+        }
+
+        /**
+         * Assign a boolean array to a specified key.
+         */
+        public Editor putBooleanArray(String key, boolean[] value) {
+            return putBooleanArray(new ArrayKeys(key), value);
+        }
+
+        Editor putBooleanArray(ArrayKeys keys, boolean[] value) {
+            return putArray(keys, value);
+        }
+
+        /**
+         * Assign a integer value to a specified key.
+         */
+        public Editor putInt(String key, int value) {
+            if (mayElide(key) && holds(key, value)) return elided();
+            e.putInt(key, value);
+            changed(key);
+            return this;
+        }
+
+        /**
+         * Assign a integer array to a specified key.
+         */
+        public Editor putIntArray(String key, int[] value) {
+            return putIntArray(new ArrayKeys(key), value);
+        }
+
+        Editor putIntArray(ArrayKeys keys, int[] value) {
+            return putArray(keys, value);
+        }
+
+        /**
+         * Assign a floating point value to a specified key.
+         */
+        public Editor putFloat(String key, float value) {
+            if (mayElide(key) && holds(key, value)) return elided();
+            e.putFloat(key, value);
+            changed(key);
+            return this;
+        }
+
+        /**
+         * Assign a floating point array to a specified key.
+         */
+        public Editor putFloatArray(String key, float[] value) {
+            return putFloatArray(new ArrayKeys(key), value);
+        }
+
+        Editor putFloatArray(ArrayKeys keys, float[] value) {
+            return putArray(keys, value);
+        }
+
+        /**
+         * Assign a long value to a specified key.
+         */
+        public Editor putLong(String key, long value) {
+            if (mayElide(key) && holds(key, value)) return elided();
+            e.putLong(key, value);
+            changed(key);
+            return this;
+        }
+
+        /**
+         * Assign a long array to a specified key.
+         */
+        public Editor putLongArray(String key, long[] value) {
+            return putLongArray(new ArrayKeys(key), value);
+        }
+
+        Editor putLongArray(ArrayKeys keys, long[] value) {
+            return putArray(keys, value);
+        }
+
+        /**
+         * Assign a string value to a specified key.
+         */
+        public Editor putString(String key, String value) {
+            String stored = compression.compress(value);
+            boolean plain = value != null && migrations.target(key) > 0;
+            if (mayElide(key) && holds(key, stored)
+                    && (!plain || s.getInt(key + Migrations.VERSION_SUFFIX, 0) == Migrations.PLAIN)) {
+                return elided();
+            }
+            e.putString(key, stored);
+            // Keeps migrations registered for the key away from a string which looks like JSON.
+            if (plain) e.putInt(key + Migrations.VERSION_SUFFIX, Migrations.PLAIN);
+            changed(key);
+            return this;
+        }
+
+        /**
+         * Assign a string value which expires after a time to a specified key.
+         */
+        public Editor putString(String key, String value, long ttl, TimeUnit unit) {
+            return putString(key, value).expireAfter(key, ttl, unit);
+        }
+
+        /**
+         * Assign a string array to a specified key.
+         */
+        public Editor putStringArray(String key, String[] value) {
+            return putStringArray(new ArrayKeys(key), value);
+        }
+
+        Editor putStringArray(ArrayKeys keys, String[] value) {
+            return putArray(keys, value);
+        }
+
+        /**
+         * Assign a BigInteger value to a specified key.
+         */
+        public Editor putBigInteger(String key, BigInteger value) {
+            return putScalar(key, value);
+        }
+
+        /**
+         * Assign a BigDecimal value to a specified key.
+         */
+        public Editor putBigDecimal(String key, BigDecimal value) {
+            return putScalar(key, value);
+        }
+
+        /**
+         * Assign a value to a specified key with the scalar codec of its class.
+         *
+         * @throws IllegalArgumentException if the value's class has no scalar codec
+         */
+        public Editor putScalar(String key, Object value) {
+            String stored = scalars.encode(value);
+            if (mayElide(key) && holds(key, stored)) return elided();
+            e.putString(key, stored);
+            changed(key);
+            return this;
+        }
+
+        /**
+         * Assign a date value to a specified key.
+         */
+        public Editor putDate(String key, Date value) {
+            if (mayElide(key) && holds(key, value.getTime())) return elided();
+            e.putLong(key, value.getTime());
+            changed(key);
+            return this;
+        }
+
+        /**
+         * Assign a serializable object to a specified key.
+         */
+        public Editor putObject(String key, Object value) {
+            return putJson(key, toJson(value));
+        }
+
+        /**
+         * Assign an object which expires after a time to a specified key.
+         */
+        public Editor putObject(String key, Object value, long ttl, TimeUnit unit) {
+            return putObject(key, value).expireAfter(key, ttl, unit);
+        }
+
+        /**
+         * Make the value of a specified key, of any type, expire after a time from now. Once
+         * expired it reads as absent. Writing the key again without a time to live, in a later
+         * batch or earlier in this one, makes it permanent again.
+         */
+        public Editor expireAfter(String key, long ttl, TimeUnit unit) {
+            long expiresAt = System.currentTimeMillis() + unit.toMillis(ttl);
+            if (!expiryMarked && (cleared || !s.contains(EntryExpiry.MARKER))) {
+                e.putBoolean(EntryExpiry.MARKER, true);
+                expiryMarked = true;
+            }
+            e.putLong(key + EntryExpiry.SUFFIX, expiresAt);
+            if (expiries == null) expiries = new HashMap<String, Long>();
+            expiries.put(key, expiresAt);
+            writes++;
+            writeCounts.add(WRITTEN, 1);
+            return this;
+        }
+
+        /**
+         * Assign a string set to a specified key.
+         */
+        @TargetApi(11)
+        public Editor putStringSet(String key, Set<String> value) {
+            if (mayElide(key) && holds(key, value)) return elided();
+            e.putStringSet(key, value);
+            changed(key);
+            return this;
+        }
+
+        /**
+         * Set an element of a boolean array assigned to a specified key, rewriting only the
+         * chunk which holds it.
+         *
+         * @throws IndexOutOfBoundsException if no array or no such element assigned
+         */
+        public Editor setBooleanArrayElement(String key, int index, boolean value) {
+            ArrayKeys keys = new ArrayKeys(key);
+            ChunkedArrays.Pending pending = chunked(keys, boolean[].class);
+            pending.set(s, compression, keys, index, value);
+            return writeChunks(keys, pending);
+        }
+
+        /**
+         * Append elements to a boolean array assigned to a specified key, rewriting only its
+         * last chunks. An array is created if none is assigned.
+         */
+        public Editor appendToBooleanArray(String key, boolean... values) {
+            ArrayKeys keys = new ArrayKeys(key);
+            ChunkedArrays.Pending pending = chunked(keys, boolean[].class);
+            pending.append(s, compression, keys, values);
+            return writeChunks(keys, pending);
+        }
+
+        /**
+         * Set an element of a integer array assigned to a specified key, rewriting only the
+         * chunk which holds it.
+         *
+         * @throws IndexOutOfBoundsException if no array or no such element assigned
+         */
+        public Editor setIntArrayElement(String key, int index, int value) {
+            ArrayKeys keys = new ArrayKeys(key);
+            ChunkedArrays.Pending pending = chunked(keys, int[].class);
+            pending.set(s, compression, keys, index, value);
+            return writeChunks(keys, pending);
+        }
+
+        /**
+         * Append elements to a integer array assigned to a specified key, rewriting only its
+         * last chunks. An array is created if none is assigned.
+         */
+        public Editor appendToIntArray(String key, int... values) {
+            ArrayKeys keys = new ArrayKeys(key);
+            ChunkedArrays.Pending pending = chunked(keys, int[].class);
+            pending.append(s, compression, keys, values);
+            return writeChunks(keys, pending);
+        }
+
+        /**
+         * Set an element of a floating point array assigned to a specified key, rewriting only the
+         * chunk which holds it.
+         *
+         * @throws IndexOutOfBoundsException if no array or no such element assigned
+         */
+        public Editor setFloatArrayElement(String key, int index, float value) {
+            ArrayKeys keys = new ArrayKeys(key);
+            ChunkedArrays.Pending pending = chunked(keys, float[].class);
+            pending.set(s, compression, keys, index, value);
+            return writeChunks(keys, pending);
+        }
+
+        /**
+         * Append elements to a floating point array assigned to a specified key, rewriting only its
+         * last chunks. An array is created if none is assigned.
+         */
+        public Editor appendToFloatArray(String key, float... values) {
+            ArrayKeys keys = new ArrayKeys(key);
+            ChunkedArrays.Pending pending = chunked(keys, float[].class);
+            pending.append(s, compression, keys, values);
+            return writeChunks(keys, pending);
+        }
+
+        /**
+         * Set an element of a long array assigned to a specified key, rewriting only the
+         * chunk which holds it.
+         *
+         * @throws IndexOutOfBoundsException if no array or no such element assigned
+         */
+        public Editor setLongArrayElement(String key, int index, long value) {
+            ArrayKeys keys = new ArrayKeys(key);
+            ChunkedArrays.Pending pending = chunked(keys, long[].class);
+            pending.set(s, compression, keys, index, value);
+            return writeChunks(keys, pending);
+        }
+
+        /**
+         * Append elements to a long array assigned to a specified key, rewriting only its
+         * last chunks. An array is created if none is assigned.
+         */
+        public Editor appendToLongArray(String key, long... values) {
+            ArrayKeys keys = new ArrayKeys(key);
+            ChunkedArrays.Pending pending = chunked(keys, long[].class);
+            pending.append(s, compression, keys, values);
+            return writeChunks(keys, pending);
+        }
+
+        /**
+         * Set an element of a string array assigned to a specified key, rewriting only the
+         * chunk which holds it.
+         *
+         * @throws IndexOutOfBoundsException if no array or no such element assigned
+         */
+        public Editor setStringArrayElement(String key, int index, String value) {
+            ArrayKeys keys = new ArrayKeys(key);
+            ChunkedArrays.Pending pending = chunked(keys, String[].class);
+            pending.set(s, compression, keys, index, value);
+            return writeChunks(keys, pending);
+        }
+
+        /**
+         * Append elements to a string array assigned to a specified key, rewriting only its
+         * last chunks. An array is created if none is assigned.
+         */
+        public Editor appendToStringArray(String key, String... values) {
+            ArrayKeys keys = new ArrayKeys(key);
+            ChunkedArrays.Pending pending = chunked(keys, String[].class);
+            pending.append(s, compression, keys, values);
+            return writeChunks(keys, pending);
+        }
+
+        Editor putJson(String key, String json) {
+            String stored = compression.compress(json);
+            if (mayElide(key) && holds(key, stored) && isCurrentVersion(key)) return elided();
+            e.putString(key, stored);
+            stampVersion(key);
+            wrote(key);
+            if (changedKeys != null) changedKeys.add(key);
+            if (metrics != null) metrics.write(key, json.length(), false);
+            return this;
+        }
+
+        Editor putPacked(ArrayKeys keys, String packed) {
+            return putPacked(keys, packed, true);
+        }
+
+        /**
+         * @param current true if the array is at the latest version of its migrations, false
+         *                if its version is written separately, as by an import
+         */
+        Editor putPacked(ArrayKeys keys, String packed, boolean current) {
+            String stored = compression.compress(packed);
+            if (mayElide(keys.base) && holds(keys.packed, stored) && s.getInt(keys.length(), -1) == -1
+                    && (!current || isCurrentVersion(keys.base))) {
+                return elided();
+            }
+            wrote(keys.base);
+            removeElements(keys);
+            removeChunks(keys);
+            arraysChanged = true;
+            e.putString(keys.packed, stored);
+            if (current) stampVersion(keys.base);
+            if (metrics != null) metrics.write(keys.base, packed.length(), true);
+            return this;
+        }
+
+        /**
+         * Puts a whole array, keeping a chunked array chunked. Chunks which hold the same
+         * elements as before are not written again.
+         */
+        Editor putArray(ArrayKeys keys, Object value) {
+            if (value != null && (chunked != null && chunked.containsKey(keys.base)
+                    || ChunkedArrays.parse(s.getString(keys.packed, null)) != null)) {
+                ChunkedArrays.Pending pending = chunked(keys, value.getClass());
+                pending.fill(value);
+                return writeChunks(keys, pending);
+            }
+            return putPacked(keys, PackedArrays.encodeArray(value));
+        }
+
+        /**
+         * Gets the changes made to a chunked array in this batch. An array stored packed or one
+         * entry per element is split into chunks, and an array of another type is replaced by
+         * an empty one.
+         */
+        private ChunkedArrays.Pending chunked(ArrayKeys keys, Class<?> type) {
+            char t = PackedArrays.typeOf(type);
+            if (chunked == null) chunked = new HashMap<String, ChunkedArrays.Pending>();
+            ChunkedArrays.Pending pending = chunked.get(keys.base);
+            if (pending != null && pending.type == t) return pending;
+
+            ChunkedArrays.Header header = ChunkedArrays.parse(s.getString(keys.packed, null));
+            int stored = header != null ? header.chunks() : 0;
+            if (pending != null) {
+                stored = Math.max(pending.storedChunks, pending.header().chunks());
+                pending = new ChunkedArrays.Pending(t, 0, arrayChunkSize, stored);
+            } else if (header != null && header.type == t) {
+                pending = new ChunkedArrays.Pending(t, header.length, header.chunkSize, stored);
+            } else {
+                pending = new ChunkedArrays.Pending(t, 0, arrayChunkSize, stored);
+                Object whole = header == null ? readArray(keys, type) : null;
+                if (whole != null) pending.fill(whole);
+            }
+            chunked.put(keys.base, pending);
+            return pending;
+        }
+
+        /**
+         * Writes the chunks changed since the last call, drops chunks past the end and puts the
+         * header in place of the packed entry.
+         */
+        private Editor writeChunks(ArrayKeys keys, ChunkedArrays.Pending pending) {
+            boolean elide = written != null && !cleared;
+            int size = 0;
+            for (Integer chunk : pending.dirty) {
+                String stored = compression.compress(PackedArrays.encodeArray(pending.chunks.get(chunk)));
+                String key = ChunkedArrays.chunkKey(keys, chunk);
+                if (elide && !pending.written.contains(chunk) && holds(key, stored)) continue;
+                e.putString(key, stored);
+                pending.written.add(chunk);
+                size += stored.length();
+            }
+            pending.dirty.clear();
+
+            String header = pending.header().toString();
+            if (elide && !pending.headerWritten && size == 0 && holds(keys.packed, header)
+                    && isCurrentVersion(keys.base)) {
+                return elided();
+            }
+            for (int chunk = pending.header().chunks(); chunk < pending.storedChunks; chunk++) {
+                e.remove(ChunkedArrays.chunkKey(keys, chunk));
+            }
+            e.putString(keys.packed, header);
+            pending.headerWritten = true;
+            stampVersion(keys.base);
+            removeElements(keys);
+            wrote(keys.base);
+            arraysChanged = true;
+            if (metrics != null) metrics.write(keys.base, size, true);
+            return this;
+        }
+
+        /**
+         * Removes the chunks of a chunked array, including ones added earlier in this batch.
+         */
+        private void removeChunks(ArrayKeys keys) {
+            ChunkedArrays.Pending pending = chunked != null ? chunked.remove(keys.base) : null;
+            ChunkedArrays.Header header = ChunkedArrays.parse(s.getString(keys.packed, null));
+            int chunks = header != null ? header.chunks() : 0;
+            if (pending != null) chunks = Math.max(chunks, Math.max(pending.storedChunks, pending.header().chunks()));
+            for (int chunk = 0; chunk < chunks; chunk++) e.remove(ChunkedArrays.chunkKey(keys, chunk));
+        }
+
+        /**
+         * Records that an object or array is written at the latest version of its migrations.
+         */
+        private void stampVersion(String key) {
+            int target = migrations.target(key);
+            if (target > 0) e.putInt(key + Migrations.VERSION_SUFFIX, target);
+        }
+
+        /**
+         * Removes the elements of an array stored one entry per element, so the array can be
+         * rewritten as a single packed entry.
+         */
+        private void removeElements(ArrayKeys keys) {
+            int length = s.getInt(keys.length(), -1);
+            if (length == -1) return;
+
+            e.remove(keys.length());
+            e.remove(keys.type());
+            for (int i = 0; i < length; i++) e.remove(keys.element(i));
+        }
+
+        /**
+         * Writes every change in this batch synchronously, in a single commit.
+         *
+         * @return true if the new values were successfully written
+         */
+        public boolean commit() {
+            if (written != null && writes == 0 && !cleared) return true;
+            long start = metrics != null ? System.nanoTime() : 0;
+            boolean result = e.commit();
+            if (metrics != null) metrics.committed(System.nanoTime() - start);
+            committed();
+            return result;
+        }
+
+        /**
+         * Writes every change in this batch asynchronously, in a single commit.
+         */
+        @TargetApi(9)
+        public void apply() {
+            if (written != null && writes == 0 && !cleared) return;
+            long start = metrics != null ? System.nanoTime() : 0;
+            e.apply();
+            if (metrics != null) metrics.committed(System.nanoTime() - start);
+            committed();
+        }
+
+        private void committed() {
+            version.incrementAndGet();
+            if (cleared) expiry.clear();
+            if (expiries != null) {
+                for (Map.Entry<String, Long> entry : expiries.entrySet()) {
+                    String key = entry.getKey();
+                    if (entry.getValue() < 0) {
+                        expiry.remove(key);
+                    } else {
+                        expiry.activate();
+                        expiry.put(key, entry.getValue(), EntryExpiry.size(key,
+                                KeyIndex.read(s, key), KeyIndex.read(s, key + PackedArrays.SUFFIX)));
+                    }
+                }
+            }
+            if (cache != null) {
+                if (cleared) cache.invalidateAll();
+                for (String key : changedKeys) cache.invalidate(key);
+            }
+            if (arraysChanged) compactIfNeeded();
+        }
+    }
 }
@@ -0,0 +1,93 @@
+package net.shiftstudios.tools.android.sharedprefs;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Key-value store which {@link SharedPreferencesHelper} reads from and writes to.
+ * <p>
+ * The helper encodes arrays, big numbers, dates and objects into the typed values of an
+ * engine, so every engine supports the whole helper API. Engines must not depend on Android,
+ * so the helper can also run on a plain JVM with an engine such as {@link InMemoryEngine}.
+ */
+public interface StorageEngine {
+
+    boolean contains(String key);
+
+    int getInt(String key, int defValue);
+
+    long getLong(String key, long defValue);
+
+    float getFloat(String key, float defValue);
+
+    boolean getBoolean(String key, boolean defValue);
+
+    String getString(String key, String defValue);
+
+    Set<String> getStringSet(String key, Set<String> defValues);
+
+    /**
+     * Gets every value in the store. The map must not be modified.
+     *
+     * @return All values in a map
+     */
+    Map<String, ?> getAll();
+
+    /**
+     * Starts a batch of changes which is written atomically by {@link Batch#commit()}.
+     *
+     * @return Batch
+     */
+    Batch edit();
+
+    void addListener(Listener listener);
+
+    void removeListener(Listener listener);
+
+    /**
+     * Changes to write at once. Like {@code SharedPreferences.Editor}, a cleared batch is
+     * cleared before its other changes are applied, and putting a null string removes the key.
+     */
+    interface Batch {
+
+        Batch putInt(String key, int value);
+
+        Batch putLong(String key, long value);
+
+        Batch putFloat(String key, float value);
+
+        Batch putBoolean(String key, boolean value);
+
+        Batch putString(String key, String value);
+
+        Batch putStringSet(String key, Set<String> value);
+
+        Batch remove(String key);
+
+        Batch clear();
+
+        /**
+         * Writes the changes synchronously.
+         *
+         * @return true if the changes were successfully written
+         */
+        boolean commit();
+
+        /**
+         * Writes the changes asynchronously. Reads see them immediately.
+         */
+        void apply();
+    }
+
+    /**
+     * Called after a value has changed.
+     */
+    interface Listener {
+
+        /**
+         * @param engine Engine which changed
+         * @param key    Key which changed, or null if the store was cleared
+         */
+        void onChanged(StorageEngine engine, String key);
+    }
+}
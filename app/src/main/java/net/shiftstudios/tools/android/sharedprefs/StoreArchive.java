@@ -0,0 +1,266 @@
+package net.shiftstudios.tools.android.sharedprefs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Binary archive of every value in the preferences.
+ * <p>
+ * An archive is {@link #MAGIC}, a version byte, then one record per value: a tag byte, the
+ * key, and the value. Arrays are a single record under the key they were put with, holding
+ * their packed data, whichever layout they are stored in, chunked arrays included. Objects
+ * are JSON strings in the preferences and are archived as strings. Compressed values are
+ * archived plain, so an archive does not depend on compression dictionaries. The last record
+ * holds the number of records before it.
+ */
+final class StoreArchive {
+
+    static final int MAGIC = 0x53504841;
+    static final int VERSION = 1;
+
+    private static final byte BOOLEAN = 'Z';
+    private static final byte INT = 'I';
+    private static final byte LONG = 'J';
+    private static final byte FLOAT = 'F';
+    private static final byte STRING = 'S';
+    private static final byte STRING_SET = 'T';
+    private static final byte ARRAY = 'A';
+    private static final byte END = 'E';
+
+    private StoreArchive() {
+    }
+
+    /**
+     * @param compression Compression used to read compressed values
+     * @return Number of records written
+     */
+    @SuppressWarnings("unchecked")
+    static int write(StorageEngine s, ValueCompression compression, OutputStream stream) throws IOException {
+        Map<String, ?> all = s.getAll();
+        Set<String> skip = new HashSet<String>(ArrayCompactor.findOrphans(all));
+        boolean expiring = all.containsKey(EntryExpiry.MARKER);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        int records = 0;
+
+        // Arrays stored one entry per element become one record.
+        for (String key : all.keySet()) {
+            if (!key.endsWith(ArrayCompactor.LENGTH_SUFFIX) || skip.contains(key)) continue;
+            ArrayKeys keys = new ArrayKeys(ArrayKeys.baseOf(key));
+            if (all.containsKey(keys.packed) || !(all.get(keys.type()) instanceof String)) continue;
+
+            String packed = packLegacy(all, keys);
+            if (packed == null) continue;
+
+            skip.add(keys.length());
+            skip.add(keys.type());
+            int length = (Integer) all.get(keys.length());
+            for (int i = 0; i < length; i++) skip.add(keys.element(i));
+
+            writeArray(out, keys.base, packed);
+            records++;
+        }
+
+        for (Map.Entry<String, ?> entry : all.entrySet()) {
+            String key = entry.getKey();
+            Object value = entry.getValue();
+            if (skip.contains(key) || key.startsWith(ValueCompression.MARKER) || value == null) continue;
+            if (expiring && EntryExpiry.isMetadata(key)) continue;
+            // Chunks are archived with their array's header.
+            if (ChunkedArrays.chunkIndexStart(key) >= 0 && value instanceof String
+                    && all.containsKey(key.substring(0, ChunkedArrays.chunkIndexStart(key)))) {
+                continue;
+            }
+
+            if (value instanceof String) {
+                String string = (String) value;
+                if (ValueCompression.isCompressed(string)) string = compression.decompress(string, s);
+                if (string == null) continue;
+
+                ChunkedArrays.Header header = ChunkedArrays.parse(string);
+                if (key.endsWith(PackedArrays.SUFFIX) && header != null) {
+                    ArrayKeys keys = new ArrayKeys(ArrayKeys.baseOf(key));
+                    Object array = ChunkedArrays.read(s, compression, keys, header, 0, header.length);
+                    if (array == null) continue;
+                    writeArray(out, keys.base, PackedArrays.encodeArray(array));
+                } else if (key.endsWith(PackedArrays.SUFFIX) && PackedArrays.isPacked(string)) {
+                    writeArray(out, ArrayKeys.baseOf(key), string);
+                } else {
+                    out.writeByte(STRING);
+                    writeString(out, key);
+                    writeString(out, string);
+                }
+            } else if (value instanceof Integer) {
+                out.writeByte(INT);
+                writeString(out, key);
+                out.writeInt((Integer) value);
+            } else if (value instanceof Long) {
+                out.writeByte(LONG);
+                writeString(out, key);
+                out.writeLong((Long) value);
+            } else if (value instanceof Float) {
+                out.writeByte(FLOAT);
+                writeString(out, key);
+                out.writeFloat((Float) value);
+            } else if (value instanceof Boolean) {
+                out.writeByte(BOOLEAN);
+                writeString(out, key);
+                out.writeBoolean((Boolean) value);
+            } else if (value instanceof Set) {
+                Set<String> set = (Set<String>) value;
+                out.writeByte(STRING_SET);
+                writeString(out, key);
+                out.writeInt(set.size());
+                for (String element : set) writeString(out, element);
+            } else {
+                continue;
+            }
+            records++;
+        }
+
+        out.writeByte(END);
+        out.writeInt(records);
+        out.flush();
+        return records;
+    }
+
+    /**
+     * Puts every record of an archive, committing every {@code batchSize} records.
+     *
+     * @return Number of records read
+     * @throws IOException if the stream is not a valid archive or is cut short
+     */
+    static int read(InputStream stream, SharedPreferencesHelper helper, int batchSize) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(stream));
+        if (in.readInt() != MAGIC) throw new IOException("Not a preferences archive");
+        int version = in.readUnsignedByte();
+        if (version != VERSION) throw new IOException("Unsupported archive version " + version);
+
+        SharedPreferencesHelper.Editor editor = helper.edit();
+        int records = 0;
+        int pending = 0;
+        while (true) {
+            byte tag = in.readByte();
+            if (tag == END) {
+                if (in.readInt() != records) throw new IOException("Archive record count mismatch");
+                break;
+            }
+
+            String key = readString(in);
+            switch (tag) {
+                case BOOLEAN:
+                    editor.putBoolean(key, in.readBoolean());
+                    break;
+                case INT:
+                    editor.putInt(key, in.readInt());
+                    break;
+                case LONG:
+                    editor.putLong(key, in.readLong());
+                    break;
+                case FLOAT:
+                    editor.putFloat(key, in.readFloat());
+                    break;
+                case STRING:
+                    editor.putString(key, readString(in));
+                    break;
+                case STRING_SET:
+                    int size = in.readInt();
+                    Set<String> set = new HashSet<String>();
+                    for (int i = 0; i < size; i++) set.add(readString(in));
+                    editor.putStringSet(key, set);
+                    break;
+                case ARRAY:
+                    char type = (char) in.readUnsignedByte();
+                    byte[] data = new byte[readLength(in)];
+                    in.readFully(data);
+                    editor.putPacked(new ArrayKeys(key), PackedArrays.pack(type, data), false);
+                    break;
+                default:
+                    throw new IOException("Unknown archive record " + tag);
+            }
+
+            records++;
+            if (++pending == batchSize) {
+                editor.commit();
+                editor = helper.edit();
+                pending = 0;
+            }
+        }
+
+        if (pending > 0) editor.commit();
+        return records;
+    }
+
+    private static void writeArray(DataOutputStream out, String key, String packed) throws IOException {
+        byte[] data = PackedArrays.bytesOf(packed);
+        out.writeByte(ARRAY);
+        writeString(out, key);
+        out.writeByte(PackedArrays.typeOf(packed));
+        out.writeInt(data.length);
+        out.write(data);
+    }
+
+    /**
+     * @return Packed form of an array stored one entry per element, or null if its type is
+     * unknown or an element is missing
+     */
+    private static String packLegacy(Map<String, ?> all, ArrayKeys keys) {
+        int length = (Integer) all.get(keys.length());
+        String type = (String) all.get(keys.type());
+        try {
+            if (type.equals("Boolean")) {
+                boolean[] array = new boolean[length];
+                for (int i = 0; i < length; i++) array[i] = (Boolean) all.get(keys.element(i));
+                return PackedArrays.encode(array);
+            } else if (type.equals("Integer")) {
+                int[] array = new int[length];
+                for (int i = 0; i < length; i++) array[i] = (Integer) all.get(keys.element(i));
+                return PackedArrays.encode(array);
+            } else if (type.equals("Long")) {
+                long[] array = new long[length];
+                for (int i = 0; i < length; i++) array[i] = (Long) all.get(keys.element(i));
+                return PackedArrays.encode(array);
+            } else if (type.equals("Float")) {
+                float[] array = new float[length];
+                for (int i = 0; i < length; i++) array[i] = (Float) all.get(keys.element(i));
+                return PackedArrays.encode(array);
+            } else if (type.equals("String")) {
+                String[] array = new String[length];
+                for (int i = 0; i < length; i++) array[i] = (String) all.get(keys.element(i));
+                return PackedArrays.encode(array);
+            }
+        } catch (NullPointerException e) {
+            return null;
+        } catch (ClassCastException e) {
+            return null;
+        }
+        return null;
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = PackedArrays.utf8(s);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[readLength(in)];
+        in.readFully(bytes);
+        return PackedArrays.utf8(bytes, 0, bytes.length);
+    }
+
+    private static int readLength(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) throw new IOException("Corrupt archive length " + length);
+        return length;
+    }
+}
@@ -0,0 +1,47 @@
+package net.shiftstudios.tools.android.sharedprefs;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed group of counters split into stripes, so threads adding at the same time mostly
+ * touch different cells. A thread always adds to the same stripe, and sums read every
+ * stripe, so a sum taken while others add is only approximately current.
+ */
+final class StripedCounters {
+
+    private static final int STRIPES;
+
+    static {
+        int stripes = 1;
+        int processors = Runtime.getRuntime().availableProcessors();
+        while (stripes < processors && stripes < 16) stripes <<= 1;
+        STRIPES = stripes;
+    }
+
+    private final AtomicLongArray cells;
+    private final int stride;
+    private final int mask;
+
+    /**
+     * @param width  Number of counters
+     * @param padded Whether stripes are padded to separate cache lines, for counters shared
+     *               by every thread
+     */
+    StripedCounters(int width, boolean padded) {
+        int stripes = padded ? STRIPES : Math.min(STRIPES, 4);
+        this.stride = padded ? (width + 7) & ~7 : width;
+        this.mask = stripes - 1;
+        this.cells = new AtomicLongArray(stripes * stride);
+    }
+
+    void add(int index, long delta) {
+        int stripe = (int) Thread.currentThread().getId() & mask;
+        cells.addAndGet(stripe * stride + index, delta);
+    }
+
+    long sum(int index) {
+        long sum = 0;
+        for (int i = index; i < cells.length(); i += stride) sum += cells.get(i);
+        return sum;
+    }
+}
@@ -0,0 +1,287 @@
+package net.shiftstudios.tools.android.sharedprefs;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate compression of large string values, with an optional preset dictionary trained on
+ * the values already stored.
+ * <p>
+ * A compressed value is {@link #MARKER} followed by Base64 of the UTF-8 length of the
+ * original and the Deflate stream. A stream compressed with a dictionary names it by its
+ * Adler-32 checksum, and every dictionary ever used is kept in the preferences under
+ * {@link #DICTIONARY_PREFIX} and that checksum, so values stay readable after retraining.
+ */
+final class ValueCompression {
+
+    static final String MARKER = "\uFDD0Z";
+    static final String DICTIONARY_PREFIX = "\uFDD0Zdict.";
+    static final String CURRENT_DICTIONARY = "\uFDD0Zdict";
+
+    private static final int GRAM = 16;
+    private static final int MAX_SAMPLE = 64 * 1024;
+
+    private final Map<Long, byte[]> dictionaries = new ConcurrentHashMap<Long, byte[]>();
+    private volatile int threshold;
+    private volatile byte[] dictionary;
+
+    static boolean isCompressed(String value) {
+        return value != null && value.startsWith(MARKER);
+    }
+
+    /**
+     * Checks if a key holds a dictionary rather than a value.
+     */
+    static boolean isMetadata(String key) {
+        return key.startsWith(MARKER);
+    }
+
+    /**
+     * Turns compression on for values of at least {@code threshold} characters, with the
+     * dictionary last trained on these preferences if there is one.
+     */
+    void enable(int threshold, StorageEngine s) {
+        String id = s.getString(CURRENT_DICTIONARY, null);
+        this.dictionary = id != null ? dictionary(Long.parseLong(id, 16), s) : null;
+        this.threshold = threshold;
+    }
+
+    void disable() {
+        threshold = 0;
+    }
+
+    /**
+     * Stores a dictionary and uses it for every value compressed from now on.
+     */
+    void setDictionary(byte[] dictionary, StorageEngine s) {
+        long id = checksum(dictionary);
+        StringBuilder sb = new StringBuilder();
+        PackedArrays.encodeBase64(dictionary, sb);
+        s.edit()
+                .putString(DICTIONARY_PREFIX + Long.toHexString(id), sb.toString())
+                .putString(CURRENT_DICTIONARY, Long.toHexString(id))
+                .commit();
+        dictionaries.put(id, dictionary);
+        this.dictionary = dictionary;
+    }
+
+    /**
+     * Puts the dictionary in use back in a batch which clears the preferences, so values it
+     * compresses afterwards stay readable.
+     */
+    void restoreDictionary(StorageEngine.Batch e) {
+        byte[] dict = dictionary;
+        if (dict == null) return;
+        String id = Long.toHexString(checksum(dict));
+        StringBuilder sb = new StringBuilder();
+        PackedArrays.encodeBase64(dict, sb);
+        e.putString(DICTIONARY_PREFIX + id, sb.toString()).putString(CURRENT_DICTIONARY, id);
+    }
+
+    /**
+     * @return The compressed value, or the value itself if compression is off, the value is
+     * shorter than the threshold or it would not get smaller
+     */
+    String compress(String value) {
+        int t = threshold;
+        if (t == 0 || value == null || value.length() < t) return value;
+
+        byte[] plain = PackedArrays.utf8(value);
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try {
+            byte[] dict = dictionary;
+            if (dict != null) deflater.setDictionary(dict);
+            deflater.setInput(plain);
+            deflater.finish();
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream(plain.length / 4 + 16);
+            out.write(plain.length >>> 24);
+            out.write(plain.length >>> 16);
+            out.write(plain.length >>> 8);
+            out.write(plain.length);
+            byte[] buffer = new byte[4096];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buffer);
+                out.write(buffer, 0, n);
+            }
+
+            byte[] compressed = out.toByteArray();
+            if (MARKER.length() + (compressed.length + 2) / 3 * 4 >= value.length()) return value;
+            StringBuilder sb = new StringBuilder(MARKER.length() + (compressed.length + 2) / 3 * 4);
+            PackedArrays.encodeBase64(compressed, sb.append(MARKER));
+            return sb.toString();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * @return The original value, or null if it is corrupt or its dictionary is missing
+     */
+    String decompress(String value, StorageEngine s) {
+        byte[] compressed;
+        try {
+            compressed = PackedArrays.decodeBase64(value, MARKER.length());
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        if (compressed.length < 4) return null;
+
+        int length = (compressed[0] & 0xff) << 24 | (compressed[1] & 0xff) << 16
+                | (compressed[2] & 0xff) << 8 | (compressed[3] & 0xff);
+        // Deflate cannot shrink data more than about 1032 times.
+        if (length < 0 || length / 1032 > compressed.length) return null;
+        byte[] plain = new byte[length];
+
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed, 4, compressed.length - 4);
+            int n = 0;
+            while (n < length && !inflater.finished()) {
+                int read = inflater.inflate(plain, n, length - n);
+                if (read == 0) {
+                    if (inflater.needsDictionary()) {
+                        byte[] dict = dictionary(inflater.getAdler() & 0xffffffffL, s);
+                        if (dict == null) return null;
+                        inflater.setDictionary(dict);
+                    } else if (inflater.needsInput()) {
+                        return null;
+                    }
+                }
+                n += read;
+            }
+            return n == length ? PackedArrays.utf8(plain, 0, length) : null;
+        } catch (DataFormatException e) {
+            return null;
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * @return Stored length divided by original length, or 1 if the value is not compressed
+     */
+    static float ratio(String value) {
+        if (!isCompressed(value) || value.length() < MARKER.length() + 8) return 1;
+        byte[] header = PackedArrays.decodeBase64(value.substring(0, MARKER.length() + 8), MARKER.length());
+        int length = (header[0] & 0xff) << 24 | (header[1] & 0xff) << 16
+                | (header[2] & 0xff) << 8 | (header[3] & 0xff);
+        return length > 0 ? (float) value.length() / length : 1;
+    }
+
+    private byte[] dictionary(long id, StorageEngine s) {
+        byte[] dict = dictionaries.get(id);
+        if (dict != null) return dict;
+
+        String stored = s.getString(DICTIONARY_PREFIX + Long.toHexString(id), null);
+        if (stored == null) return null;
+        dict = PackedArrays.decodeBase64(stored, 0);
+        dictionaries.put(id, dict);
+        return dict;
+    }
+
+    private static long checksum(byte[] dictionary) {
+        Adler32 adler = new Adler32();
+        adler.update(dictionary, 0, dictionary.length);
+        return adler.getValue();
+    }
+
+    /**
+     * Builds a dictionary out of the substrings shared by most values. Substrings found in
+     * more values go nearer the end of the dictionary, where Deflate reaches them with the
+     * shortest distances.
+     *
+     * @param values  Plain values to learn from
+     * @param maxSize Maximum dictionary size in bytes
+     * @return Dictionary, or null if the values share nothing
+     */
+    static byte[] train(List<String> values, int maxSize) {
+        List<String> sample = new ArrayList<String>();
+        int sampled = 0;
+        for (int v = 0; v < values.size() && sampled < MAX_SAMPLE; v++) {
+            String value = values.get(v);
+            if (value.length() > MAX_SAMPLE - sampled) value = value.substring(0, MAX_SAMPLE - sampled);
+            sample.add(value);
+            sampled += value.length();
+        }
+
+        // Counts the values containing each gram, not its occurrences.
+        Map<String, int[]> grams = new HashMap<String, int[]>();
+        for (int v = 0; v < sample.size(); v++) {
+            String value = sample.get(v);
+            for (int i = 0; i + GRAM <= value.length(); i++) count(grams, value.substring(i, i + GRAM), v);
+        }
+
+        // Runs of overlapping shared grams become one segment, so a long shared substring is
+        // picked once rather than as many shifted copies.
+        Map<String, int[]> segments = new HashMap<String, int[]>();
+        for (int v = 0; v < sample.size(); v++) {
+            String value = sample.get(v);
+            int start = -1;
+            for (int i = 0; i + GRAM <= value.length() + 1; i++) {
+                boolean shared = i + GRAM <= value.length()
+                        && grams.get(value.substring(i, i + GRAM))[0] > 1;
+                if (shared && start < 0) {
+                    start = i;
+                } else if (!shared && start >= 0) {
+                    count(segments, value.substring(start, i - 1 + GRAM), v);
+                    start = -1;
+                }
+            }
+        }
+        if (segments.isEmpty()) return null;
+
+        List<Map.Entry<String, int[]>> sorted = new ArrayList<Map.Entry<String, int[]>>(segments.entrySet());
+        Collections.sort(sorted, new Comparator<Map.Entry<String, int[]>>() {
+            @Override
+            public int compare(Map.Entry<String, int[]> a, Map.Entry<String, int[]> b) {
+                int byCount = b.getValue()[0] - a.getValue()[0];
+                return byCount != 0 ? byCount : b.getKey().length() - a.getKey().length();
+            }
+        });
+
+        StringBuilder picked = new StringBuilder();
+        List<String> pieces = new ArrayList<String>();
+        for (Map.Entry<String, int[]> entry : sorted) {
+            String segment = entry.getKey();
+            if (picked.length() + segment.length() > maxSize) continue;
+            if (picked.indexOf(segment) >= 0) continue;
+            picked.append(segment);
+            pieces.add(segment);
+        }
+        if (pieces.isEmpty()) return null;
+
+        StringBuilder dictionary = new StringBuilder(picked.length());
+        for (int i = pieces.size() - 1; i >= 0; i--) dictionary.append(pieces.get(i));
+        byte[] bytes = PackedArrays.utf8(dictionary.toString());
+        if (bytes.length <= maxSize) return bytes;
+        byte[] trimmed = new byte[maxSize];
+        System.arraycopy(bytes, bytes.length - maxSize, trimmed, 0, maxSize);
+        return trimmed;
+    }
+
+    /**
+     * Counts a string once per value it is found in.
+     *
+     * @param counts Count and index of the last value seen, by string
+     */
+    private static void count(Map<String, int[]> counts, String s, int value) {
+        int[] seen = counts.get(s);
+        if (seen == null) {
+            counts.put(s, new int[]{1, value});
+        } else if (seen[1] != value) {
+            seen[0]++;
+            seen[1] = value;
+        }
+    }
+}
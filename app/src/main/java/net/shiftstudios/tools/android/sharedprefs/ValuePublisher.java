@@ -0,0 +1,228 @@
+package net.shiftstudios.tools.android.sharedprefs;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Publishes the value of a key to every observer: the current value first, then each value
+ * which differs from the one before. All observers share one change subscription and one
+ * read of every change. Values are read and delivered on the executor, never on the thread
+ * which made the change. An observer which has not requested more keeps only the latest
+ * value, so a slow observer skips intermediate values rather than queueing them.
+ */
+final class ValuePublisher<T> implements PreferenceFlow.Publisher<T> {
+
+    /**
+     * Reads the current value, or null if the key holds none.
+     */
+    interface Reader<T> {
+
+        T read();
+    }
+
+    private static final Object NONE = new Object();
+    private static ExecutorService defaultExecutor;
+
+    private final SharedPreferencesHelper helper;
+    private final String key;
+    private final Reader<T> reader;
+    private final Executor executor;
+    private final Runnable onIdle;
+    private final List<Observer> observers = new CopyOnWriteArrayList<Observer>();
+    private final AtomicInteger reads = new AtomicInteger();
+
+    private ChangeSubscription upstream;
+    private boolean hasValue;
+    private T value;
+
+    /**
+     * @param onIdle Called when the last observer cancels
+     */
+    ValuePublisher(SharedPreferencesHelper helper, String key, Reader<T> reader, Executor executor,
+                   Runnable onIdle) {
+        this.helper = helper;
+        this.key = key;
+        this.reader = reader;
+        this.executor = executor != null ? executor : defaultExecutor();
+        this.onIdle = onIdle;
+    }
+
+    @Override
+    public void subscribe(PreferenceFlow.Subscriber<? super T> subscriber) {
+        Observer observer = new Observer(subscriber);
+        boolean known;
+        synchronized (this) {
+            observers.add(observer);
+            if (upstream == null) {
+                upstream = helper.subscribe(KeyFilter.keys(key), 0, executor, new ChangeSubscription.Listener() {
+                    @Override
+                    public void onChanged(Set<String> keys) {
+                        refresh();
+                    }
+                });
+            }
+            // Offered under the lock, so a newer value read meanwhile is not overwritten.
+            // Nothing is delivered before the subscriber requests it from onSubscribe.
+            known = hasValue;
+            if (known && value != null) observer.offer(value);
+        }
+
+        subscriber.onSubscribe(observer);
+        if (!known) refresh();
+    }
+
+    /**
+     * Reads the value on the executor, and passes it on if it changed. Refreshes requested
+     * while a read runs are merged into one more read.
+     */
+    private void refresh() {
+        if (reads.getAndIncrement() != 0) return;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                int missed = 1;
+                do {
+                    read();
+                    missed = reads.addAndGet(-missed);
+                } while (missed != 0);
+            }
+        });
+    }
+
+    private void read() {
+        T next;
+        try {
+            next = reader.read();
+        } catch (RuntimeException e) {
+            for (Observer observer : observers) observer.fail(e);
+            return;
+        }
+
+        synchronized (this) {
+            if (hasValue && same(value, next)) return;
+            value = next;
+            hasValue = true;
+            if (next == null) return;
+            for (Observer observer : observers) observer.offer(next);
+        }
+    }
+
+    private boolean same(Object a, Object b) {
+        if (Arrays.deepEquals(new Object[]{a}, new Object[]{b})) return true;
+        if (a == null || b == null || a.getClass() != b.getClass()) return false;
+        // Objects read from JSON rarely override equals, so compare them as JSON.
+        return helper.getGson().toJsonTree(a).equals(helper.getGson().toJsonTree(b));
+    }
+
+    private void remove(Observer observer) {
+        ChangeSubscription idle = null;
+        synchronized (this) {
+            if (!observers.remove(observer) || !observers.isEmpty()) return;
+            idle = upstream;
+            upstream = null;
+            hasValue = false;
+            value = null;
+        }
+        if (idle != null) idle.cancel();
+        onIdle.run();
+    }
+
+    private static synchronized ExecutorService defaultExecutor() {
+        if (defaultExecutor == null) {
+            defaultExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "SharedPreferencesHelper-observe");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return defaultExecutor;
+    }
+
+    private class Observer implements PreferenceFlow.Subscription {
+
+        private final PreferenceFlow.Subscriber<? super T> subscriber;
+        private final AtomicLong requested = new AtomicLong();
+        private final AtomicReference<Object> latest = new AtomicReference<Object>(NONE);
+        private final AtomicInteger work = new AtomicInteger();
+        private volatile Throwable error;
+        private volatile boolean cancelled;
+
+        Observer(PreferenceFlow.Subscriber<? super T> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                fail(new IllegalArgumentException("Non-positive request: " + n));
+                return;
+            }
+
+            long current, next;
+            do {
+                current = requested.get();
+                next = current + n < 0 ? Long.MAX_VALUE : current + n;
+            } while (!requested.compareAndSet(current, next));
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            if (cancelled) return;
+            cancelled = true;
+            remove(this);
+        }
+
+        void offer(T item) {
+            latest.set(item);
+            drain();
+        }
+
+        void fail(Throwable throwable) {
+            error = throwable;
+            drain();
+        }
+
+        /**
+         * Delivers on the executor, one call at a time, whatever is pending and requested.
+         */
+        private void drain() {
+            if (work.getAndIncrement() != 0) return;
+            executor.execute(new Runnable() {
+                @Override
+                @SuppressWarnings("unchecked")
+                public void run() {
+                    int missed = 1;
+                    do {
+                        if (cancelled) return;
+                        if (error != null) {
+                            cancel();
+                            subscriber.onError(error);
+                            return;
+                        }
+                        if (requested.get() > 0) {
+                            Object item = latest.getAndSet(NONE);
+                            if (item != NONE) {
+                                if (requested.get() != Long.MAX_VALUE) requested.decrementAndGet();
+                                subscriber.onNext((T) item);
+                            }
+                        }
+                        missed = work.addAndGet(-missed);
+                    } while (missed != 0);
+                }
+            });
+        }
+    }
+}
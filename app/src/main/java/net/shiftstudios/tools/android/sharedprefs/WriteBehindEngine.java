@@ -0,0 +1,372 @@
+package net.shiftstudios.tools.android.sharedprefs;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Storage engine which buffers writes in memory and writes them to an underlying engine on a
+ * background thread.
+ * <p>
+ * Reads see buffered values immediately. Writes to the same key are coalesced, so only the
+ * last value is written. Buffered writes are flushed in a single commit when the oldest one
+ * is older than the deadline, or when the number of buffered keys reaches the size threshold.
+ * Listeners are registered on the underlying engine, so they are called when the values are
+ * written, not when they are buffered.
+ */
+class WriteBehindEngine implements StorageEngine {
+
+    private static final Object REMOVED = new Object();
+
+    private final StorageEngine base;
+    private final long deadlineMillis;
+    private final int maxPending;
+
+    private final Object lock = new Object();
+    private final Object flushLock = new Object();
+    private final ScheduledExecutorService writer;
+
+    private Changes pending = new Changes();
+    private Changes flushing;
+    private ScheduledFuture<?> scheduled;
+
+    /**
+     * @param base           Underlying engine
+     * @param deadlineMillis Maximum time a write stays buffered
+     * @param maxPending     Number of buffered keys which triggers a flush
+     */
+    WriteBehindEngine(StorageEngine base, long deadlineMillis, int maxPending) {
+        this.base = base;
+        this.deadlineMillis = deadlineMillis;
+        this.maxPending = maxPending;
+        this.writer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "SharedPreferencesHelper-writer");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Gets the engine which buffered writes are written to.
+     *
+     * @return StorageEngine
+     */
+    StorageEngine getBase() {
+        return base;
+    }
+
+    /**
+     * Writes every buffered change to the underlying engine on the calling thread.
+     *
+     * @return true if the buffered values were successfully written
+     */
+    boolean flush() {
+        synchronized (flushLock) {
+            Changes batch;
+            synchronized (lock) {
+                if (scheduled != null) {
+                    scheduled.cancel(false);
+                    scheduled = null;
+                }
+                if (pending.isEmpty()) return true;
+                batch = pending;
+                flushing = batch;
+                pending = new Changes();
+            }
+
+            boolean result = false;
+            try {
+                Batch e = base.edit();
+                if (batch.clear) e.clear();
+                for (Map.Entry<String, Object> entry : batch.changes.entrySet()) {
+                    write(e, entry.getKey(), entry.getValue());
+                }
+                result = e.commit();
+            } finally {
+                synchronized (lock) {
+                    if (!result) restore(batch);
+                    flushing = null;
+                    lock.notifyAll();
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Puts back changes which failed to be written, under writes buffered since, and retries
+     * after the deadline. The caller must hold the lock.
+     */
+    private void restore(Changes failed) {
+        // A clear buffered since supersedes every failed change.
+        if (!pending.clear) {
+            for (Map.Entry<String, Object> entry : pending.changes.entrySet()) {
+                failed.changes.remove(entry.getKey());
+                failed.changes.put(entry.getKey(), entry.getValue());
+            }
+            pending = failed;
+        }
+        if (scheduled != null) scheduled.cancel(false);
+        if (!writer.isShutdown()) schedule(deadlineMillis);
+    }
+
+    /**
+     * Waits until every buffered change has been written.
+     *
+     * @return true if everything was written before the timeout elapsed
+     */
+    boolean awaitFlushed(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (lock) {
+            if (!pending.isEmpty() && scheduled == null) schedule(0);
+            while (!pending.isEmpty() || flushing != null) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) return false;
+                TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Flushes every buffered change and stops the background writer.
+     */
+    boolean shutdown() {
+        boolean result = flush();
+        writer.shutdown();
+        return result;
+    }
+
+    private void schedule(long delayMillis) {
+        scheduled = writer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void write(Batch e, String key, Object value) {
+        if (value == REMOVED) e.remove(key);
+        else if (value instanceof String) e.putString(key, (String) value);
+        else if (value instanceof Integer) e.putInt(key, (Integer) value);
+        else if (value instanceof Long) e.putLong(key, (Long) value);
+        else if (value instanceof Float) e.putFloat(key, (Float) value);
+        else if (value instanceof Boolean) e.putBoolean(key, (Boolean) value);
+        else if (value instanceof Set) e.putStringSet(key, (Set<String>) value);
+        else if (value == null) e.putString(key, null);
+    }
+
+    /**
+     * Looks a key up in the buffered changes.
+     *
+     * @return Buffered value, REMOVED if the key was removed or cleared, or base if the key
+     * is not buffered
+     */
+    private Object lookup(String key) {
+        synchronized (lock) {
+            if (pending.changes.containsKey(key)) return pending.changes.get(key);
+            if (pending.clear) return REMOVED;
+            if (flushing != null) {
+                if (flushing.changes.containsKey(key)) return flushing.changes.get(key);
+                if (flushing.clear) return REMOVED;
+            }
+        }
+        return base;
+    }
+
+    @Override
+    public Map<String, ?> getAll() {
+        synchronized (lock) {
+            Map<String, Object> all = new HashMap<String, Object>();
+            if (!pending.clear && (flushing == null || !flushing.clear)) all.putAll(base.getAll());
+            if (flushing != null && !pending.clear) flushing.applyTo(all);
+            pending.applyTo(all);
+            return all;
+        }
+    }
+
+    @Override
+    public String getString(String key, String defValue) {
+        Object value = lookup(key);
+        if (value == base) return base.getString(key, defValue);
+        if (value == REMOVED) return defValue;
+        return (String) value;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Set<String> getStringSet(String key, Set<String> defValues) {
+        Object value = lookup(key);
+        if (value == base) return base.getStringSet(key, defValues);
+        if (value == REMOVED) return defValues;
+        return (Set<String>) value;
+    }
+
+    @Override
+    public int getInt(String key, int defValue) {
+        Object value = lookup(key);
+        if (value == base) return base.getInt(key, defValue);
+        if (value == REMOVED) return defValue;
+        return (Integer) value;
+    }
+
+    @Override
+    public long getLong(String key, long defValue) {
+        Object value = lookup(key);
+        if (value == base) return base.getLong(key, defValue);
+        if (value == REMOVED) return defValue;
+        return (Long) value;
+    }
+
+    @Override
+    public float getFloat(String key, float defValue) {
+        Object value = lookup(key);
+        if (value == base) return base.getFloat(key, defValue);
+        if (value == REMOVED) return defValue;
+        return (Float) value;
+    }
+
+    @Override
+    public boolean getBoolean(String key, boolean defValue) {
+        Object value = lookup(key);
+        if (value == base) return base.getBoolean(key, defValue);
+        if (value == REMOVED) return defValue;
+        return (Boolean) value;
+    }
+
+    @Override
+    public boolean contains(String key) {
+        Object value = lookup(key);
+        if (value == base) return base.contains(key);
+        return value != REMOVED;
+    }
+
+    @Override
+    public Batch edit() {
+        return new BufferedBatch();
+    }
+
+    @Override
+    public void addListener(Listener listener) {
+        base.addListener(listener);
+    }
+
+    @Override
+    public void removeListener(Listener listener) {
+        base.removeListener(listener);
+    }
+
+    /**
+     * Changes which have not been written to the underlying engine yet.
+     */
+    private static class Changes {
+
+        boolean clear;
+        final LinkedHashMap<String, Object> changes = new LinkedHashMap<String, Object>();
+
+        boolean isEmpty() {
+            return !clear && changes.isEmpty();
+        }
+
+        void applyTo(Map<String, Object> all) {
+            if (clear) all.clear();
+            for (Map.Entry<String, Object> entry : changes.entrySet()) {
+                if (entry.getValue() == REMOVED) all.remove(entry.getKey());
+                else all.put(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private class BufferedBatch implements Batch {
+
+        private final Changes batch = new Changes();
+
+        @Override
+        public Batch putString(String key, String value) {
+            batch.changes.put(key, value == null ? REMOVED : value);
+            return this;
+        }
+
+        @Override
+        public Batch putStringSet(String key, Set<String> values) {
+            batch.changes.put(key, values == null ? REMOVED : new HashSet<String>(values));
+            return this;
+        }
+
+        @Override
+        public Batch putInt(String key, int value) {
+            batch.changes.put(key, value);
+            return this;
+        }
+
+        @Override
+        public Batch putLong(String key, long value) {
+            batch.changes.put(key, value);
+            return this;
+        }
+
+        @Override
+        public Batch putFloat(String key, float value) {
+            batch.changes.put(key, value);
+            return this;
+        }
+
+        @Override
+        public Batch putBoolean(String key, boolean value) {
+            batch.changes.put(key, value);
+            return this;
+        }
+
+        @Override
+        public Batch remove(String key) {
+            batch.changes.put(key, REMOVED);
+            return this;
+        }
+
+        @Override
+        public Batch clear() {
+            batch.clear = true;
+            return this;
+        }
+
+        @Override
+        public boolean commit() {
+            synchronized (lock) {
+                if (batch.clear) {
+                    pending.clear = true;
+                    pending.changes.clear();
+                }
+                for (Map.Entry<String, Object> entry : batch.changes.entrySet()) {
+                    // Re-inserting moves the key to the end, so the last write wins in order.
+                    pending.changes.remove(entry.getKey());
+                    pending.changes.put(entry.getKey(), entry.getValue());
+                }
+
+                if (pending.changes.size() >= maxPending) {
+                    if (scheduled != null) scheduled.cancel(false);
+                    schedule(0);
+                } else if (scheduled == null && !pending.isEmpty()) {
+                    schedule(deadlineMillis);
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public void apply() {
+            commit();
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package net.shiftstudios.tools.android.sharedprefs;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that prefix scans see writes still buffered by write-behind mode.
+ */
+public class KeyIndexTest {
+
+    private InMemoryEngine engine;
+    private SharedPreferencesHelper helper;
+
+    @Before
+    public void setUp() {
+        engine = new InMemoryEngine();
+        helper = new SharedPreferencesHelper(engine);
+    }
+
+    @After
+    public void tearDown() {
+        helper.disableWriteBehind();
+    }
+
+    @Test
+    public void removeAllSeesBufferedWrites() {
+        helper.putString("user.1.a", "a");
+        helper.keys("user.");
+        helper.enableWriteBehind(60000, 1000);
+        helper.putString("user.1.b", "b");
+        helper.putString("other", "o");
+
+        assertEquals(new TreeSet<String>(Arrays.asList("user.1.a", "user.1.b")), helper.keys("user."));
+        assertEquals(2, helper.removeAll("user."));
+        assertTrue(helper.flush());
+        assertFalse(engine.contains("user.1.a"));
+        assertFalse(engine.contains("user.1.b"));
+        assertTrue(engine.contains("other"));
+    }
+
+    @Test
+    public void indexFollowsTheEngineBack() {
+        helper.enableWriteBehind(60000, 1000);
+        helper.putString("user.1.a", "a");
+        assertEquals(1, helper.keys("user.").size());
+        helper.disableWriteBehind();
+        helper.putString("user.1.b", "b");
+
+        assertEquals(new TreeSet<String>(Arrays.asList("user.1.a", "user.1.b")), helper.keys("user."));
+        assertEquals(2, helper.removeAll("user."));
+        assertTrue(helper.getAll().isEmpty());
+    }
+}
@@ -0,0 +1,111 @@
+package net.shiftstudios.tools.android.sharedprefs;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs several JVM processes against one store directory.
+ */
+public class MultiProcessEngineTest {
+
+    private static final String NAME = "shared";
+    private static final int PROCESSES = 4;
+    private static final int WRITES = 50;
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("multiprocess", "");
+        assertTrue(dir.delete() && dir.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) file.delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void commitsOfEveryProcessAreKept() throws Exception {
+        MultiProcessEngine engine = new MultiProcessEngine(dir, NAME);
+        try {
+            List<Process> children = new ArrayList<Process>();
+            for (int i = 0; i < PROCESSES; i++) children.add(spawn(i));
+            for (Process child : children) assertEquals(0, child.waitFor());
+
+            for (int i = 0; i < PROCESSES; i++) {
+                for (int j = 0; j < WRITES; j++) {
+                    assertEquals(j, engine.getInt(Writer.key(i, j), -1));
+                }
+            }
+            assertEquals(PROCESSES * WRITES, engine.getAll().size());
+            assertEquals(PROCESSES * WRITES, engine.getVersion());
+        } finally {
+            engine.close();
+        }
+    }
+
+    @Test
+    public void listenersHearCommitsOfOtherProcesses() throws Exception {
+        MultiProcessEngine engine = new MultiProcessEngine(dir, NAME);
+        try {
+            engine.setPollingPeriod(10);
+            final CountDownLatch changed = new CountDownLatch(1);
+            engine.addListener(new StorageEngine.Listener() {
+                @Override
+                public void onChanged(StorageEngine engine, String key) {
+                    if (Writer.key(0, WRITES - 1).equals(key)) changed.countDown();
+                }
+            });
+
+            assertEquals(0, spawn(0).waitFor());
+            assertTrue(changed.await(10, TimeUnit.SECONDS));
+            assertEquals(WRITES - 1, engine.getInt(Writer.key(0, WRITES - 1), -1));
+        } finally {
+            engine.close();
+        }
+    }
+
+    private Process spawn(int id) throws IOException {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        return new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                Writer.class.getName(), dir.getPath(), NAME, String.valueOf(id), String.valueOf(WRITES))
+                .inheritIO()
+                .start();
+    }
+
+    /**
+     * Child process which commits its own keys one at a time.
+     */
+    public static class Writer {
+
+        static String key(int process, int index) {
+            return "p" + process + "." + index;
+        }
+
+        public static void main(String[] args) throws IOException {
+            MultiProcessEngine engine = new MultiProcessEngine(new File(args[0]), args[1]);
+            int id = Integer.parseInt(args[2]);
+            int writes = Integer.parseInt(args[3]);
+            for (int i = 0; i < writes; i++) {
+                if (!engine.edit().putInt(key(id, i), i).commit()) System.exit(1);
+            }
+            engine.close();
+        }
+    }
+}
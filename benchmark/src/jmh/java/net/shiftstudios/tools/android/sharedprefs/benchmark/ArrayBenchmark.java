@@ -0,0 +1,107 @@
+package net.shiftstudios.tools.android.sharedprefs.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+
+/**
+ * Arrays: every typed array put and get, reading both the packed layout written today and
+ * the per-element layout of older versions.
+ */
+public class ArrayBenchmark extends StoreBenchmark {
+
+    @Param({"1", "16", "256", "4096"})
+    public int arrayLength;
+
+    private boolean[] booleans;
+    private int[] ints;
+    private long[] longs;
+    private float[] floats;
+    private String[] strings;
+
+    @Override
+    protected void setUp() {
+        booleans = new boolean[arrayLength];
+        ints = new int[arrayLength];
+        longs = new long[arrayLength];
+        floats = new float[arrayLength];
+        strings = new String[arrayLength];
+        for (int i = 0; i < arrayLength; i++) {
+            booleans[i] = (i & 1) != 0;
+            ints[i] = i * 31;
+            longs[i] = i * 31L << 32;
+            floats[i] = i / 3f;
+            strings[i] = "element " + i;
+        }
+
+        helper.putBooleanArray("bench.booleans", booleans);
+        helper.putIntArray("bench.ints", ints);
+        helper.putLongArray("bench.longs", longs);
+        helper.putFloatArray("bench.floats", floats);
+        helper.putStringArray("bench.strings", strings);
+
+        // Per-element layout, as written before arrays were packed
+        helper.putInt("bench.legacy.arrayLength", arrayLength);
+        helper.putString("bench.legacy.arrayType", "Integer");
+        for (int i = 0; i < arrayLength; i++) helper.putInt("bench.legacy[" + i + "]", ints[i]);
+    }
+
+    @Benchmark
+    public boolean[] getBooleanArray() {
+        return helper.getBooleanArray("bench.booleans", null);
+    }
+
+    @Benchmark
+    public void putBooleanArray() {
+        booleans[0] = (++counter & 1) != 0;
+        helper.putBooleanArray("bench.booleans.w", booleans);
+    }
+
+    @Benchmark
+    public int[] getIntArray() {
+        return helper.getIntArray("bench.ints", null);
+    }
+
+    @Benchmark
+    public int[] getIntArrayLegacy() {
+        return helper.getIntArray("bench.legacy", null);
+    }
+
+    @Benchmark
+    public void putIntArray() {
+        ints[0] = ++counter;
+        helper.putIntArray("bench.ints.w", ints);
+    }
+
+    @Benchmark
+    public long[] getLongArray() {
+        return helper.getLongArray("bench.longs", null);
+    }
+
+    @Benchmark
+    public void putLongArray() {
+        longs[0] = ++counter;
+        helper.putLongArray("bench.longs.w", longs);
+    }
+
+    @Benchmark
+    public float[] getFloatArray() {
+        return helper.getFloatArray("bench.floats", null);
+    }
+
+    @Benchmark
+    public void putFloatArray() {
+        floats[0] = ++counter;
+        helper.putFloatArray("bench.floats.w", floats);
+    }
+
+    @Benchmark
+    public String[] getStringArray() {
+        return helper.getStringArray("bench.strings", null);
+    }
+
+    @Benchmark
+    public void putStringArray() {
+        strings[0] = "counter " + ++counter;
+        helper.putStringArray("bench.strings.w", strings);
+    }
+}
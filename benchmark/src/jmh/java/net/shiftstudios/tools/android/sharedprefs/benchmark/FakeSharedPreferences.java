@@ -0,0 +1,169 @@
+package net.shiftstudios.tools.android.sharedprefs.benchmark;
+
+import android.content.SharedPreferences;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * SharedPreferences which keeps its values in a map and never touches the disk, so the
+ * helper's own cost can be measured on a JVM. Locking and listener calls follow the
+ * platform implementation; commits do not write a file.
+ */
+public class FakeSharedPreferences implements SharedPreferences {
+
+    private static final Object REMOVED = new Object();
+
+    private final Map<String, Object> values = new HashMap<String, Object>();
+    private final List<OnSharedPreferenceChangeListener> listeners =
+            new CopyOnWriteArrayList<OnSharedPreferenceChangeListener>();
+
+    @Override
+    public synchronized Map<String, ?> getAll() {
+        return new HashMap<String, Object>(values);
+    }
+
+    @Override
+    public synchronized String getString(String key, String defValue) {
+        String value = (String) values.get(key);
+        return value != null ? value : defValue;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public synchronized Set<String> getStringSet(String key, Set<String> defValues) {
+        Set<String> value = (Set<String>) values.get(key);
+        return value != null ? value : defValues;
+    }
+
+    @Override
+    public synchronized int getInt(String key, int defValue) {
+        Integer value = (Integer) values.get(key);
+        return value != null ? value : defValue;
+    }
+
+    @Override
+    public synchronized long getLong(String key, long defValue) {
+        Long value = (Long) values.get(key);
+        return value != null ? value : defValue;
+    }
+
+    @Override
+    public synchronized float getFloat(String key, float defValue) {
+        Float value = (Float) values.get(key);
+        return value != null ? value : defValue;
+    }
+
+    @Override
+    public synchronized boolean getBoolean(String key, boolean defValue) {
+        Boolean value = (Boolean) values.get(key);
+        return value != null ? value : defValue;
+    }
+
+    @Override
+    public synchronized boolean contains(String key) {
+        return values.containsKey(key);
+    }
+
+    @Override
+    public Editor edit() {
+        return new FakeEditor();
+    }
+
+    @Override
+    public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        listeners.remove(listener);
+    }
+
+    private class FakeEditor implements Editor {
+
+        private final Map<String, Object> changes = new HashMap<String, Object>();
+        private boolean clear;
+
+        private Editor put(String key, Object value) {
+            changes.put(key, value != null ? value : REMOVED);
+            return this;
+        }
+
+        @Override
+        public Editor putString(String key, String value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putStringSet(String key, Set<String> values) {
+            return put(key, values != null ? new HashSet<String>(values) : null);
+        }
+
+        @Override
+        public Editor putInt(String key, int value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putLong(String key, long value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putFloat(String key, float value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putBoolean(String key, boolean value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor remove(String key) {
+            return put(key, null);
+        }
+
+        @Override
+        public Editor clear() {
+            clear = true;
+            return this;
+        }
+
+        @Override
+        public boolean commit() {
+            List<String> changed = new ArrayList<String>(changes.size());
+            synchronized (FakeSharedPreferences.this) {
+                if (clear) values.clear();
+                for (Map.Entry<String, Object> change : changes.entrySet()) {
+                    Object value = change.getValue();
+                    if (value == REMOVED) {
+                        if (values.remove(change.getKey()) == null) continue;
+                    } else if (value.equals(values.put(change.getKey(), value))) {
+                        continue;
+                    }
+                    changed.add(change.getKey());
+                }
+            }
+            if (!listeners.isEmpty()) {
+                for (String key : changed) {
+                    for (OnSharedPreferenceChangeListener listener : listeners) {
+                        listener.onSharedPreferenceChanged(FakeSharedPreferences.this, key);
+                    }
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public void apply() {
+            commit();
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package net.shiftstudios.tools.android.sharedprefs.benchmark;
+
+import net.shiftstudios.tools.android.sharedprefs.SharedPreferencesHelper;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Objects: JSON written and read through Gson, compared with reading the raw string, and
+ * with the object cache turned on.
+ */
+public class ObjectBenchmark extends StoreBenchmark {
+
+    /**
+     * Number of entries in the stored profile's history.
+     */
+    @Param({"0", "10", "100", "1000"})
+    public int complexity;
+
+    private Profile profile;
+    private SharedPreferencesHelper cachedHelper;
+
+    public static class Profile {
+        String name;
+        int age;
+        long createdAt;
+        boolean verified;
+        Address address;
+        List<Visit> history;
+    }
+
+    public static class Address {
+        String street;
+        String city;
+        String country;
+    }
+
+    public static class Visit {
+        String page;
+        long time;
+        float duration;
+    }
+
+    @Override
+    protected void setUp() {
+        profile = new Profile();
+        profile.name = "Park Shift";
+        profile.age = 20;
+        profile.createdAt = 1462060800000L;
+        profile.verified = true;
+        profile.address = new Address();
+        profile.address.street = "1 Example Street";
+        profile.address.city = "Seoul";
+        profile.address.country = "KR";
+        profile.history = new ArrayList<Visit>(complexity);
+        for (int i = 0; i < complexity; i++) {
+            Visit visit = new Visit();
+            visit.page = "/page/" + i;
+            visit.time = 1462060800000L + i * 1000L;
+            visit.duration = i / 7f;
+            profile.history.add(visit);
+        }
+
+        helper.putObject("bench.object", profile);
+
+        cachedHelper = new SharedPreferencesHelper(helper.getStorageEngine());
+        cachedHelper.enableObjectCache(16);
+    }
+
+    @Benchmark
+    public Object getObject() {
+        return helper.getObject("bench.object", Profile.class);
+    }
+
+    @Benchmark
+    public String getObjectJson() {
+        return helper.getString("bench.object", null);
+    }
+
+    @Benchmark
+    public Object getObjectCached() {
+        return cachedHelper.getObject("bench.object", Profile.class);
+    }
+
+    @Benchmark
+    public void putObject() {
+        profile.age = ++counter;
+        helper.putObject("bench.object.w", profile);
+    }
+}
@@ -0,0 +1,129 @@
+package net.shiftstudios.tools.android.sharedprefs.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Single values: every typed put and get of the helper.
+ */
+public class PrimitiveBenchmark extends StoreBenchmark {
+
+    private static final BigInteger BIG_INTEGER = new BigInteger("123456789012345678901234567890");
+    private static final BigDecimal BIG_DECIMAL = new BigDecimal("12345678901234567890.1234567890");
+
+    private Set<String> stringSet;
+
+    @Override
+    protected void setUp() {
+        stringSet = new HashSet<String>();
+        for (int i = 0; i < 8; i++) stringSet.add("element " + i);
+
+        helper.putBoolean("bench.boolean", true);
+        helper.putInt("bench.int", 42);
+        helper.putLong("bench.long", 42L);
+        helper.putFloat("bench.float", 4.2f);
+        helper.putString("bench.string", "The quick brown fox jumps over the lazy dog");
+        helper.putStringSet("bench.stringSet", stringSet);
+        helper.putBigInteger("bench.bigInteger", BIG_INTEGER);
+        helper.putBigDecimal("bench.bigDecimal", BIG_DECIMAL);
+        helper.putDate("bench.date", new Date(1462060800000L));
+    }
+
+    @Benchmark
+    public boolean getBoolean() {
+        return helper.getBoolean("bench.boolean", false);
+    }
+
+    @Benchmark
+    public void putBoolean() {
+        helper.putBoolean("bench.boolean.w", (++counter & 1) != 0);
+    }
+
+    @Benchmark
+    public int getInt() {
+        return helper.getInt("bench.int", 0);
+    }
+
+    @Benchmark
+    public void putInt() {
+        helper.putInt("bench.int.w", ++counter);
+    }
+
+    @Benchmark
+    public long getLong() {
+        return helper.getLong("bench.long", 0L);
+    }
+
+    @Benchmark
+    public void putLong() {
+        helper.putLong("bench.long.w", ++counter);
+    }
+
+    @Benchmark
+    public float getFloat() {
+        return helper.getFloat("bench.float", 0f);
+    }
+
+    @Benchmark
+    public void putFloat() {
+        helper.putFloat("bench.float.w", ++counter);
+    }
+
+    @Benchmark
+    public String getString() {
+        return helper.getString("bench.string", null);
+    }
+
+    @Benchmark
+    public void putString() {
+        helper.putString("bench.string.w", "The quick brown fox " + ++counter);
+    }
+
+    @Benchmark
+    public Set<String> getStringSet() {
+        return helper.getStringSet("bench.stringSet", Collections.<String>emptySet());
+    }
+
+    @Benchmark
+    public void putStringSet() {
+        stringSet.remove("counter " + counter);
+        stringSet.add("counter " + ++counter);
+        helper.putStringSet("bench.stringSet.w", stringSet);
+    }
+
+    @Benchmark
+    public BigInteger getBigInteger() {
+        return helper.getBigInteger("bench.bigInteger");
+    }
+
+    @Benchmark
+    public void putBigInteger() {
+        helper.putBigInteger("bench.bigInteger.w", BIG_INTEGER.add(BigInteger.valueOf(++counter)));
+    }
+
+    @Benchmark
+    public BigDecimal getBigDecimal() {
+        return helper.getBigDecimal("bench.bigDecimal");
+    }
+
+    @Benchmark
+    public void putBigDecimal() {
+        helper.putBigDecimal("bench.bigDecimal.w", BIG_DECIMAL.add(BigDecimal.valueOf(++counter)));
+    }
+
+    @Benchmark
+    public Date getDate() {
+        return helper.getDate("bench.date");
+    }
+
+    @Benchmark
+    public void putDate() {
+        helper.putDate("bench.date.w", new Date(1462060800000L + ++counter));
+    }
+}
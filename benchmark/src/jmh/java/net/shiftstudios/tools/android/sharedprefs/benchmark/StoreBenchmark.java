@@ -0,0 +1,67 @@
+package net.shiftstudios.tools.android.sharedprefs.benchmark;
+
+import net.shiftstudios.tools.android.sharedprefs.InMemoryEngine;
+import net.shiftstudios.tools.android.sharedprefs.SharedPreferencesEngine;
+import net.shiftstudios.tools.android.sharedprefs.SharedPreferencesHelper;
+import net.shiftstudios.tools.android.sharedprefs.StorageEngine;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Base of every benchmark: a helper over a store already holding a number of unrelated
+ * values, so lookups and commits pay for a realistically sized map.
+ */
+@State(Scope.Thread)
+public abstract class StoreBenchmark {
+
+    @Param({"100", "1000", "10000", "100000"})
+    public int storeSize;
+
+    @Param({"prefs", "memory"})
+    public String engine;
+
+    protected SharedPreferencesHelper helper;
+
+    /**
+     * Incremented by every write benchmark, so each put stores a new value.
+     */
+    protected int counter;
+
+    @Setup(Level.Trial)
+    public void setUpStore() {
+        StorageEngine e = engine.equals("memory")
+                ? new InMemoryEngine()
+                : new SharedPreferencesEngine(new FakeSharedPreferences());
+
+        StorageEngine.Batch batch = e.edit();
+        for (int i = 0; i < storeSize; i++) {
+            String key = "filler." + i;
+            switch (i % 4) {
+                case 0:
+                    batch.putInt(key, i);
+                    break;
+                case 1:
+                    batch.putLong(key, i);
+                    break;
+                case 2:
+                    batch.putBoolean(key, (i & 8) != 0);
+                    break;
+                default:
+                    batch.putString(key, "value " + i);
+            }
+        }
+        batch.commit();
+
+        helper = new SharedPreferencesHelper(e);
+        setUp();
+    }
+
+    /**
+     * Stores the values the benchmark reads.
+     */
+    protected abstract void setUp();
+}
@@ -0,0 +1,515 @@
+package net.shiftstudios.tools.android.sharedprefs.processor;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.Messager;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+/**
+ * Generates an {@code ObjectCodec} for every class marked with {@code @PreferenceObject}.
+ * <p>
+ * The codec of {@code com.example.Outer.Profile} is {@code com.example.Outer_Profile_PreferenceCodec},
+ * which reads and writes the fields with Gson's streaming API, in the same JSON layout as Gson's
+ * reflective adapter. Enum constants are written by their {@code @SerializedName} like Gson
+ * does, and names matching no constant read as null.
+ */
+public class PreferenceObjectProcessor extends AbstractProcessor {
+
+    static final String ANNOTATION = "net.shiftstudios.tools.android.sharedprefs.PreferenceObject";
+    static final String CODEC = "net.shiftstudios.tools.android.sharedprefs.ObjectCodec";
+    static final String SERIALIZED_NAME = "com.google.gson.annotations.SerializedName";
+    static final String SUFFIX = "_PreferenceCodec";
+
+    private Messager messager;
+    /**
+     * Enums the codec being generated reads, in the order their read methods are numbered.
+     */
+    private List<TypeElement> enums;
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        return Collections.singleton(ANNOTATION);
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        messager = processingEnv.getMessager();
+        TypeElement annotation = processingEnv.getElementUtils().getTypeElement(ANNOTATION);
+        if (annotation == null) return false;
+
+        for (Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+            if (element.getKind() != ElementKind.CLASS) {
+                error(element, "@PreferenceObject can only be used on classes");
+                continue;
+            }
+            try {
+                generate((TypeElement) element);
+            } catch (IOException e) {
+                error(element, "Could not write codec: " + e.getMessage());
+            }
+        }
+        return true;
+    }
+
+    private void generate(TypeElement type) throws IOException {
+        if (!check(type)) return;
+        enums = new ArrayList<TypeElement>();
+
+        List<Field> fields = new ArrayList<Field>();
+        for (VariableElement field : ElementFilter.fieldsIn(allMembers(type))) {
+            Set<Modifier> modifiers = field.getModifiers();
+            if (modifiers.contains(Modifier.STATIC) || modifiers.contains(Modifier.TRANSIENT)) continue;
+            if (modifiers.contains(Modifier.PRIVATE) || modifiers.contains(Modifier.FINAL)) {
+                error(field, "Fields of a @PreferenceObject must not be private or final");
+                return;
+            }
+            if (!isSupported(field.asType())) {
+                error(field, "Unsupported field type " + field.asType()
+                        + "; make it transient or remove @PreferenceObject to use Gson");
+                return;
+            }
+            fields.add(new Field(field.getSimpleName().toString(), jsonName(field), field.asType()));
+        }
+
+        String pkg = packageOf(type);
+        String codec = codecName(type);
+        String target = type.getQualifiedName().toString();
+
+        StringBuilder sb = new StringBuilder();
+        if (pkg.length() > 0) sb.append("package ").append(pkg).append(";\n\n");
+        sb.append("import com.google.gson.stream.JsonReader;\n");
+        sb.append("import com.google.gson.stream.JsonToken;\n");
+        sb.append("import com.google.gson.stream.JsonWriter;\n\n");
+        sb.append("import java.io.IOException;\n\n");
+        sb.append("/**\n * Generated by PreferenceObjectProcessor. Do not edit.\n */\n");
+        sb.append("public final class ").append(codec).append(" implements ").append(CODEC)
+                .append('<').append(target).append("> {\n\n");
+        sb.append("    public static final ").append(codec).append(" INSTANCE = new ")
+                .append(codec).append("();\n\n");
+
+        sb.append("    @Override\n");
+        sb.append("    public void write(JsonWriter out, ").append(target)
+                .append(" value) throws IOException {\n");
+        sb.append("        if (value == null) {\n            out.nullValue();\n            return;\n        }\n");
+        sb.append("        out.beginObject();\n");
+        for (Field field : fields) {
+            String expr = "value." + field.name;
+            if (field.type.getKind().isPrimitive()) {
+                sb.append("        out.name(").append(literal(field.jsonName)).append(");\n");
+                sb.append("        ").append(writeValue(field.type, expr)).append('\n');
+            } else {
+                sb.append("        if (").append(expr).append(" != null) {\n");
+                sb.append("            out.name(").append(literal(field.jsonName)).append(");\n");
+                sb.append(indent(writeValue(field.type, expr), "            ")).append('\n');
+                sb.append("        }\n");
+            }
+        }
+        sb.append("        out.endObject();\n");
+        sb.append("    }\n\n");
+
+        sb.append("    @Override\n");
+        sb.append("    public ").append(target).append(" read(JsonReader in) throws IOException {\n");
+        sb.append("        if (in.peek() == JsonToken.NULL) {\n            in.nextNull();\n            return null;\n        }\n");
+        sb.append("        ").append(target).append(" value = new ").append(target).append("();\n");
+        sb.append("        in.beginObject();\n");
+        sb.append("        while (in.hasNext()) {\n");
+        sb.append("            String name = in.nextName();\n");
+        sb.append("            if (in.peek() == JsonToken.NULL) {\n");
+        sb.append("                in.nextNull();\n");
+        for (Field field : fields) {
+            if (field.type.getKind().isPrimitive()) continue;
+            sb.append("                if (name.equals(").append(literal(field.jsonName)).append(")) value.")
+                    .append(field.name).append(" = null;\n");
+        }
+        sb.append("                continue;\n");
+        sb.append("            }\n");
+        sb.append("            switch (name) {\n");
+        for (Field field : fields) {
+            sb.append("                case ").append(literal(field.jsonName)).append(": {\n");
+            if (isList(field.type)) {
+                sb.append(indent(readList(field.type, "value." + field.name), "                    "))
+                        .append('\n');
+            } else {
+                sb.append("                    value.").append(field.name).append(" = ")
+                        .append(readValue(field.type)).append(";\n");
+            }
+            sb.append("                    break;\n");
+            sb.append("                }\n");
+        }
+        sb.append("                default:\n");
+        sb.append("                    in.skipValue();\n");
+        sb.append("            }\n");
+        sb.append("        }\n");
+        sb.append("        in.endObject();\n");
+        sb.append("        return value;\n");
+        sb.append("    }\n");
+        int index = 0;
+        for (TypeElement element : enums) enumMethods(sb, element, index++);
+        sb.append("}\n");
+
+        String qualified = pkg.length() > 0 ? pkg + '.' + codec : codec;
+        JavaFileObject file = processingEnv.getFiler().createSourceFile(qualified, type);
+        Writer writer = file.openWriter();
+        try {
+            writer.write(sb.toString());
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Checks that the generated codec can create and access the class.
+     */
+    private boolean check(TypeElement type) {
+        Set<Modifier> modifiers = type.getModifiers();
+        if (modifiers.contains(Modifier.ABSTRACT) || modifiers.contains(Modifier.PRIVATE)) {
+            error(type, "A @PreferenceObject must not be abstract or private");
+            return false;
+        }
+        if (type.getNestingKind() == NestingKind.MEMBER && !modifiers.contains(Modifier.STATIC)) {
+            error(type, "A nested @PreferenceObject must be static");
+            return false;
+        }
+        if (type.getNestingKind() == NestingKind.LOCAL || type.getNestingKind() == NestingKind.ANONYMOUS) {
+            error(type, "A @PreferenceObject must be a top level or static nested class");
+            return false;
+        }
+        for (ExecutableElement constructor : ElementFilter.constructorsIn(type.getEnclosedElements())) {
+            if (constructor.getParameters().isEmpty()
+                    && !constructor.getModifiers().contains(Modifier.PRIVATE)) {
+                return true;
+            }
+        }
+        error(type, "A @PreferenceObject needs a non-private constructor without parameters");
+        return false;
+    }
+
+    /**
+     * Gets the fields of a class and its superclasses, the class's own fields first, as Gson
+     * does.
+     */
+    private List<Element> allMembers(TypeElement type) {
+        List<Element> members = new ArrayList<Element>(type.getEnclosedElements());
+        TypeMirror superclass = type.getSuperclass();
+        if (superclass.getKind() == TypeKind.DECLARED) {
+            TypeElement parent = (TypeElement) ((DeclaredType) superclass).asElement();
+            if (!parent.getQualifiedName().contentEquals("java.lang.Object")) {
+                members.addAll(allMembers(parent));
+            }
+        }
+        return members;
+    }
+
+    /**
+     * Writes the methods which map the constants of an enum to their JSON names and back:
+     * {@code nameOf}, overloaded by enum, and {@code readEnum} followed by the index.
+     */
+    private static void enumMethods(StringBuilder sb, TypeElement element, int index) {
+        String type = element.getQualifiedName().toString();
+        List<VariableElement> constants = new ArrayList<VariableElement>();
+        for (VariableElement field : ElementFilter.fieldsIn(element.getEnclosedElements())) {
+            if (field.getKind() == ElementKind.ENUM_CONSTANT) constants.add(field);
+        }
+
+        sb.append("\n    private static String nameOf(").append(type).append(" value) {\n");
+        sb.append("        switch (value) {\n");
+        for (VariableElement constant : constants) {
+            String name = jsonName(constant);
+            if (name.equals(constant.getSimpleName().toString())) continue;
+            sb.append("            case ").append(constant.getSimpleName()).append(":\n");
+            sb.append("                return ").append(literal(name)).append(";\n");
+        }
+        sb.append("            default:\n");
+        sb.append("                return value.name();\n");
+        sb.append("        }\n");
+        sb.append("    }\n");
+
+        sb.append("\n    private static ").append(type).append(" readEnum").append(index)
+                .append("(String name) {\n");
+        sb.append("        switch (name) {\n");
+        Set<String> taken = new HashSet<String>();
+        for (VariableElement constant : constants) {
+            List<String> names = new ArrayList<String>();
+            names.add(jsonName(constant));
+            names.addAll(alternateNames(constant));
+            boolean any = false;
+            for (String name : names) {
+                if (!taken.add(name)) continue;
+                sb.append("            case ").append(literal(name)).append(":\n");
+                any = true;
+            }
+            if (any) {
+                sb.append("                return ").append(type).append('.')
+                        .append(constant.getSimpleName()).append(";\n");
+            }
+        }
+        sb.append("            default:\n");
+        sb.append("                return null;\n");
+        sb.append("        }\n");
+        sb.append("    }\n");
+    }
+
+    private boolean isSupported(TypeMirror type) {
+        if (type.getKind().isPrimitive()) return true;
+        if (type.getKind() != TypeKind.DECLARED) return false;
+        if (isList(type)) {
+            List<? extends TypeMirror> arguments = ((DeclaredType) type).getTypeArguments();
+            return arguments.size() == 1 && !isList(arguments.get(0)) && isSupported(arguments.get(0));
+        }
+
+        TypeElement element = (TypeElement) ((DeclaredType) type).asElement();
+        String name = element.getQualifiedName().toString();
+        return boxedKind(name) != null
+                || name.equals("java.lang.String")
+                || element.getKind() == ElementKind.ENUM
+                || isAnnotated(element);
+    }
+
+    private static boolean isList(TypeMirror type) {
+        if (type.getKind() != TypeKind.DECLARED) return false;
+        String name = ((TypeElement) ((DeclaredType) type).asElement()).getQualifiedName().toString();
+        return name.equals("java.util.List") || name.equals("java.util.ArrayList");
+    }
+
+    private static boolean isAnnotated(TypeElement element) {
+        for (AnnotationMirror mirror : element.getAnnotationMirrors()) {
+            TypeElement annotation = (TypeElement) mirror.getAnnotationType().asElement();
+            if (annotation.getQualifiedName().contentEquals(ANNOTATION)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return Primitive kind of a boxed type, or null if the type is not boxed
+     */
+    private static TypeKind boxedKind(String name) {
+        if (name.equals("java.lang.Boolean")) return TypeKind.BOOLEAN;
+        if (name.equals("java.lang.Byte")) return TypeKind.BYTE;
+        if (name.equals("java.lang.Short")) return TypeKind.SHORT;
+        if (name.equals("java.lang.Integer")) return TypeKind.INT;
+        if (name.equals("java.lang.Long")) return TypeKind.LONG;
+        if (name.equals("java.lang.Float")) return TypeKind.FLOAT;
+        if (name.equals("java.lang.Double")) return TypeKind.DOUBLE;
+        if (name.equals("java.lang.Character")) return TypeKind.CHAR;
+        return null;
+    }
+
+    /**
+     * Gets a statement which writes a non-null value.
+     */
+    private String writeValue(TypeMirror type, String expr) {
+        TypeKind kind = type.getKind();
+        if (kind == TypeKind.DECLARED) {
+            if (isList(type)) {
+                TypeMirror element = ((DeclaredType) type).getTypeArguments().get(0);
+                return "out.beginArray();\n"
+                        + "for (" + element + " element : " + expr + ") {\n"
+                        + "    if (element == null) {\n"
+                        + "        out.nullValue();\n"
+                        + "    } else {\n"
+                        + indent(writeValue(element, "element"), "        ") + "\n"
+                        + "    }\n"
+                        + "}\n"
+                        + "out.endArray();";
+            }
+
+            TypeElement element = (TypeElement) ((DeclaredType) type).asElement();
+            String name = element.getQualifiedName().toString();
+            if (name.equals("java.lang.String")) return "out.value(" + expr + ");";
+            if (element.getKind() == ElementKind.ENUM) return "out.value(nameOf(" + expr + "));";
+            if (isAnnotated(element)) return codecOf(element) + ".INSTANCE.write(out, " + expr + ");";
+            kind = boxedKind(name);
+            // Unboxed by a cast, which picks the primitive overload.
+            if (kind == TypeKind.BOOLEAN) return "out.value((boolean) " + expr + ");";
+            if (kind == TypeKind.LONG) return "out.value((long) " + expr + ");";
+        }
+
+        switch (kind) {
+            case BOOLEAN:
+            case LONG:
+                return "out.value(" + expr + ");";
+            case CHAR:
+                return "out.value(String.valueOf(" + expr + "));";
+            case FLOAT:
+                return "out.value((Number) Float.valueOf(" + expr + "));";
+            case DOUBLE:
+                return "out.value((Number) Double.valueOf(" + expr + "));";
+            default:
+                return "out.value((long) " + expr + ");";
+        }
+    }
+
+    /**
+     * Gets an expression which reads a non-null value.
+     */
+    private String readValue(TypeMirror type) {
+        TypeKind kind = type.getKind();
+        if (kind == TypeKind.DECLARED) {
+            TypeElement element = (TypeElement) ((DeclaredType) type).asElement();
+            String name = element.getQualifiedName().toString();
+            if (name.equals("java.lang.String")) return "in.nextString()";
+            if (element.getKind() == ElementKind.ENUM) {
+                if (!enums.contains(element)) enums.add(element);
+                return "readEnum" + enums.indexOf(element) + "(in.nextString())";
+            }
+            if (isAnnotated(element)) return codecOf(element) + ".INSTANCE.read(in)";
+            kind = boxedKind(name);
+        }
+
+        switch (kind) {
+            case BOOLEAN:
+                return "in.nextBoolean()";
+            case BYTE:
+                return "(byte) in.nextInt()";
+            case SHORT:
+                return "(short) in.nextInt()";
+            case INT:
+                return "in.nextInt()";
+            case LONG:
+                return "in.nextLong()";
+            case FLOAT:
+                return "(float) in.nextDouble()";
+            case DOUBLE:
+                return "in.nextDouble()";
+            case CHAR:
+                return "in.nextString().charAt(0)";
+            default:
+                throw new IllegalArgumentException(type.toString());
+        }
+    }
+
+    private String readList(TypeMirror type, String target) {
+        TypeMirror element = ((DeclaredType) type).getTypeArguments().get(0);
+        return "java.util.ArrayList<" + element + "> list = new java.util.ArrayList<" + element + ">();\n"
+                + "in.beginArray();\n"
+                + "while (in.hasNext()) {\n"
+                + "    if (in.peek() == JsonToken.NULL) {\n"
+                + "        in.nextNull();\n"
+                + "        list.add(null);\n"
+                + "    } else {\n"
+                + "        list.add(" + readValue(element) + ");\n"
+                + "    }\n"
+                + "}\n"
+                + "in.endArray();\n"
+                + target + " = list;";
+    }
+
+    /**
+     * Gets the JSON name of a field, from {@code @SerializedName} if present.
+     */
+    private static String jsonName(VariableElement field) {
+        for (AnnotationMirror mirror : field.getAnnotationMirrors()) {
+            TypeElement annotation = (TypeElement) mirror.getAnnotationType().asElement();
+            if (!annotation.getQualifiedName().contentEquals(SERIALIZED_NAME)) continue;
+            for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry
+                    : mirror.getElementValues().entrySet()) {
+                if (entry.getKey().getSimpleName().contentEquals("value")) {
+                    return (String) entry.getValue().getValue();
+                }
+            }
+        }
+        return field.getSimpleName().toString();
+    }
+
+    /**
+     * Gets the names a constant is also read from, from {@code @SerializedName(alternate)}.
+     */
+    private static List<String> alternateNames(VariableElement field) {
+        List<String> names = new ArrayList<String>();
+        for (AnnotationMirror mirror : field.getAnnotationMirrors()) {
+            TypeElement annotation = (TypeElement) mirror.getAnnotationType().asElement();
+            if (!annotation.getQualifiedName().contentEquals(SERIALIZED_NAME)) continue;
+            for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry
+                    : mirror.getElementValues().entrySet()) {
+                if (!entry.getKey().getSimpleName().contentEquals("alternate")) continue;
+                for (Object value : (List<?>) entry.getValue().getValue()) {
+                    names.add((String) ((AnnotationValue) value).getValue());
+                }
+            }
+        }
+        return names;
+    }
+
+    private String codecOf(TypeElement element) {
+        String pkg = packageOf(element);
+        return (pkg.length() > 0 ? pkg + '.' : "") + codecName(element);
+    }
+
+    private String packageOf(TypeElement type) {
+        PackageElement pkg = processingEnv.getElementUtils().getPackageOf(type);
+        return pkg.isUnnamed() ? "" : pkg.getQualifiedName().toString();
+    }
+
+    /**
+     * Gets the simple name of the codec, which is the binary name of the class without the
+     * package, with '$' replaced by '_', followed by the suffix.
+     */
+    private String codecName(TypeElement type) {
+        String binary = processingEnv.getElementUtils().getBinaryName(type).toString();
+        String pkg = packageOf(type);
+        if (pkg.length() > 0) binary = binary.substring(pkg.length() + 1);
+        return binary.replace('$', '_') + SUFFIX;
+    }
+
+    private static String literal(String s) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') sb.append('\\').append(c);
+            else if (c < 0x20 || c > 0x7e) sb.append(String.format("\\u%04x", (int) c));
+            else sb.append(c);
+        }
+        return sb.append('"').toString();
+    }
+
+    private static String indent(String code, String indent) {
+        return indent + code.replace("\n", "\n" + indent);
+    }
+
+    private void error(Element element, String message) {
+        messager.printMessage(Diagnostic.Kind.ERROR, message, element);
+    }
+
+    private static class Field {
+
+        final String name;
+        final String jsonName;
+        final TypeMirror type;
+
+        Field(String name, String jsonName, TypeMirror type) {
+            this.name = name;
+            this.jsonName = jsonName;
+            this.type = type;
+        }
+    }
+}